@@ -110,7 +110,7 @@ public class AnalysisServer {
 //        httpService.redirect.any("/hi", "/hello");
 
         // TODO pass in non-static Analysis server config
-        new BrokerController(RegionalAnalysisController.broker).register();
+        new BrokerController(RegionalAnalysisController.partition).register();
 
         // Load index.html and register a handler with Spark to serve it up.
         InputStream indexStream = AnalysisServer.class.getClassLoader().getResourceAsStream("public/index.html");
@@ -153,9 +153,13 @@ public class AnalysisServer {
             LOG.info("Running in OFFLINE mode...");
             FeedSourceCache feedSourceCache = ApiMain.initialize(null, null, AnalysisServerConfig.localCacheDirectory);
             LOG.info("Starting local cluster of Analysis workers...");
-            // You have to make the worker machineId non-static if you want to launch more than one worker,
-            // and change the listening ports. TODO port is hardwired here and also in SinglePointAnalysisController
-            LocalCluster.start(feedSourceCache, OSMPersistence.cache, 1);
+            // Each local worker runs in its own JVM, listening on its own port. They are started by the broker, which
+            // needs to know the port of each one to send it single point requests.
+            if (!RegionalAnalysisController.broker.startAllLocalWorkers()) {
+                // You have to make the worker machineId non-static if you want to launch more than one worker in this
+                // JVM, and change the listening ports.
+                LocalCluster.start(feedSourceCache, OSMPersistence.cache, 1);
+            }
         } else {
             ApiMain.initialize(AnalysisServerConfig.awsRegion, AnalysisServerConfig.bundleBucket,
                     null, AnalysisServerConfig
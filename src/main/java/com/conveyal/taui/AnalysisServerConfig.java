@@ -55,6 +55,14 @@ public abstract class AnalysisServerConfig {
     public static final int lightThreads = Integer.parseInt(getProperty("light-threads", true));
     public static final int heavyThreads = Integer.parseInt(getProperty("heavy-threads", true));
     public static final int maxWorkers = Integer.parseInt(getProperty("max-workers", true));
+    public static final String accessGroupWeights = getProperty("access-group-weights", false);
+    public static final String taskOrdering = getProperty("task-ordering", false);
+    public static final String localWorkers = getProperty("local-workers", false);
+    public static final String localWorkerHeap = getProperty("local-worker-heap", false);
+    public static final String brokerNodes = getProperty("broker-nodes", false);
+    public static final String brokerSecret = getProperty("broker-secret", false);
+    public static final String singlePointLatencyThreshold = getProperty("single-point-latency-threshold", false);
+    public static final String singlePointCacheMb = getProperty("single-point-cache-mb", false);
 
     // AWS specific stuff. This should be moved to another config object when we make this portable to other environments.
     public static final int workerPort = Integer.parseInt(getProperty("worker-port", true));
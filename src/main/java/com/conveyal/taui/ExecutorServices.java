@@ -2,13 +2,33 @@ package com.conveyal.taui;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 
 /**
- * Wrapper around two ExecutorServices, making them accessible JVM-wide. The two fields here allow a "heavy" executor
- * (for slow tasks) and a "light" executor (for fast tasks, the "passing lane"), each with a number of threads that
- * can be limited in the main analysis.properties configuration file to help limit heavy concurrent operations.
+ * Wrapper around the ExecutorServices shared by the whole server, making them accessible JVM-wide. There is a "heavy"
+ * executor (for slow tasks) and a "light" executor (for fast tasks, the "passing lane"), each with a number of threads
+ * that can be limited in the main analysis.properties configuration file to help limit heavy concurrent operations.
+ * A third executor with one thread per processor is used for CPU-bound work that is split into many small pieces,
+ * such as compressing regional analysis results in parallel blocks. Finished regional analyses are compressed and
+ * uploaded on a small scheduled executor of their own, so that a slow upload never holds up an HTTP handler thread
+ * and failed uploads can be retried after a delay. Periodic housekeeping, such as resizing the fleet of workers, runs
+ * on a single scheduled thread.
+ *
+ * Like the fixed thread pools, the scheduled executors have unbounded queues, as a ScheduledThreadPoolExecutor cannot
+ * be given any other kind. The queue of the finalization executor is nonetheless bounded by the number of jobs: each
+ * job schedules one upload attempt when its last result arrives, and each attempt only schedules the next one after
+ * it has failed. So it never holds more tasks than there are jobs awaiting upload, and those jobs are already held in
+ * memory by the broker. Each task is small, as the results themselves stay on disk until they are compressed.
  */
 public abstract class ExecutorServices {
     public static final ExecutorService light = Executors.newFixedThreadPool(AnalysisServerConfig.lightThreads);
     public static final ExecutorService heavy = Executors.newFixedThreadPool(AnalysisServerConfig.heavyThreads);
+    public static final ExecutorService compression =
+            Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    /** Uploads are mostly limited by bandwidth to S3 and use the compression executor, so two at a time suffice. */
+    public static final int FINALIZATION_THREADS = 2;
+
+    public static final ScheduledExecutorService finalization =
+            Executors.newScheduledThreadPool(FINALIZATION_THREADS);
+    public static final ScheduledExecutorService periodic = Executors.newSingleThreadScheduledExecutor();
 }
@@ -3,24 +3,33 @@ package com.conveyal.taui;
 import com.conveyal.r5.analyst.LittleEndianIntOutputStream;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
 import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.conveyal.taui.analysis.RegionalAnalysisStatus;
 import com.conveyal.taui.controllers.RegionalAnalysisController;
-import com.google.common.io.ByteStreams;
+import com.conveyal.taui.util.ParallelGzip;
+import com.conveyal.taui.util.S3MultipartOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.BitSet;
-import java.util.zip.GZIPOutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static com.conveyal.r5.common.Util.human;
 
@@ -43,6 +52,20 @@ import static com.conveyal.r5.common.Util.human;
  * (4 byte int) height of the grid in pixels
  * (4 byte int) number of values per pixel
  * (repeated 4-byte int) values of each pixel in row major order.
+ *
+ * By default the buffer file is memory mapped in little-endian order. Each value is then written with an absolute put
+ * that does not allocate or touch any shared position, and received origins are tracked in an atomic bitset, so
+ * results from many HTTP handler threads are written concurrently without taking a lock. Files too large to map in a
+ * single buffer fall back on seeking and writing within a RandomAccessFile, which is synchronized. Once the results
+ * have been uploaded or the assembler is shut down, the buffer is unmapped rather than left for the garbage collector
+ * and any results still arriving are discarded.
+ *
+ * When the last result arrives, compressing and uploading the file is handed off to a separate executor, so the HTTP
+ * handler that delivered that result (and the worker waiting on it) returns immediately. Failed uploads are retried a
+ * few times with increasing delays. The current stage is reported to the UI through RegionalAnalysisStatus.
+ *
+ * The buffer file may be placed where it survives a restart of the server. An assembler can then be resumed from the
+ * file, given the set of origins whose results are known to have been flushed to it.
  */
 public class GridResultAssembler {
 
@@ -54,26 +77,52 @@ public class GridResultAssembler {
     /** The offset to get to the data section of the access grid file. */
     public static final long HEADER_LENGTH_BYTES = 9 * Integer.BYTES;
 
+    /** How many times to try compressing and uploading the finished results before giving up. */
+    public static final int MAX_FINISH_ATTEMPTS = 4;
+
+    /** How long to wait before retrying a failed upload. This delay is doubled after each failed attempt. */
+    public static final int FIRST_RETRY_DELAY_SECONDS = 30;
+
     public final AnalysisTask request;
 
     private File bufferFile;
 
     private RandomAccessFile randomAccessFile;
 
-    /** TODO use Java NewIO file channel for native byte order output to our output file. */
-//    private FileChannel outputFileChannel;
+    /**
+     * The whole buffer file mapped into memory in little-endian order, or null if we are writing through the
+     * RandomAccessFile instead. Only absolute gets and puts are used, so it can be shared by many threads.
+     */
+    private volatile MappedByteBuffer mappedBuffer;
+
+    /**
+     * Threads writing into the mapped buffer share the read lock, which only keeps the buffer from being unmapped
+     * while they are writing. Accessing a buffer after it has been unmapped would crash the JVM.
+     */
+    private final ReadWriteLock unmapLock = new ReentrantReadWriteLock();
+
+    /** Set once the results are no longer written to the buffer file, because it was uploaded or deleted. */
+    private boolean bufferReleased = false;
+
+    private volatile boolean error = false;
+
+    private volatile RegionalAnalysisStatus.Stage stage = RegionalAnalysisStatus.Stage.ASSEMBLING;
+
+    /** Set when this assembler is shut down, so that no further upload attempts are made. */
+    private volatile boolean terminated = false;
 
-    private boolean error = false;
+    /** Completed with the final stage (DONE or FAILED) once the results have been uploaded or given up on. */
+    private final CompletableFuture<RegionalAnalysisStatus.Stage> finalized = new CompletableFuture<>();
 
     /**
      * The number of results received for unique origin points (i.e. two results for the same origin should only
-     * increment this once). It does not need to be an atomic int as it's incremented in a synchronized block.
+     * increment this once). Only the thread that increments this to nTotal will finish the job.
      */
-    public int nComplete = 0;
+    public final AtomicInteger nComplete = new AtomicInteger();
 
     // We need to keep track of which specific origins are completed, to avoid double counting if we receive more than
-    // one result for the same origin.
-    private BitSet originsReceived;
+    // one result for the same origin. This is a bitset whose words are updated atomically, 64 origins per long.
+    private final AtomicLongArray originsReceived;
 
     /** Total number of results expected. */
     public int nTotal;
@@ -86,80 +135,218 @@ public class GridResultAssembler {
      * This also creates the on-disk scratch buffer into which the results from the workers will be accumulated.
      */
     public GridResultAssembler(AnalysisTask request, String outputBucket) {
+        this(request, outputBucket, null, null, true);
+    }
+
+    /**
+     * @param bufferFile where to create the scratch buffer. Unlike a temporary file, it is not deleted when the server
+     *                   shuts down, so the job can be resumed with the results received so far.
+     */
+    public GridResultAssembler(AnalysisTask request, String outputBucket, File bufferFile) {
+        this(request, outputBucket, bufferFile, null, true);
+    }
+
+    /**
+     * @param memoryMapped whether to write into a memory mapped buffer rather than through a RandomAccessFile. This is
+     *                     only ignored when the file is too large to map, but is exposed to allow benchmarking.
+     */
+    GridResultAssembler(AnalysisTask request, String outputBucket, boolean memoryMapped) {
+        this(request, outputBucket, null, null, memoryMapped);
+    }
+
+    /**
+     * Resume assembling results into a buffer file left by an earlier assembler for the same request, for example
+     * before the server restarted. If all the results have already been received, uploading them begins immediately.
+     * @param originsAlreadyReceived the origins whose results are known to have been written to the buffer file.
+     * @throws IOException if the buffer file is missing, is not the expected size, or cannot be opened. A new
+     *         assembler only reports such errors through its stage, but a job that cannot be resumed should be
+     *         discarded by the caller instead.
+     */
+    public static GridResultAssembler resume (AnalysisTask request, String outputBucket, File bufferFile,
+                                              BitSet originsAlreadyReceived) throws IOException {
+        try {
+            return new GridResultAssembler(request, outputBucket, bufferFile, originsAlreadyReceived, true);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * @param bufferFile where to create the scratch buffer, or null to create a temporary file.
+     * @param originsAlreadyReceived if this is not null, the buffer file already exists and contains results for
+     *                               these origins, and its header is not rewritten. Any error opening it is then
+     *                               rethrown as an UncheckedIOException rather than recorded in this assembler.
+     */
+    private GridResultAssembler(AnalysisTask request, String outputBucket, File bufferFile,
+                                BitSet originsAlreadyReceived, boolean memoryMapped) {
         this.request = request;
         this.outputBucket = outputBucket;
         nTotal = request.width * request.height;
-        originsReceived = new BitSet(nTotal);
+        originsReceived = new AtomicLongArray((nTotal + 63) / 64);
         LOG.info("Expecting results for regional analysis with width {}, height {}, 1 value per origin.",
                 request.width, request.height);
 
-        long outputFileSizeBytes = request.width * request.height * Integer.BYTES;
-        LOG.info("Creating temporary file to store regional analysis results, size is {}.",
-                human(outputFileSizeBytes, "B"));
+        long outputFileSizeBytes = HEADER_LENGTH_BYTES + (long) nTotal * Integer.BYTES;
         try {
-            bufferFile = File.createTempFile(request.jobId, ".access_grid");
-            // On unexpected server shutdown, these files should be deleted.
-            // We could attempt to recover from shutdowns but that will take a lot of changes and persisted data.
-            bufferFile.deleteOnExit();
-
-            // Write the access grid file header
-            FileOutputStream fos = new FileOutputStream(bufferFile);
-            LittleEndianIntOutputStream data = new LittleEndianIntOutputStream(fos);
-            data.writeAscii("ACCESSGR");
-            data.writeInt(ACCESS_GRID_VERSION);
-            data.writeInt(request.zoom);
-            data.writeInt(request.west);
-            data.writeInt(request.north);
-            data.writeInt(request.width);
-            data.writeInt(request.height);
-            data.writeInt(1); // Hard-wired to one bootstrap replication
-            data.close();
-
-            // We used to fill the file with zeros here, to "overwrite anything that might be in the file already"
-            // according to a code comment. However that creates a burst of up to 1GB of disk activity, which exhausts
-            // our IOPS budget on cloud servers with network storage. That then causes the server to fall behind in
-            // processing incoming results.
-            // This is a newly created temp file, so setting it to a larger size should just create a sparse file
-            // full of blocks of zeros (at least on Linux, I don't know what it does on Windows).
-            this.randomAccessFile = new RandomAccessFile(bufferFile, "rw");
-            randomAccessFile.setLength(outputFileSizeBytes);
-            LOG.info("Created temporary file of {} to accumulate results from workers.", human(randomAccessFile.length(), "B"));
+            if (originsAlreadyReceived != null) {
+                this.bufferFile = bufferFile;
+                if (!bufferFile.isFile() || bufferFile.length() != outputFileSizeBytes) {
+                    throw new IOException("Buffer file " + bufferFile + " is missing or not the expected size.");
+                }
+                for (int index1d = originsAlreadyReceived.nextSetBit(0); index1d >= 0 && index1d < nTotal;
+                     index1d = originsAlreadyReceived.nextSetBit(index1d + 1)) {
+                    markOriginReceived(index1d);
+                    nComplete.incrementAndGet();
+                }
+                LOG.info("Resuming regional analysis {} with {} of {} results already received.",
+                        request.jobId, nComplete.get(), nTotal);
+                this.randomAccessFile = new RandomAccessFile(bufferFile, "rw");
+            } else {
+                LOG.info("Creating temporary file to store regional analysis results, size is {}.",
+                        human(outputFileSizeBytes, "B"));
+                if (bufferFile == null) {
+                    bufferFile = File.createTempFile(request.jobId, ".access_grid");
+                    // On unexpected server shutdown, these files should be deleted. Buffer files that can be recovered
+                    // after a shutdown are supplied by the caller instead.
+                    bufferFile.deleteOnExit();
+                }
+                this.bufferFile = bufferFile;
+                createBufferFile(outputFileSizeBytes);
+            }
+            if (memoryMapped && outputFileSizeBytes <= Integer.MAX_VALUE) {
+                // Mapping the sparse file does not read or write it, pages are only touched as results arrive.
+                mappedBuffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, outputFileSizeBytes);
+                mappedBuffer.order(ByteOrder.LITTLE_ENDIAN);
+            } else if (memoryMapped) {
+                LOG.warn("Regional analysis results file is too large to map into memory, writing through a file.");
+            }
         } catch (Exception e) {
+            if (originsAlreadyReceived != null) {
+                closeQuietly();
+                throw new UncheckedIOException(e instanceof IOException ? (IOException) e : new IOException(e));
+            }
             error = true;
             LOG.error("Exception while creating regional access grid: " + e.toString());
         }
+        if (originsAlreadyReceived != null && nComplete.get() == nTotal) {
+            LOG.info("All results for regional analysis {} were already received, queueing upload.", request.jobId);
+            scheduleFinish(1, 0);
+        }
+    }
+
+    private void closeQuietly () {
+        try {
+            if (randomAccessFile != null) randomAccessFile.close();
+        } catch (IOException e) {
+            LOG.warn("Could not close buffer file {}.", bufferFile, e);
+        }
+    }
+
+    /** Write the header of a new buffer file and extend it to the given size. */
+    private void createBufferFile (long outputFileSizeBytes) throws IOException {
+        // Write the access grid file header
+        FileOutputStream fos = new FileOutputStream(bufferFile);
+        LittleEndianIntOutputStream data = new LittleEndianIntOutputStream(fos);
+        data.writeAscii("ACCESSGR");
+        data.writeInt(ACCESS_GRID_VERSION);
+        data.writeInt(request.zoom);
+        data.writeInt(request.west);
+        data.writeInt(request.north);
+        data.writeInt(request.width);
+        data.writeInt(request.height);
+        data.writeInt(1); // Hard-wired to one bootstrap replication
+        data.close();
+
+        // We used to fill the file with zeros here, to "overwrite anything that might be in the file already"
+        // according to a code comment. However that creates a burst of up to 1GB of disk activity, which exhausts
+        // our IOPS budget on cloud servers with network storage. That then causes the server to fall behind in
+        // processing incoming results.
+        // This is a newly created file, so setting it to a larger size should just create a sparse file
+        // full of blocks of zeros (at least on Linux, I don't know what it does on Windows).
+        this.randomAccessFile = new RandomAccessFile(bufferFile, "rw");
+        randomAccessFile.setLength(outputFileSizeBytes);
+        LOG.info("Created temporary file of {} to accumulate results from workers.", human(randomAccessFile.length(), "B"));
+    }
+
+    /**
+     * Compress and upload the finished results on the finalization executor, after the given delay. On failure this
+     * schedules another attempt with a doubled delay, until MAX_FINISH_ATTEMPTS have been made.
+     */
+    private void scheduleFinish (int attempt, long delaySeconds) {
+        ExecutorServices.finalization.schedule(() -> {
+            if (terminated) {
+                // The job was deleted before or between upload attempts.
+                endFinalization(RegionalAnalysisStatus.Stage.FAILED);
+                return;
+            }
+            stage = RegionalAnalysisStatus.Stage.UPLOADING;
+            if (finish()) {
+                endFinalization(RegionalAnalysisStatus.Stage.DONE);
+            } else if (attempt < MAX_FINISH_ATTEMPTS) {
+                long retryDelaySeconds = Math.max(FIRST_RETRY_DELAY_SECONDS, delaySeconds * 2);
+                LOG.warn("Attempt {} to upload results of regional analysis {} failed, retrying in {} seconds.",
+                        attempt, request.jobId, retryDelaySeconds);
+                scheduleFinish(attempt + 1, retryDelaySeconds);
+            } else {
+                LOG.error("Giving up on uploading results of regional analysis {} after {} attempts.",
+                        request.jobId, attempt);
+                endFinalization(RegionalAnalysisStatus.Stage.FAILED);
+            }
+        }, delaySeconds, TimeUnit.SECONDS);
+    }
+
+    private void endFinalization (RegionalAnalysisStatus.Stage finalStage) {
+        stage = finalStage;
+        finalized.complete(finalStage);
+    }
+
+    /**
+     * Register an action to be run once this assembler has finished uploading its results or has given up on them.
+     * If that has already happened, the action is run immediately on the calling thread.
+     */
+    public void whenFinalized (Runnable action) {
+        finalized.thenRun(action);
+    }
+
+    public RegionalAnalysisStatus.Stage getStage () {
+        return stage;
     }
 
     /**
      * Gzip the access grid and upload it to S3.
+     * The buffer file is compressed in blocks on several cores at once, and the compressed blocks are streamed straight
+     * into a multipart upload as they are produced. No second (compressed) temporary file is written to disk, and the
+     * upload proceeds while later blocks are still being compressed.
      */
-    protected synchronized void finish () {
+    protected synchronized boolean finish () {
         LOG.info("Finished receiving data for regional analysis {}, uploading to S3", request.jobId);
         try {
-            File gzippedGridFile = File.createTempFile(request.jobId, ".access_grid.gz");
-            randomAccessFile.close();
-
-            // There's probably a more elegant way to do this with NIO and without closing the buffer.
-            // That would be Files.copy(File.toPath(),X) or ByteStreams.copy.
-            InputStream is = new BufferedInputStream(new FileInputStream(bufferFile));
-            OutputStream os = new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(gzippedGridFile)));
-            ByteStreams.copy(is, os);
-            is.close();
-            os.close();
-
+            // TODO use generic filePersistence instead of specific S3 client
+            S3MultipartOutputStream s3OutputStream = new S3MultipartOutputStream(
+                    RegionalAnalysisController.s3, outputBucket, String.format("%s.access", request.jobId));
+            try {
+                // Reading the file through its channel sees everything written through the mapped buffer, as both go
+                // through the operating system's page cache, so there's no need to force the mapped pages out to disk.
+                ParallelGzip.compress(randomAccessFile.getChannel(), s3OutputStream, ExecutorServices.compression);
+                s3OutputStream.close();
+            } catch (Exception e) {
+                s3OutputStream.abort();
+                throw e;
+            }
             LOG.info("GZIP compression reduced regional analysis {} from {} to {} ({}x compression)",
                     request.jobId,
                     human(bufferFile.length(), "B"),
-                    human(gzippedGridFile.length(), "B"),
-                    (double) bufferFile.length() / gzippedGridFile.length()
+                    human(s3OutputStream.getTotalBytes(), "B"),
+                    (double) bufferFile.length() / s3OutputStream.getTotalBytes()
             );
-            // TODO use generic filePersistence instead of specific S3 client
-            RegionalAnalysisController.s3.putObject(outputBucket, String.format("%s.access", request.jobId), gzippedGridFile);
-            // Clear temporary files off of the disk because the gzipped version is now on S3.
+            releaseBuffer();
+            randomAccessFile.close();
+            // Clear the temporary file off of the disk because the gzipped version is now on S3.
             bufferFile.delete();
-            gzippedGridFile.delete();
+            return true;
         } catch (Exception e) {
             LOG.error("Error uploading results of regional analysis {}", request.jobId, e);
+            return false;
         }
     }
 
@@ -185,24 +372,32 @@ public class GridResultAssembler {
 
     /**
      * Write to the proper subregion of the buffer for this origin.
-     * The origins we receive have 2d coordinates.
-     * Flatten them to compute file offsets and for the origin checklist.
+     * The origins we receive have 2d coordinates, which the caller flattens to compute file offsets.
      */
-    private void writeOneValue (int x, int y, int value) throws IOException {
-        int index1d = y * request.width + x;
-        long offset = HEADER_LENGTH_BYTES + index1d * Integer.BYTES;
-        // RandomAccessFile is not threadsafe and multiple threads may call this, so the actual writing is synchronized.
-        synchronized (this) {
-            randomAccessFile.seek(offset);
-            randomAccessFile.write(intToLittleEndianByteArray(value));
-            // Don't double-count origins if we receive them more than once.
-            if (!originsReceived.get(index1d)) {
-                originsReceived.set(index1d);
-                nComplete += 1;
+    private void writeOneValue (int index1d, int value) throws IOException {
+        long offset = HEADER_LENGTH_BYTES + (long) index1d * Integer.BYTES;
+        if (mappedBuffer != null) {
+            // Absolute puts do not move the buffer's position, so threads writing different origins need no lock.
+            mappedBuffer.putInt((int) offset, value);
+        } else {
+            // RandomAccessFile is not threadsafe and multiple threads may call this, so the writing is synchronized.
+            synchronized (this) {
+                randomAccessFile.seek(offset);
+                randomAccessFile.write(intToLittleEndianByteArray(value));
             }
         }
     }
 
+    /**
+     * Check off an origin in the bitset of received origins, without locking.
+     * @return true if this origin had not been received before, so should be counted as newly completed.
+     */
+    private boolean markOriginReceived (int index1d) {
+        long mask = 1L << (index1d % 64);
+        long previousWord = originsReceived.getAndAccumulate(index1d / 64, mask, (word, bit) -> word | bit);
+        return (previousWord & mask) == 0;
+    }
+
     /**
      * Process a single result.
      * We have bootstrap replications turned off, so there should be only one accessibility result per origin
@@ -211,11 +406,59 @@ public class GridResultAssembler {
      * separate access grid files, and are all size 1 for now anyway.
      */
     public void handleMessage (RegionalWorkResult workResult) {
+        handleMessages(Collections.singletonList(workResult));
+    }
+
+    /**
+     * Process all the results for this regional analysis returned by a worker in one poll. The values are all written
+     * before the completed origins are counted, and the count is updated once for the whole batch. When writing
+     * through a RandomAccessFile, its lock is taken once for the whole batch rather than once per value.
+     */
+    public void handleMessages (List<RegionalWorkResult> workResults) {
+        int nNewOrigins = 0;
+        if (mappedBuffer != null) {
+            unmapLock.readLock().lock();
+            try {
+                if (bufferReleased) return;
+                for (RegionalWorkResult workResult : workResults) {
+                    if (writeResult(workResult)) nNewOrigins += 1;
+                }
+            } finally {
+                unmapLock.readLock().unlock();
+            }
+        } else {
+            synchronized (this) {
+                if (bufferReleased) return;
+                for (RegionalWorkResult workResult : workResults) {
+                    if (writeResult(workResult)) nNewOrigins += 1;
+                }
+            }
+        }
+        // Don't double-count origins if we receive them more than once. Each origin is counted only once, so exactly
+        // one batch brings the count up to the total and sees it equal nTotal, and the job is finished exactly once.
+        if (nNewOrigins > 0 && nComplete.addAndGet(nNewOrigins) == nTotal) {
+            if (error) {
+                LOG.error("Received all results for regional analysis {}, but they can't be used.", request.jobId);
+                endFinalization(RegionalAnalysisStatus.Stage.FAILED);
+            } else {
+                LOG.info("Received all results for regional analysis {}, queueing upload.", request.jobId);
+                scheduleFinish(1, 0);
+            }
+        }
+    }
+
+    /**
+     * Write the values of a single result into the buffer and check off its origin.
+     * @return true if this origin had not been received before, so should be counted as newly completed.
+     */
+    private boolean writeResult (RegionalWorkResult workResult) {
         try {
-            // Infer x and y cell indexes based on the template task
-            int taskNumber = workResult.taskId;
-            int x = taskNumber % request.width;
-            int y = taskNumber / request.width;
+            // The task number is the origin's index in the flattened (row-major) grid of the template task.
+            int index1d = workResult.taskId;
+            if (index1d < 0 || index1d >= nTotal) {
+                LOG.error("Result for task {} of job {} is outside the grid, discarding.", index1d, request.jobId);
+                return false;
+            }
 
             // Check the dimensions of the result by comparing with fields of this.request
             int nGrids = 1;
@@ -230,26 +473,95 @@ public class GridResultAssembler {
                 for (int[] percentileResult : gridResult) {
                     checkDimension(workResult, "cutoffs", percentileResult.length, nCutoffs);
                     for (int accessibilityForCutoff : percentileResult) {
-                        writeOneValue(x, y, accessibilityForCutoff);
+                        writeOneValue(index1d, accessibilityForCutoff);
                     }
                 }
             }
-            // TODO It might be more reliable to double-check the bitset of received results inside finish() instead of just counting.
-            // FIXME isn't this leaving the files around and the assemblers in memory if the job errors out?
-            if (nComplete == nTotal && !error) finish();
+            return markOriginReceived(index1d);
         } catch (Exception e) {
             error = true; // the file is garbage TODO better resilience, tell the UI, transmit all errors.
             LOG.error("Error assembling results for query {}", request.jobId, e);
-            return;
+            return false;
+        }
+    }
+
+    /**
+     * Force all the results written so far out to the buffer file on disk, so that they survive the server or machine
+     * failing. This does nothing once the results are being uploaded or the assembler has been shut down.
+     */
+    public synchronized void flush () throws IOException {
+        if (terminated || error || stage != RegionalAnalysisStatus.Stage.ASSEMBLING) return;
+        if (mappedBuffer != null) {
+            mappedBuffer.force();
+        } else {
+            randomAccessFile.getFD().sync();
         }
     }
 
+    /**
+     * Give up on assembling the results, because some of them will never be received. The results are not uploaded,
+     * and the stage becomes FAILED so the UI can show that the analysis failed. This does nothing once all the
+     * results have been received.
+     */
+    public synchronized void fail (String reason) {
+        if (terminated || stage != RegionalAnalysisStatus.Stage.ASSEMBLING || nComplete.get() == nTotal) return;
+        LOG.error("Regional analysis {} failed: {}.", request.jobId, reason);
+        error = true;
+        endFinalization(RegionalAnalysisStatus.Stage.FAILED);
+    }
+
     /** Clean up and cancel a consumer. */
     public synchronized void terminate () throws IOException {
+        terminated = true;
+        releaseBuffer();
         this.randomAccessFile.close();
         bufferFile.delete();
     }
 
+    /**
+     * Stop writing results to the buffer file and unmap it, rather than leaving it mapped until the buffer is garbage
+     * collected, which holds on to address space and, on some systems, to the disk space of the deleted file. This must
+     * be called while synchronized on this assembler, which excludes the threads writing through the RandomAccessFile.
+     */
+    private void releaseBuffer () {
+        unmapLock.writeLock().lock();
+        try {
+            bufferReleased = true;
+            if (mappedBuffer != null) {
+                unmap(mappedBuffer);
+                mappedBuffer = null;
+            }
+        } finally {
+            unmapLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Unmap a buffer immediately, using the internal APIs of the JDK where they are accessible. These differ between
+     * Java 8 and later versions. If neither works, the buffer is left to be unmapped when it is garbage collected.
+     */
+    private static void unmap (MappedByteBuffer buffer) {
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Method invokeCleaner;
+            try {
+                invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+            } catch (NoSuchMethodException e) {
+                // Java 8, where direct buffers expose their cleaner.
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+                return;
+            }
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            invokeCleaner.invoke(theUnsafe.get(null), buffer);
+        } catch (Exception e) {
+            LOG.warn("Could not unmap regional analysis buffer, leaving it to the garbage collector: {}", e.toString());
+        }
+    }
+
     /** This leaks the file object out of the abstraction so is not ideal, but will work for now. */
     public File getBufferFile() {
         return bufferFile;
@@ -0,0 +1,93 @@
+package com.conveyal.taui;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This is not an automatic unit test. It is a benchmark that must be started manually, comparing the two ways
+ * GridResultAssembler can write results into its buffer file: seeking and writing through a synchronized
+ * RandomAccessFile, and absolute puts into a memory mapped buffer. Results for every origin but one of a 1000x1000
+ * grid are fed to the assembler from several threads at once, as they would be by HTTP handler threads receiving
+ * results from workers. Results are handed over one at a time, and then in batches the size of a typical worker poll
+ * as the broker does. The last origin is left out so the assembler never tries to upload anything to S3.
+ * Each measurement is repeated a few times so the later rounds reflect JIT-compiled code.
+ */
+public class GridResultAssemblerBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(GridResultAssemblerBenchmark.class);
+
+    static final int GRID_SIZE = 1000;
+
+    static final int N_ROUNDS = 5;
+
+    /** The number of results handed to the assembler at once in the batched measurements. */
+    static final int BATCH_SIZE = 100;
+
+    public static void main (String[] params) throws Exception {
+        int nThreads = Runtime.getRuntime().availableProcessors();
+        for (int round = 0; round < N_ROUNDS; round++) {
+            for (boolean memoryMapped : new boolean[] {false, true}) {
+                for (int batchSize : new int[] {1, BATCH_SIZE}) {
+                    double nanosPerOrigin = measure(memoryMapped, nThreads, batchSize);
+                    LOG.info("Round {}, {} with {} threads, batches of {}: {} ns per origin", round,
+                            memoryMapped ? "memory mapped" : "random access file", nThreads, batchSize,
+                            String.format("%.1f", nanosPerOrigin));
+                }
+            }
+        }
+    }
+
+    private static double measure (boolean memoryMapped, int nThreads, int batchSize) throws Exception {
+        RegionalTask request = new RegionalTask();
+        request.jobId = "BENCHMARK";
+        request.width = GRID_SIZE;
+        request.height = GRID_SIZE;
+        GridResultAssembler assembler = new GridResultAssembler(request, "NONE", memoryMapped);
+        final int nOrigins = assembler.nTotal - 1;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            final int firstOrigin = t;
+            threads.add(new Thread(() -> {
+                // The assembler does not retain results, so each thread reuses a batch of them to avoid measuring our
+                // own garbage.
+                List<RegionalWorkResult> batch = new ArrayList<>(batchSize);
+                for (int i = 0; i < batchSize; i++) {
+                    RegionalWorkResult workResult = new RegionalWorkResult();
+                    workResult.jobId = request.jobId;
+                    workResult.accessibilityValues = new int[1][1][1];
+                    batch.add(workResult);
+                }
+                int nInBatch = 0;
+                for (int origin = firstOrigin; origin < nOrigins; origin += nThreads) {
+                    RegionalWorkResult workResult = batch.get(nInBatch++);
+                    workResult.taskId = origin;
+                    workResult.accessibilityValues[0][0][0] = origin;
+                    if (nInBatch == batchSize) {
+                        assembler.handleMessages(batch);
+                        nInBatch = 0;
+                    }
+                }
+                assembler.handleMessages(batch.subList(0, nInBatch));
+            }));
+        }
+        long startTime = System.nanoTime();
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        if (assembler.nComplete.get() != nOrigins) {
+            LOG.error("Expected {} origins to be complete, found {}.", nOrigins, assembler.nComplete.get());
+        }
+        assembler.terminate();
+        return (double) elapsedNanos / nOrigins;
+    }
+
+}
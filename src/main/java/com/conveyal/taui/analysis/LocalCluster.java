@@ -1,11 +1,21 @@
 package com.conveyal.taui.analysis;
 
 import com.conveyal.gtfs.BaseGTFSCache;
+import com.conveyal.gtfs.api.ApiMain;
 import com.conveyal.r5.analyst.cluster.AnalystWorker;
 import com.conveyal.r5.streets.OSMCache;
 import com.conveyal.r5.transit.TransportNetworkCache;
 import com.conveyal.taui.AnalysisServerConfig;
+import com.conveyal.taui.persistence.OSMPersistence;
 
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Properties;
@@ -19,20 +29,12 @@ public abstract class LocalCluster {
      * This used to start up a separate broker thread. This is no longer necessary because the broker actions are
      * just performed in HTTP handler threads.
      * @param nWorkers cannot currently start more than 1 worker because the IDs are static, see AnalystWorker.machineId
+     *                 To run several workers on one machine, start them in separate processes with LocalWorkerLauncher.
      */
     public static List<Thread> start (BaseGTFSCache gtfsCache, OSMCache osmCache, int nWorkers) {
 
         List<Thread> workerThreads = new ArrayList<>();
-        Properties workerConfig = new Properties();
-
-        // Do not auto-shutdown the local machine
-        workerConfig.setProperty("auto-shutdown", "false");
-        workerConfig.setProperty("work-offline", "true");
-        workerConfig.setProperty("broker-address", "localhost");
-        workerConfig.setProperty("broker-port", Integer.toString(AnalysisServerConfig.serverPort));
-        workerConfig.setProperty("cache-dir", AnalysisServerConfig.localCacheDirectory);
-        workerConfig.setProperty("pointsets-bucket", AnalysisServerConfig.gridBucket);
-        workerConfig.setProperty("aws-region", AnalysisServerConfig.awsRegion);
+        Properties workerConfig = createWorkerConfig();
 
         if (AnalysisServerConfig.testTaskRedelivery) {
             // When testing we want multiple workers,
@@ -52,4 +54,47 @@ public abstract class LocalCluster {
 
         return workerThreads;
     }
+
+    /** The configuration for a worker running on the same machine as the broker. */
+    public static Properties createWorkerConfig () {
+        Properties workerConfig = new Properties();
+        // Do not auto-shutdown the local machine
+        workerConfig.setProperty("auto-shutdown", "false");
+        workerConfig.setProperty("work-offline", Boolean.toString(AnalysisServerConfig.offline));
+        workerConfig.setProperty("broker-address", "localhost");
+        workerConfig.setProperty("broker-port", Integer.toString(AnalysisServerConfig.serverPort));
+        workerConfig.setProperty("cache-dir", AnalysisServerConfig.localCacheDirectory);
+        workerConfig.setProperty("pointsets-bucket", AnalysisServerConfig.gridBucket);
+        workerConfig.setProperty("aws-region", AnalysisServerConfig.awsRegion);
+        if (!AnalysisServerConfig.offline) {
+            // Fetch networks that were built elsewhere, as the EC2 workers do.
+            workerConfig.setProperty("graphs-bucket", AnalysisServerConfig.bundleBucket);
+        }
+        return workerConfig;
+    }
+
+    /**
+     * Run a single worker in its own JVM. This is the entry point of the worker processes started by
+     * LocalWorkerLauncher, which are started in the same directory as the server so they read the same configuration.
+     * @param args the path of a file containing the worker configuration, optionally followed by the path of a file
+     *             to which the worker's ID is written, so that the launcher can tell which worker listens on which port.
+     */
+    public static void main (String[] args) throws IOException {
+        Properties workerConfig = new Properties();
+        try (InputStream is = new FileInputStream(args[0])) {
+            workerConfig.load(is);
+        }
+        // GTFS is read from the local cache, as for the worker started in the server's own JVM when working offline.
+        BaseGTFSCache gtfsCache = ApiMain.initialize(null, null, AnalysisServerConfig.localCacheDirectory);
+        TransportNetworkCache transportNetworkCache = new TransportNetworkCache(gtfsCache, OSMPersistence.cache);
+        AnalystWorker worker = new AnalystWorker(workerConfig, transportNetworkCache);
+        if (args.length > 1) {
+            // Move the complete file into place, so the launcher never reads part of the ID.
+            Path idFile = Paths.get(args[1]);
+            Path tempFile = Paths.get(args[1] + ".tmp");
+            Files.write(tempFile, worker.machineId.getBytes(StandardCharsets.UTF_8));
+            Files.move(tempFile, idFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        worker.run();
+    }
 }
@@ -2,6 +2,7 @@ package com.conveyal.taui.analysis;
 
 
 import com.conveyal.taui.GridResultAssembler;
+import com.conveyal.taui.analysis.broker.ThroughputEstimator;
 
 import java.io.Serializable;
 
@@ -9,13 +10,41 @@ import java.io.Serializable;
  * This model object is sent to the UI serialized as JSON in order to report regional job progress.
  */
 public final class RegionalAnalysisStatus implements Serializable {
+
+    /**
+     * The stages a regional analysis passes through once it has been created. Once all results have been received,
+     * they are compressed and uploaded to S3 in the background, and the analysis only reaches DONE once the results
+     * can be fetched from S3. An analysis whose results could not be assembled or uploaded ends up FAILED.
+     */
+    public enum Stage {
+        ASSEMBLING, UPLOADING, DONE, FAILED
+    }
+
     public int total;
     public int complete;
+    public Stage stage;
+
+    /** The recent rate at which results have been received, or zero if it is not yet known. */
+    public double tasksPerSecond;
+
+    /** The estimated number of seconds until all results are received, or -1 if it is not known. */
+    public long secondsRemaining = -1;
+
+    /** The number of workers that have recently returned results for this analysis. */
+    public int activeWorkers;
 
     public RegionalAnalysisStatus() { /* No-arg constructor for deserialization only. */ }
 
     public RegionalAnalysisStatus(GridResultAssembler assembler) {
         total = assembler.nTotal;
-        complete = assembler.nComplete;
+        complete = assembler.nComplete.get();
+        stage = assembler.getStage();
+    }
+
+    public RegionalAnalysisStatus(GridResultAssembler assembler, ThroughputEstimator throughput) {
+        this(assembler);
+        tasksPerSecond = throughput.getTasksPerSecond();
+        secondsRemaining = throughput.getSecondsRemaining(total - complete);
+        activeWorkers = throughput.getActiveWorkers();
     }
 }
@@ -0,0 +1,98 @@
+package com.conveyal.taui.analysis;
+
+import com.conveyal.r5.analyst.scenario.Modification;
+import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.taui.persistence.Persistence;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.mongodb.QueryBuilder;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps the R5 modifications of each variant of recently analyzed projects, along with their checksum, so that they
+ * do not have to be fetched from the database, converted and serialized to compute the checksum for every analysis.
+ * This is noticeable on every single point request in projects with many long added trip patterns.
+ *
+ * All the variants of a project are discarded together whenever any of the project's modifications change. A request
+ * that was reading the database while a modification changed may store the old modifications, but it stores them in
+ * the project's map of variants that the change discarded, so they are never returned to later requests. The R5
+ * modifications are shared by every task that uses them, so they must not be altered.
+ */
+public class ScenarioCache {
+
+    /** The modifications in one variant of a project, as sent to workers, and their checksum. */
+    public static class VariantModifications {
+        public final List<Modification> modifications;
+
+        /**
+         * The CRC of the modifications serialized as JSON. This identifies a unique revision of the variant, allowing
+         * the worker to cache and reuse networks built by applying that exact revision of the scenario to a network.
+         */
+        public final long crc;
+
+        VariantModifications (List<Modification> modifications) {
+            this.modifications = Collections.unmodifiableList(modifications);
+            CRC32 crc = new CRC32();
+            crc.update(JsonUtilities.objectToJsonBytes(modifications));
+            this.crc = crc.getValue();
+        }
+    }
+
+    /** No modifications are applied in the baseline, which is requested with a variant index of -1. */
+    private static final VariantModifications BASELINE = new VariantModifications(Collections.emptyList());
+
+    private final Cache<String, Map<Integer, VariantModifications>> variantsForProject = CacheBuilder.newBuilder()
+            .maximumSize(1000)
+            .expireAfterAccess(1, TimeUnit.HOURS)
+            .build();
+
+    /**
+     * Get the modifications in the given variant of a project, fetching them from the database and converting them
+     * to R5 modifications if they are not already cached.
+     */
+    public VariantModifications get (String accessGroup, String projectId, int variantIndex) {
+        if (variantIndex < 0) return BASELINE;
+        Map<Integer, VariantModifications> variants;
+        try {
+            variants = variantsForProject.get(projectId, ConcurrentHashMap::new);
+        } catch (ExecutionException e) {
+            // Creating an empty map cannot fail.
+            throw new RuntimeException(e);
+        }
+        VariantModifications cached = variants.get(variantIndex);
+        if (cached != null) return cached;
+        // Fetch outside of computeIfAbsent, which would hold a lock on part of the map during the database query and
+        // block requests for other variants of the project. Concurrent requests for the same variant may each fetch
+        // it, but they all return the first one stored.
+        VariantModifications fetched =
+                new VariantModifications(fetchModifications(accessGroup, projectId, variantIndex));
+        VariantModifications existing = variants.putIfAbsent(variantIndex, fetched);
+        return existing != null ? existing : fetched;
+    }
+
+    /**
+     * Get all of the modifications for a project id that are in the Variant and map them to their corresponding r5 mod
+     */
+    private static List<Modification> fetchModifications (String accessGroup, String projectId, int variantIndex) {
+        return Persistence.modifications
+                .findPermitted(QueryBuilder.start("projectId").is(projectId).get(), accessGroup)
+                .stream()
+                .filter(m -> variantIndex < m.variants.length && m.variants[variantIndex])
+                .map(com.conveyal.taui.models.Modification::toR5)
+                .collect(Collectors.toList());
+    }
+
+    /** Discard the cached modifications of every variant of the given project, one of whose modifications changed. */
+    public void invalidateProject (String projectId) {
+        variantsForProject.invalidate(projectId);
+    }
+
+}
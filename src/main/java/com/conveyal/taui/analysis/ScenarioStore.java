@@ -0,0 +1,146 @@
+package com.conveyal.taui.analysis;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.conveyal.r5.analyst.scenario.Scenario;
+import com.conveyal.taui.util.JsonUtil;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+
+/**
+ * Stores the scenarios of regional analyses where workers can fetch them by ID, so that the scenario does not have to
+ * be sent in every task. Scenarios are saved in a directory of their own, uploaded to S3 unless working offline, and
+ * can also be fetched from the backend itself over HTTP. Only files in that directory whose names have the exact form
+ * of a stored scenario are ever served. A copy is also saved where workers on this machine look for scenarios.
+ *
+ * Scenarios are content addressed: the scenario ID includes a checksum of its modifications, so a scenario stored
+ * under a given name never changes. A scenario that has already been saved or uploaded (for example because several
+ * regional analyses were run on the same variant) is therefore not written or uploaded again, and clients can cache
+ * scenarios fetched over HTTP indefinitely. The serialized scenarios are also kept in memory up to a total size, so
+ * they can be served without reading them from disk.
+ */
+public class ScenarioStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScenarioStore.class);
+
+    /** The total size of the serialized scenarios kept in memory. */
+    static final long MAX_CACHED_BYTES = 64 * 1024 * 1024;
+
+    /**
+     * Stored scenarios are named bundleId_projectId-variant-crc.json, where the IDs are database object IDs, the
+     * variant is -1 for the baseline, and the crc is a checksum of the modifications. Nothing else names a scenario.
+     */
+    private static final Pattern FILE_NAME_PATTERN =
+            Pattern.compile("[A-Za-z0-9]+_[A-Za-z0-9]+--?[0-9]+-[0-9]+\\.json");
+
+    /** Holds only scenarios, and is the only place they are served from. */
+    private final File directory;
+
+    /** Where workers on this machine look for scenarios, or null if they do not need a copy. */
+    private final File workerDirectory;
+
+    /** The client used to upload scenarios, or null if they should not be uploaded to S3. */
+    private final AmazonS3 s3;
+
+    private final String bucket;
+
+    private final Cache<String, byte[]> scenarioForFileName = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_BYTES)
+            .weigher((String fileName, byte[] scenario) -> scenario.length)
+            .build();
+
+    /** The scenarios uploaded to S3 since the backend started. */
+    private final Set<String> uploadedFileNames = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param directory where scenarios are stored and served from, which is created if it does not exist. Nothing
+     *                  else should be stored there.
+     * @param workerDirectory where workers on this machine look for scenarios, or null if they do not need a copy.
+     * @param s3 the client used to upload scenarios to the bucket, or null if scenarios are only stored locally.
+     */
+    public ScenarioStore (File directory, File workerDirectory, AmazonS3 s3, String bucket) {
+        directory.mkdirs();
+        this.directory = directory;
+        this.workerDirectory = workerDirectory;
+        this.s3 = s3;
+        this.bucket = bucket;
+    }
+
+    /** @return the name under which workers fetch the given scenario for the given bundle, in S3 or over HTTP. */
+    public static String getFileName (String bundleId, String scenarioId) {
+        return String.format("%s_%s.json", bundleId, scenarioId);
+    }
+
+    /**
+     * Save a scenario where workers can fetch it, unless it has already been saved. An exception is thrown if the
+     * scenario cannot be uploaded to S3, as workers would then be unable to fetch it.
+     *
+     * The upload blocks the calling thread rather than running in the background. The job is enqueued as soon as this
+     * returns, and workers fetch the scenario from S3 with the first tasks they receive, so an upload still in progress
+     * would make those tasks fail. An upload that fails must also fail the request that created the analysis, rather
+     * than leave a job none of whose tasks can be computed. Each scenario is uploaded only once, and is small.
+     */
+    public void save (String bundleId, Scenario scenario) throws IOException {
+        String fileName = getFileName(bundleId, scenario.id);
+        byte[] serializedScenario = JsonUtil.objectMapper.writeValueAsBytes(scenario);
+        scenarioForFileName.put(fileName, serializedScenario);
+        write(directory, fileName, serializedScenario);
+        if (workerDirectory != null) {
+            write(workerDirectory, fileName, serializedScenario);
+        }
+        if (s3 != null && uploadedFileNames.add(fileName)) {
+            try {
+                ObjectMetadata metadata = new ObjectMetadata();
+                metadata.setContentLength(serializedScenario.length);
+                metadata.setContentType("application/json");
+                s3.putObject(bucket, fileName, new ByteArrayInputStream(serializedScenario), metadata);
+            } catch (RuntimeException e) {
+                uploadedFileNames.remove(fileName);
+                throw e;
+            }
+        }
+    }
+
+    /** Write a scenario to a file in the given directory, unless it is already there. */
+    private static void write (File directory, String fileName, byte[] serializedScenario) {
+        File file = new File(directory, fileName);
+        if (file.exists()) return;
+        try {
+            // Write the file under another name first, so a worker on this machine never reads half of it.
+            File tempFile = new File(directory, fileName + ".tmp");
+            Files.write(tempFile.toPath(), serializedScenario);
+            Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            LOG.error("Error saving scenario to disk", e);
+        }
+    }
+
+    /**
+     * @return the serialized scenario stored under the given name, from memory or from disk, or null if there is no
+     *         such scenario.
+     */
+    public byte[] get (String fileName) throws IOException {
+        if (!FILE_NAME_PATTERN.matcher(fileName).matches()) return null;
+        byte[] serializedScenario = scenarioForFileName.getIfPresent(fileName);
+        if (serializedScenario == null) {
+            File file = new File(directory, fileName);
+            if (!file.exists()) return null;
+            serializedScenario = Files.readAllBytes(file.toPath());
+            scenarioForFileName.put(fileName, serializedScenario);
+        }
+        return serializedScenario;
+    }
+
+}
@@ -0,0 +1,94 @@
+package com.conveyal.taui.analysis;
+
+import com.conveyal.taui.AnalysisServerConfig;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalNotification;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps recent worker responses to single point requests in memory, so that a user switching back and forth between
+ * the same few origins and scenarios does not wait for the same travel times to be computed again.
+ *
+ * Responses are keyed on the project and a hash of the exact task sent to the worker. The task includes a CRC of the
+ * modifications in its scenario, so a response can never be returned for a scenario that has since been edited.
+ * Responses for a project are nevertheless discarded as soon as any of its modifications change, as they will not be
+ * requested again. The cache is limited to a total size in bytes, and the least recently used responses are evicted
+ * to stay within it.
+ */
+public class SinglePointCache {
+
+    static final int DEFAULT_SIZE_MB = 100;
+
+    private final Cache<String, SinglePointResponse> responses;
+
+    private final long maxBytes;
+
+    /** The total size of the responses in the cache, which Guava does not report itself. */
+    private final AtomicLong nBytes = new AtomicLong();
+
+    /** The statistics reported over the HTTP API for monitoring the cache. */
+    public static class Statistics {
+        public long hitCount;
+        public long missCount;
+        public double hitRate;
+        public long evictionCount;
+        public long entryCount;
+        public long bytes;
+        public long maxBytes;
+    }
+
+    /** @return the size of the cache set in the configuration file, in megabytes. */
+    public static int getConfiguredSizeMb () {
+        String sizeMb = AnalysisServerConfig.singlePointCacheMb;
+        return sizeMb == null ? DEFAULT_SIZE_MB : Integer.parseInt(sizeMb.trim());
+    }
+
+    public SinglePointCache (int sizeMb) {
+        this.maxBytes = sizeMb * 1024L * 1024L;
+        this.responses = CacheBuilder.newBuilder()
+                .maximumWeight(maxBytes)
+                .weigher((String key, SinglePointResponse response) -> response.body.length)
+                .removalListener((RemovalNotification<String, SinglePointResponse> removal) ->
+                        nBytes.addAndGet(-removal.getValue().body.length))
+                .recordStats()
+                .build();
+    }
+
+    private static String key (String projectId, String taskHash) {
+        return projectId + ":" + taskHash;
+    }
+
+    /** @return the response to the task with the given hash in the given project, or null if it is not cached. */
+    public SinglePointResponse get (String projectId, String taskHash) {
+        return responses.getIfPresent(key(projectId, taskHash));
+    }
+
+    /** Keep a response in the cache. Only successful responses should be cached. */
+    public void put (String projectId, String taskHash, SinglePointResponse response) {
+        nBytes.addAndGet(response.body.length);
+        responses.put(key(projectId, taskHash), response);
+    }
+
+    /** Discard all the responses for the given project, whose modifications have changed. */
+    public void invalidateProject (String projectId) {
+        String prefix = key(projectId, "");
+        responses.asMap().keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    public Statistics getStatistics () {
+        CacheStats stats = responses.stats();
+        Statistics statistics = new Statistics();
+        statistics.hitCount = stats.hitCount();
+        statistics.missCount = stats.missCount();
+        statistics.hitRate = stats.hitRate();
+        statistics.evictionCount = stats.evictionCount();
+        statistics.entryCount = responses.size();
+        statistics.bytes = nBytes.get();
+        statistics.maxBytes = maxBytes;
+        return statistics;
+    }
+
+}
@@ -0,0 +1,24 @@
+package com.conveyal.taui.analysis;
+
+import java.util.Map;
+
+/**
+ * A complete response from a worker to a single point request, which can be sent to any number of clients making the
+ * same request.
+ */
+public class SinglePointResponse {
+
+    public final int status;
+
+    /** The headers passed on from the worker, such as Content-Type and Content-Encoding. */
+    public final Map<String, String> headers;
+
+    public final byte[] body;
+
+    public SinglePointResponse (int status, Map<String, String> headers, byte[] body) {
+        this.status = status;
+        this.headers = headers;
+        this.body = body;
+    }
+
+}
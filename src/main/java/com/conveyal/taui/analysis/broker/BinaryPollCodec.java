@@ -0,0 +1,298 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import com.conveyal.r5.common.JsonUtilities;
+import com.google.common.io.LittleEndianDataInputStream;
+import com.google.common.io.LittleEndianDataOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A compact binary encoding of the worker poll exchange, used instead of JSON when a worker sends its poll request
+ * with the MEDIA_TYPE content type. The response to such a request is then encoded the same way.
+ *
+ * With JSON, every task sent to a worker is a complete clone of the job's template task, and every result returned
+ * carries its accessibility values as text. For large jobs that means most of the broker's time and bandwidth go to
+ * serializing and parsing the same template over and over. In this encoding the template for each job is sent at
+ * most once per worker (the worker lists the jobs whose templates it already holds), tasks are just task numbers,
+ * and accessibility values are packed little-endian ints. All integers are little-endian, and strings are in the
+ * modified UTF-8 used by DataOutput.writeUTF.
+ *
+ * Poll request:
+ * (int) protocol version
+ * (int) length in bytes, followed by the WorkerStatus as JSON, without any results
+ * (int) number of jobs whose templates the worker already holds, followed by (UTF) each of their job IDs
+ * (int) number of groups of results, each made up of:
+ *   (UTF) job ID, (int) number of results, (int) grids, (int) percentiles and (int) cutoffs per result
+ *   (repeated) (int) task ID followed by (grids * percentiles * cutoffs) accessibility values
+ *
+ * Poll response:
+ * (int) protocol version
+ * (int) number of jobs, each made up of:
+ *   (UTF) job ID
+ *   (int) length in bytes, followed by the template task as JSON, or zero if the worker already holds the template
+ *   (int) number of tasks, followed by (repeated int) the task numbers within the job
+ *
+ * Every count and length is checked against the number of bytes remaining before anything is allocated, so a corrupt
+ * or malicious message is rejected with an IOException rather than exhausting memory.
+ *
+ * The origin of each task is derived from its task number and the template in the same way as on the broker (see
+ * Job.setOrigin). The worker side of the exchange (encodeRequest and decodeResponse) is included here as a reference
+ * implementation for workers, and so both halves can be exercised together.
+ */
+public abstract class BinaryPollCodec {
+
+    public static final String MEDIA_TYPE = "application/x-analysis-poll";
+
+    public static final int PROTOCOL_VERSION = 1;
+
+    /** The contents of a binary poll request, once decoded. */
+    public static class PollRequest {
+        /** The worker's status, with its results field holding any results it returned. */
+        public WorkerStatus workerStatus;
+        /** The IDs of all jobs for which the worker already holds the template task. */
+        public Set<String> knownJobIds;
+    }
+
+    public static boolean isBinaryPoll (String contentType) {
+        return contentType != null && contentType.startsWith(MEDIA_TYPE);
+    }
+
+    public static PollRequest decodeRequest (byte[] body) throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+        LittleEndianDataInputStream in = new LittleEndianDataInputStream(bytes);
+        checkVersion(in.readInt());
+        PollRequest pollRequest = new PollRequest();
+        pollRequest.workerStatus = JsonUtilities.objectMapper.readValue(readBytes(in, bytes), WorkerStatus.class);
+        if (pollRequest.workerStatus == null) {
+            throw new IOException("Poll request has no worker status.");
+        }
+        // Each job ID is at least its two byte length.
+        int nKnownJobs = readCount(in, bytes, 2);
+        pollRequest.knownJobIds = new HashSet<>(nKnownJobs);
+        for (int j = 0; j < nKnownJobs; j++) {
+            pollRequest.knownJobIds.add(in.readUTF());
+        }
+        List<RegionalWorkResult> results = new ArrayList<>();
+        // Each group is at least a job ID and four ints.
+        int nGroups = readCount(in, bytes, 2 + 4 * Integer.BYTES);
+        for (int g = 0; g < nGroups; g++) {
+            String jobId = in.readUTF();
+            int nResults = in.readInt();
+            int nGrids = in.readInt();
+            int nPercentiles = in.readInt();
+            int nCutoffs = in.readInt();
+            long bytesPerResult = Integer.BYTES + checkValueBytes(bytes, nGrids, nPercentiles, nCutoffs);
+            checkCount(nResults, bytes, bytesPerResult);
+            for (int r = 0; r < nResults; r++) {
+                RegionalWorkResult result = new RegionalWorkResult();
+                result.jobId = jobId;
+                result.taskId = in.readInt();
+                result.accessibilityValues = new int[nGrids][nPercentiles][nCutoffs];
+                for (int[][] gridResult : result.accessibilityValues) {
+                    for (int[] percentileResult : gridResult) {
+                        for (int c = 0; c < nCutoffs; c++) {
+                            percentileResult[c] = in.readInt();
+                        }
+                    }
+                }
+                results.add(result);
+            }
+        }
+        pollRequest.workerStatus.results = results;
+        return pollRequest;
+    }
+
+    /**
+     * Encode the tasks being sent to a worker. The job's template task is only included if the worker does not
+     * already hold it. A batch always comes from a single job, but the format allows for any number of jobs.
+     */
+    public static byte[] encodeResponse (TaskBatch tasks, Set<String> knownJobIds) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+        out.writeInt(PROTOCOL_VERSION);
+        if (tasks.isEmpty()) {
+            out.writeInt(0);
+        } else {
+            out.writeInt(1);
+            out.writeUTF(tasks.getJobId());
+            if (knownJobIds.contains(tasks.getJobId())) {
+                out.writeInt(0);
+            } else {
+                writeBytes(out, JsonUtilities.objectMapper.writeValueAsBytes(tasks.templateTask));
+            }
+            out.writeInt(tasks.taskIds.length);
+            for (int taskId : tasks.taskIds) {
+                out.writeInt(taskId);
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /** Worker side: encode the worker's status and any results it is returning. */
+    public static byte[] encodeRequest (WorkerStatus workerStatus, Set<String> knownJobIds) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+        out.writeInt(PROTOCOL_VERSION);
+        // The results are sent separately below, so leave them out of the JSON.
+        List<RegionalWorkResult> results = workerStatus.results;
+        workerStatus.results = null;
+        try {
+            writeBytes(out, JsonUtilities.objectMapper.writeValueAsBytes(workerStatus));
+        } finally {
+            workerStatus.results = results;
+        }
+        out.writeInt(knownJobIds.size());
+        for (String jobId : knownJobIds) {
+            out.writeUTF(jobId);
+        }
+        // Start a new group whenever the job or the dimensions of the results change.
+        List<List<RegionalWorkResult>> groups = new ArrayList<>();
+        List<RegionalWorkResult> group = null;
+        if (results != null) {
+            for (RegionalWorkResult result : results) {
+                if (group == null || !sameShape(group.get(0), result)) {
+                    group = new ArrayList<>();
+                    groups.add(group);
+                }
+                group.add(result);
+            }
+        }
+        out.writeInt(groups.size());
+        for (List<RegionalWorkResult> resultGroup : groups) {
+            int[][][] firstValues = resultGroup.get(0).accessibilityValues;
+            out.writeUTF(resultGroup.get(0).jobId);
+            out.writeInt(resultGroup.size());
+            out.writeInt(firstValues.length);
+            out.writeInt(firstValues.length == 0 ? 0 : firstValues[0].length);
+            out.writeInt(firstValues.length == 0 || firstValues[0].length == 0 ? 0 : firstValues[0][0].length);
+            for (RegionalWorkResult result : resultGroup) {
+                out.writeInt(result.taskId);
+                for (int[][] gridResult : result.accessibilityValues) {
+                    for (int[] percentileResult : gridResult) {
+                        for (int value : percentileResult) {
+                            out.writeInt(value);
+                        }
+                    }
+                }
+            }
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Worker side: decode the tasks sent by the broker. Templates received are added to the supplied map, which
+     * should be retained between polls so its keys can be sent back as the known job IDs.
+     */
+    public static List<RegionalTask> decodeResponse (byte[] body, Map<String, RegionalTask> templates)
+            throws IOException {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(body);
+        LittleEndianDataInputStream in = new LittleEndianDataInputStream(bytes);
+        checkVersion(in.readInt());
+        List<RegionalTask> tasks = new ArrayList<>();
+        // Each job is at least a job ID and two ints.
+        int nJobs = readCount(in, bytes, 2 + 2 * Integer.BYTES);
+        for (int j = 0; j < nJobs; j++) {
+            String jobId = in.readUTF();
+            byte[] templateJson = readBytes(in, bytes);
+            if (templateJson.length > 0) {
+                templates.put(jobId, JsonUtilities.objectMapper.readValue(templateJson, RegionalTask.class));
+            }
+            RegionalTask template = templates.get(jobId);
+            if (template == null) {
+                throw new IOException("Broker sent tasks for job " + jobId + " without its template.");
+            }
+            int nTasks = readCount(in, bytes, Integer.BYTES);
+            for (int t = 0; t < nTasks; t++) {
+                RegionalTask task = template.clone();
+                Job.setOrigin(task, in.readInt());
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    private static boolean sameShape (RegionalWorkResult a, RegionalWorkResult b) {
+        if (!a.jobId.equals(b.jobId)) return false;
+        int[][][] va = a.accessibilityValues;
+        int[][][] vb = b.accessibilityValues;
+        if (va.length != vb.length) return false;
+        for (int g = 0; g < va.length; g++) {
+            if (va[g].length != vb[g].length) return false;
+            for (int p = 0; p < va[g].length; p++) {
+                if (va[g][p].length != vb[g][p].length) return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkVersion (int version) throws IOException {
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException("Unsupported poll protocol version " + version + ", expected " + PROTOCOL_VERSION);
+        }
+    }
+
+    private static void writeBytes (LittleEndianDataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Read a count of items that follow in the message.
+     * @param bytes the stream underlying the input, which knows how many bytes remain to be read.
+     * @param minBytesPerItem the smallest number of bytes each item can be encoded in.
+     * @throws IOException if the count is negative or too large for the remaining bytes to hold that many items.
+     */
+    private static int readCount (LittleEndianDataInputStream in, ByteArrayInputStream bytes, long minBytesPerItem)
+            throws IOException {
+        return checkCount(in.readInt(), bytes, minBytesPerItem);
+    }
+
+    private static int checkCount (int count, ByteArrayInputStream bytes, long minBytesPerItem) throws IOException {
+        if (count < 0) {
+            throw new IOException("Negative count " + count + " in poll message.");
+        }
+        if (count * minBytesPerItem > bytes.available()) {
+            throw new IOException("Count " + count + " is too large for the " + bytes.available() +
+                    " bytes remaining in the poll message.");
+        }
+        return count;
+    }
+
+    /**
+     * Check the dimensions of a group of results. Every result in a real analysis has at least one value, so each
+     * dimension must be positive, and the values of one result must fit in the remaining bytes.
+     * @return the number of bytes taken by the values of each result.
+     */
+    private static long checkValueBytes (ByteArrayInputStream bytes, int... dimensions) throws IOException {
+        long valueBytes = Integer.BYTES;
+        for (int dimension : dimensions) {
+            // Checking after each dimension keeps the product from overflowing.
+            valueBytes *= dimension;
+            if (dimension <= 0 || valueBytes > bytes.available()) {
+                throw new IOException("Results with dimensions " + Arrays.toString(dimensions) +
+                        " are invalid or too large for the poll message.");
+            }
+        }
+        return valueBytes;
+    }
+
+    private static byte[] readBytes (LittleEndianDataInputStream in, ByteArrayInputStream bytes) throws IOException {
+        byte[] result = new byte[readCount(in, bytes, 1)];
+        in.readFully(result);
+        return result;
+    }
+
+}
@@ -6,10 +6,9 @@ import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
 import com.conveyal.r5.analyst.cluster.WorkerStatus;
 import com.conveyal.taui.AnalysisServerConfig;
 import com.conveyal.taui.AnalysisServerException;
+import com.conveyal.taui.ExecutorServices;
 import com.conveyal.taui.GridResultAssembler;
 import com.conveyal.taui.analysis.RegionalAnalysisStatus;
-import com.google.common.collect.ListMultimap;
-import com.google.common.collect.MultimapBuilder;
 import gnu.trove.TCollections;
 import gnu.trove.map.TObjectLongMap;
 import gnu.trove.map.hash.TObjectLongHashMap;
@@ -20,20 +19,24 @@ import java.io.File;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 
 /**
  * This class distributes the tasks making up regional jobs to workers.
  *
- * It should aim to draw tasks fairly from all organizations, and fairly from all jobs within each organization,
- * while attempting to respect the transport network affinity of each worker, giving the worker tasks that require
- * the same network it has been using recently.
+ * It draws tasks fairly from all organizations, and fairly from all jobs within each organization (using weighted
+ * deficit round robin, see CategoryJobQueue), while respecting the transport network affinity of each worker, giving
+ * the worker tasks that require the same network it has been using recently. Organizations can be given a larger
+ * share of the workers with the access-group-weights configuration option.
  *
  * Previously workers long-polled for work, holding lots of connections open. Now they short-poll and sleep for a while
  * if there's no work. This is simpler and allows us to work withing much more standard HTTP frameworks.
@@ -52,28 +55,26 @@ import java.util.Properties;
  * It may also be helpful to mark jobs every time they are skipped in the LRU queue. Each time a job is serviced,
  * it is taken out of the queue and put at its end. Jobs that have not been serviced float to the top.
  *
- * Most methods on this class are synchronized, because they can be called from many HTTP handler threads at once.
- * TODO evaluate whether synchronizing all the functions to make this threadsafe is a performance issue.
+ * The methods on this class are called from many HTTP handler threads at once. Rather than synchronizing on the
+ * whole broker (which made every worker poll queue up behind a single lock), jobs are held in one CategoryJobQueue per
+ * WorkerCategory, each with its own lock. Workers polling for tasks on different networks never block one another.
+ *
+ * Unfinished jobs and their results so far are checkpointed to a JobStore in the local cache directory. When the
+ * backend restarts, those jobs are resumed where they left off instead of being lost with all the work spent on them.
  */
 public class Broker {
 
     private static final Logger LOG = LoggerFactory.getLogger(Broker.class);
 
-    public final ListMultimap<WorkerCategory, Job> jobs = MultimapBuilder.hashKeys().arrayListValues().build();
-
-    /** The most tasks to deliver to a worker at a time. */
-    public final int MAX_TASKS_PER_WORKER = 16;
-
-    /** Used when auto-starting spot instances. Set to a smaller value to increase the number of workers requested
-     * automatically*/
-    public final int TARGET_TASKS_PER_WORKER = 400;
-
-    /** We want to request spot instances to "boost" regional analyses after a few regional task results are received
-     * for a given workerCategory. Do so after receiving results for an arbitrary task toward the beginning of the job*/
-    public final int AUTO_START_SPOT_INSTANCES_AT_TASK  = MAX_TASKS_PER_WORKER * 2 + 10; //42
+    /**
+     * The jobs for each worker category, each queue guarded by its own lock. Queues are created on demand and
+     * never removed: there are few enough categories over the life of a server that the empty queues are harmless,
+     * and never removing them avoids racing with a job being enqueued in a category that is being emptied.
+     */
+    private final Map<WorkerCategory, CategoryJobQueue> jobQueues = new ConcurrentHashMap<>();
 
-    /** The maximum number of spot instances allowable in an automatic request */
-    public final int MAX_WORKERS_PER_CATEGORY = 100;
+    /** Sizes each delivery of tasks according to how quickly the polling worker has been completing them. */
+    private final WorkerThroughputTracker throughputTracker = new WorkerThroughputTracker();
 
     /**
      * How long to give workers to start up (in ms) before assuming that they have started (and starting more
@@ -90,14 +91,46 @@ public class Broker {
     /** Keeps track of all the workers that have contacted this broker recently asking for work. */
     protected WorkerCatalog workerCatalog = new WorkerCatalog();
 
+    /** Spreads single point requests across the workers in each category, and detects when more are needed. */
+    private final SinglePointRouter singlePointRouter =
+            new SinglePointRouter(workerCatalog, SinglePointRouter.getConfiguredLatencyThresholdMillis());
+
     /** If true, avoid using remote hosted services. */
     private boolean workOffline;
 
-    /** Amazon AWS SDK client. */
-    private EC2Launcher launcher;
+    /**
+     * When working offline, the local worker can run tasks on any network, so all jobs are held in a single queue
+     * under this category. That way tasks are shared fairly among all jobs rather than only within each network.
+     */
+    private static final WorkerCategory OFFLINE_CATEGORY = new WorkerCategory("OFFLINE", "OFFLINE");
+
+    /** The relative share of workers given to each access group. Groups not listed here have a weight of one. */
+    private final Map<String, Integer> accessGroupWeights;
 
-    /** These objects piece together results received from workers into one regional analysis result file per job. */
-    private static Map<String, GridResultAssembler> resultAssemblers = new HashMap<>();
+    /** The order in which the tasks of each new job are delivered. */
+    private final TaskOrdering.Type taskOrdering;
+
+    /**
+     * Starts workers, on EC2 or as local processes. This is null in test harnesses, and when working offline without
+     * local worker processes, in which case the single worker runs inside the server.
+     */
+    private final WorkerLauncher launcher;
+
+    /** Requests spot instances to speed up regional analyses, according to how quickly their tasks are completed. */
+    private FleetController fleetController;
+
+    /** The periodic tasks scheduled by this broker, which are cancelled when it is shut down. */
+    private final List<ScheduledFuture<?>> periodicTasks = new ArrayList<>();
+
+    /**
+     * An index of all unfinished jobs by their ID, maintained alongside the per-category queues. Results arrive
+     * from workers tagged only with their job ID, so this makes finding the job (and the GridResultAssembler it holds)
+     * for each result O(1) rather than a scan over all active jobs.
+     */
+    private final Map<String, Job> jobsById = new ConcurrentHashMap<>();
+
+    /** Saves unfinished jobs so they can be resumed after a restart. This is null if jobs are not saved. */
+    private final JobStore jobStore;
 
     /**
      * keep track of which graphs we have launched workers on and how long ago we launched them,
@@ -107,17 +140,124 @@ public class Broker {
             TObjectLongHashMap<>());
 
     public Broker () {
+        this(AnalysisServerConfig.offline, new JobStore(new File(AnalysisServerConfig.localCacheDirectory, "jobs")),
+                createLauncher());
+    }
+
+    /**
+     * This constructor allows overriding the offline setting from the configuration file, so that test harnesses
+     * can exercise the per-category delivery logic used in production while running on a local machine. Jobs are not
+     * saved, so harnesses neither resume real jobs nor leave their own jobs behind, and no workers are ever started.
+     * Harnesses should call shutdown when they are done with the broker.
+     */
+    Broker (boolean workOffline) {
+        this(workOffline, null, null);
+    }
+
+    private Broker (boolean workOffline, JobStore jobStore, WorkerLauncher launcher) {
         // print out date on startup so that CloudWatch logs has a unique fingerprint
         LOG.info("Analyst broker starting at {}", LocalDateTime.now().format(DateTimeFormatter.ISO_DATE_TIME));
 
-        this.workOffline = AnalysisServerConfig.offline;
+        this.workOffline = workOffline;
+        this.launcher = launcher;
 
-        if (!workOffline){
-            this.launcher = new EC2Launcher();
+        this.maxWorkers = AnalysisServerConfig.maxWorkers;
+        schedule(workerCatalog::purgeDeadWorkers, WorkerCatalog.PURGE_INTERVAL_SECONDS);
+        if (launcher != null && !workOffline) {
+            // The controller starts workers through the same checks as every other request for workers.
+            this.fleetController = new FleetController(jobQueues::values, workerCatalog, this::launchWorkers,
+                    maxWorkers);
+            schedule(fleetController, FleetController.CONTROL_INTERVAL_SECONDS);
         }
+        this.accessGroupWeights = parseAccessGroupWeights(AnalysisServerConfig.accessGroupWeights);
+        this.taskOrdering = TaskOrdering.Type.fromName(AnalysisServerConfig.taskOrdering);
+        this.jobStore = jobStore;
+        if (jobStore != null) {
+            for (Job job : jobStore.loadJobs(AnalysisServerConfig.resultsBucket)) {
+                jobsById.put(job.jobId, job);
+                whenUploaded(job, () -> jobStore.delete(job.jobId));
+                // A job whose results were all received before the restart is only waiting for them to be uploaded.
+                // It is not added to its queue, but the queue must exist for any late results and for deletion.
+                // Once its results are uploaded it is removed from the index, as it would be had it been completed
+                // by results received since the restart.
+                CategoryJobQueue queue = getOrCreateQueue(job.workerCategory);
+                if (job.isComplete()) {
+                    whenUploaded(job, () -> jobsById.remove(job.jobId, job));
+                } else {
+                    queue.add(job);
+                }
+            }
+            schedule(this::checkpointJobs, JobStore.CHECKPOINT_INTERVAL_SECONDS);
+        }
+    }
 
-        this.maxWorkers = AnalysisServerConfig.maxWorkers;
+    private static WorkerLauncher createLauncher () {
+        int nLocalWorkers = LocalWorkerLauncher.getConfiguredWorkerCount();
+        if (nLocalWorkers > 0) return new LocalWorkerLauncher(nLocalWorkers);
+        return AnalysisServerConfig.offline ? null : new EC2Launcher();
+    }
+
+    /**
+     * When working offline with local worker processes, start all of them. No workers are started on demand when
+     * working offline, so this is done once as the server starts.
+     * @return false if this broker does not start local worker processes.
+     */
+    public boolean startAllLocalWorkers () {
+        if (!workOffline || !(launcher instanceof LocalWorkerLauncher)) return false;
+        int nLocalWorkers = LocalWorkerLauncher.getConfiguredWorkerCount();
+        launcher.launch(null, null, null, nLocalWorkers, 0);
+        return true;
+    }
+
+    /** Run the given task every intervalSeconds on the shared periodic executor, until this broker is shut down. */
+    private void schedule (Runnable task, int intervalSeconds) {
+        periodicTasks.add(ExecutorServices.periodic.scheduleWithFixedDelay(task, intervalSeconds, intervalSeconds,
+                TimeUnit.SECONDS));
+    }
+
+    /**
+     * Stop all the periodic tasks of this broker, so that it can be garbage collected. The executor they ran on is
+     * shared, so it keeps running. The broker should not be used after this is called.
+     */
+    public void shutdown () {
+        for (ScheduledFuture<?> task : periodicTasks) {
+            task.cancel(false);
+        }
+        periodicTasks.clear();
+    }
+
+    /**
+     * Parse a list of access group weights such as "groupA:3,groupB:2".
+     * Entries that cannot be parsed are logged and skipped.
+     */
+    static Map<String, Integer> parseAccessGroupWeights (String weights) {
+        Map<String, Integer> weightForAccessGroup = new HashMap<>();
+        if (weights == null) return weightForAccessGroup;
+        for (String entry : weights.split(",")) {
+            if (entry.trim().isEmpty()) continue;
+            String[] parts = entry.split(":");
+            try {
+                weightForAccessGroup.put(parts[0].trim(), Integer.parseInt(parts[1].trim()));
+            } catch (RuntimeException e) {
+                LOG.error("Could not parse access group weight '{}', expected group:weight.", entry);
+            }
+        }
+        return weightForAccessGroup;
+    }
+
+    private int getAccessGroupWeight (String accessGroup) {
+        return accessGroupWeights.getOrDefault(accessGroup, 1);
+    }
+
+    /** Return the queue holding jobs in the given category, creating it if it does not exist. */
+    private CategoryJobQueue getOrCreateQueue (WorkerCategory category) {
+        return jobQueues.computeIfAbsent(workOffline ? OFFLINE_CATEGORY : category,
+                queueCategory -> new CategoryJobQueue(queueCategory, this::getAccessGroupWeight));
+    }
 
+    /** Return the queue holding jobs in the given category, or null if no job has ever been enqueued there. */
+    private CategoryJobQueue getQueue (WorkerCategory category) {
+        return jobQueues.get(workOffline ? OFFLINE_CATEGORY : category);
     }
 
     /**
@@ -127,16 +267,33 @@ public class Broker {
      * TODO push the creation of the TemplateTask down into this method, to avoid last two parameters?
      * TODO make the tags a simple Map from String -> String here and for worker startup.
      */
-    public synchronized void enqueueTasksForRegionalJob (RegionalTask templateTask, String accessGroup, String createdBy) {
+    public void enqueueTasksForRegionalJob (RegionalTask templateTask, String accessGroup, String createdBy) {
         LOG.info("Enqueuing tasks for job {} using template task.", templateTask.jobId);
-        if (findJob(templateTask.jobId) != null) {
+        if (jobsById.containsKey(templateTask.jobId)) {
             LOG.error("Someone tried to enqueue job {} but it already exists.", templateTask.jobId);
             throw new RuntimeException("Enqueued duplicate job " + templateTask.jobId);
         }
-        Job job = new Job(templateTask, accessGroup, createdBy);
-        jobs.put(job.workerCategory, job);
-        // Register the regional job so results received from multiple workers can be assembled into one file.
-        resultAssemblers.put(templateTask.jobId, new GridResultAssembler(templateTask, AnalysisServerConfig.resultsBucket));
+        // The job holds an assembler so results received from multiple workers can be assembled into one file.
+        GridResultAssembler assembler = jobStore == null
+                ? new GridResultAssembler(templateTask, AnalysisServerConfig.resultsBucket)
+                : new GridResultAssembler(templateTask, AnalysisServerConfig.resultsBucket,
+                        jobStore.getBufferFile(templateTask.jobId));
+        Job job = new Job(templateTask, accessGroup, createdBy, assembler, taskOrdering);
+        // Register the job in the index before it is visible in its queue, or early results could be discarded.
+        if (jobsById.putIfAbsent(job.jobId, job) != null) {
+            LOG.error("Someone tried to enqueue job {} but it already exists.", templateTask.jobId);
+            discardAssembler(assembler);
+            throw new RuntimeException("Enqueued duplicate job " + templateTask.jobId);
+        }
+        if (jobStore != null) {
+            try {
+                jobStore.saveMetadata(job);
+                whenUploaded(job, () -> jobStore.delete(job.jobId));
+            } catch (Exception e) {
+                LOG.error("Could not save job {}, it will not be resumed if the server restarts.", job.jobId, e);
+            }
+        }
+        getOrCreateQueue(job.workerCategory).add(job);
         if (AnalysisServerConfig.testTaskRedelivery) {
             // This is a fake job for testing, don't confuse the worker startup code below with null graph ID.
             return;
@@ -191,107 +348,211 @@ public class Broker {
             return;
         }
 
-        EC2RequestConfiguration config = new EC2RequestConfiguration(category, group, user);
-
-        launcher.launch(config, nOnDemand, nSpot);
+        if (!launchWorkers(category, group, user, nOnDemand, nSpot)) return;
 
         // Record the fact that we've requested an on-demand worker so we don't do it repeatedly.
         if (nOnDemand > 0) {
             recentlyRequestedWorkers.put(category, System.currentTimeMillis());
         }
-        LOG.info("Requested {} on-demand and {} spot workers on {}", nOnDemand, nSpot, config);
     }
 
     /**
-     * Attempt to find some tasks that match what a worker is requesting.
-     * Always returns a list, which may be empty if there is nothing to deliver.
+     * Every request for workers, whether on demand or from the FleetController, ends up here. Fake jobs used to test
+     * task redelivery have no real network, and brokers working offline or in test harnesses have no launcher, so no
+     * workers are started for them.
+     * @return true if the workers were requested.
      */
-    public synchronized List<RegionalTask> getSomeWork (WorkerCategory workerCategory) {
-        Job job;
-        if (AnalysisServerConfig.offline) {
-            // Working in offline mode; get tasks from the first job that has any tasks to deliver.
-            job = jobs.values().stream()
-                    .filter(j -> j.hasTasksToDeliver()).findFirst().orElse(null);
-        } else {
-            // This worker has a preferred network, get tasks from a job on that network.
-            job = jobs.get(workerCategory).stream()
-                    .filter(j -> j.hasTasksToDeliver()).findFirst().orElse(null);
+    private boolean launchWorkers (WorkerCategory category, String group, String user, int nOnDemand, int nSpot) {
+        if (workOffline || launcher == null || AnalysisServerConfig.testTaskRedelivery) {
+            LOG.info("Not starting workers on {}, this broker does not start workers.", category);
+            return false;
         }
-        if (job == null) {
-            // No matching job was found.
-            return Collections.EMPTY_LIST;
+        launcher.launch(category, group, user, nOnDemand, nSpot);
+        LOG.info("Requested {} on-demand and {} spot workers on {} for {} ({})",
+                nOnDemand, nSpot, category, user, group);
+        return true;
+    }
+
+    /**
+     * Handle a poll from a worker in a category held by this broker. Record any regional analysis results returned by
+     * the worker and the worker itself, then find some tasks for it.
+     * @return the tasks to send to the worker, which may be an empty batch if there is nothing to deliver.
+     */
+    public TaskBatch poll (WorkerStatus workerStatus) {
+        // Record any regional analysis results that were supplied by the worker and mark them completed.
+        acceptResults(workerStatus.results, workerStatus.workerId);
+        recordWorkerThroughput(workerStatus.workerId, workerStatus.results);
+        // Clear out the results field so it's not visible in the worker list API endpoint.
+        workerStatus.results = null;
+        // Add this worker to our catalog, tracking its graph affinity and the last time it was seen among other things.
+        recordWorkerObservation(workerStatus);
+        // See if any appropriate tasks exist for this worker.
+        return getSomeWork(workerStatus.getWorkerCategory(), workerStatus.workerId);
+    }
+
+    /**
+     * Attempt to find some tasks that match what a worker is requesting.
+     * Always returns a batch, which may be empty if there is nothing to deliver.
+     * @param workerId identifies the polling worker, so the batch can be sized according to its recent throughput.
+     */
+    public TaskBatch getSomeWork (WorkerCategory workerCategory, String workerId) {
+        TaskBatch tasks = findSomeWork(workerCategory, throughputTracker.getTasksPerPoll(workerId), workerId);
+        throughputTracker.recordDelivery(workerId, tasks.taskIds.length);
+        return tasks;
+    }
+
+    private TaskBatch findSomeWork (WorkerCategory workerCategory, int maxTasks, String workerId) {
+        // This worker has a preferred network, get up to N tasks from a job on that network.
+        // When working offline, all jobs are in a single queue whatever their network.
+        CategoryJobQueue queue = getQueue(workerCategory);
+        if (queue == null) {
+            // No job has ever been enqueued on this network.
+            return TaskBatch.EMPTY;
         }
-        // Return up to N tasks that are waiting to be processed.
-        return job.generateSomeTasksToDeliver(MAX_TASKS_PER_WORKER);
+        return queue.getSomeWork(maxTasks, workerId, throughputTracker);
     }
 
     /**
-     * Take a normal (non-priority) task out of a job queue, marking it as completed so it will not be re-delivered.
-     * The result of the computation is supplied.
-     * TODO separate completion out from returning the work product, since they have different synchronization requirements
-     * this would also allow returning errors as JSON and the grid result separately.
-     * @return whether the task was found and removed.
+     * Accept all the regional analysis results a worker returned in one poll: write them into the results file of
+     * each job, and mark their tasks as completed so they will not be redelivered. The results are grouped by job, so
+     * each job is looked up once and its queue's lock is taken once, and the cost of a poll is proportional to the
+     * number of jobs it touches rather than the number of results. A worker's results usually all belong to one job.
+     * @param workerId the worker that returned the results, or null if it is not known.
      */
-    public synchronized boolean markTaskCompleted (RegionalWorkResult workResult) {
-        String jobId = workResult.jobId;
-        int taskId = workResult.taskId;
-        Job job = findJob(jobId);
-        if (job == null) {
-            LOG.error("Could not find a job with ID {} and therefore could not mark the task as completed.", jobId);
-            return false;
+    public void acceptResults (List<RegionalWorkResult> workResults, String workerId) {
+        if (workResults.isEmpty()) return;
+        Map<String, List<RegionalWorkResult>> resultsForJob = new HashMap<>();
+        for (RegionalWorkResult workResult : workResults) {
+            resultsForJob.computeIfAbsent(workResult.jobId, jobId -> new ArrayList<>()).add(workResult);
         }
-        if (!job.markTaskCompleted(taskId)) {
-            LOG.error("Failed to mark task {} completed on job {}.", taskId, jobId);
+        for (Map.Entry<String, List<RegionalWorkResult>> entry : resultsForJob.entrySet()) {
+            String jobId = entry.getKey();
+            List<RegionalWorkResult> jobResults = entry.getValue();
+            Job job = findJob(jobId);
+            if (job == null) {
+                LOG.error("Received {} results for unrecognized job ID {}, discarding.", jobResults.size(), jobId);
+                continue;
+            }
+            // Results are written before their tasks are marked as completed, which checkpoints rely on.
+            job.resultAssembler.handleMessages(jobResults);
+            // Once the last task is marked as completed, the job is finished and the queue purges it to free memory.
+            if (getOrCreateQueue(job.workerCategory).markTasksCompleted(job, jobResults, workerId)) {
+                // The results are still being compressed and uploaded in the background. Keep the job in the index
+                // until that's done, so its status and partial results remain available. If the upload fails we keep
+                // the job around so the UI can see that it failed, until the regional analysis is deleted.
+                whenUploaded(job, () -> jobsById.remove(jobId, job));
+            }
         }
-        // Once the last task is marked as completed, the job is finished. Purge it from the list to free memory.
-        if (job.isComplete()) {
-            job.verifyComplete();
-            jobs.remove(job.workerCategory, job);
-            // This method is called after the regional work results are handled, finishing and closing the local file.
-            // So we can harmlessly remove the GridResultAssembler now that the job is removed.
-            resultAssemblers.remove(jobId);
+    }
+
+    /** Run the given action once the results of the given job have been uploaded, unless the upload fails. */
+    private static void whenUploaded (Job job, Runnable action) {
+        job.resultAssembler.whenFinalized(() -> {
+            if (job.resultAssembler.getStage() == RegionalAnalysisStatus.Stage.DONE) {
+                action.run();
+            }
+        });
+    }
+
+    /**
+     * Save the completed tasks of every job that is still receiving results, after flushing the results themselves
+     * to disk. This is run periodically, and must never throw an exception or it would not be run again.
+     */
+    private void checkpointJobs () {
+        for (Job job : jobsById.values()) {
+            if (job.resultAssembler.getStage() != RegionalAnalysisStatus.Stage.ASSEMBLING) continue;
+            try {
+                // Results are written before their tasks are marked as completed, so all the tasks in this copy have
+                // their results in the buffer, which is flushed only after the copy is made.
+                BitSet completedTasks = getOrCreateQueue(job.workerCategory).copyCompletedTasks(job);
+                job.resultAssembler.flush();
+                // The job may have been deleted while it was being saved.
+                if (jobsById.get(job.jobId) == job) {
+                    jobStore.saveCompletedTasks(job.jobId, completedTasks);
+                }
+            } catch (Exception e) {
+                LOG.error("Could not save the progress of job {}.", job.jobId, e);
+            }
         }
-        return true;
     }
 
     /** Find the job for the given jobId, returning null if that job does not exist. */
     public Job findJob (String jobId) {
-        return jobs.values().stream().filter(job -> job.jobId.equals(jobId)).findFirst().orElse(null);
+        return jobsById.get(jobId);
     }
 
     /**
      * Delete the job with the given ID.
      */
-    public synchronized boolean deleteJob (String jobId) {
+    public boolean deleteJob (String jobId) {
         // Remove the job from the broker so we stop distributing its tasks to workers.
-        Job job = findJob(jobId);
+        Job job = jobsById.remove(jobId);
         if (job == null) return false;
-        boolean success = jobs.remove(job.workerCategory, job);
+        // A job that has received all its results, or failed, has already left its queue. That is not an error.
+        boolean success = getQueue(job.workerCategory).remove(job) || job.isComplete()
+                || job.resultAssembler.getStage() != RegionalAnalysisStatus.Stage.ASSEMBLING;
+        if (jobStore != null) {
+            jobStore.delete(jobId);
+        }
         // Shut down the object used for assembling results, removing its associated temporary disk file.
-        // TODO just put the assembler in the Job object
-        GridResultAssembler assembler = resultAssemblers.remove(jobId);
+        if (!discardAssembler(job.resultAssembler)) {
+            success = false;
+        }
+        // TODO where do we delete the regional analysis from Persistence so it doesn't show up in the UI after deletion?
+        return success;
+    }
+
+    /** Shut down a result assembler, removing its temporary disk file. Returns whether this succeeded. */
+    private boolean discardAssembler (GridResultAssembler assembler) {
         try {
             assembler.terminate();
+            return true;
         } catch (Exception e) {
             LOG.error("Could not terminate grid result assembler, this may waste disk space. Reason: {}", e.toString());
-            success = false;
+            return false;
         }
-        // TODO where do we delete the regional analysis from Persistence so it doesn't show up in the UI after deletion?
-        return success;
     }
 
     /**
-     * Given a worker commit ID and transport network, return the IP or DNS name of a worker that has that software
-     * and network already loaded. If none exist, return null and try to start one.
+     * Given a worker commit ID and transport network, choose a worker that has that software and network already
+     * loaded to handle a single point request on the given scenario. The request is counted as in progress on that
+     * worker until it is passed to finishSinglePoint, which must always be called.
+     * @return the IP or DNS name of the chosen worker along with its ID, or null if there are no workers in the
+     *         category, in which case the caller should attempt to create some.
      */
-    public synchronized String getWorkerAddress(WorkerCategory workerCategory) {
+    public SinglePointRouter.Route routeSinglePoint (WorkerCategory workerCategory, String scenarioId) {
         if (workOffline) {
-            return "localhost";
+            if (launcher == null) {
+                // The single worker runs inside this server.
+                return singlePointRouter.routeTo(workerCategory, "localhost", "localhost");
+            }
+            // Each local worker process can load any network, so requests are spread across all of them.
+            return singlePointRouter.routeToAnyWorker(workerCategory, scenarioId);
+        }
+        return singlePointRouter.route(workerCategory, scenarioId);
+    }
+
+    /** @return the port on which the worker chosen for a single point request listens for it. */
+    public int getSinglePointPort (SinglePointRouter.Route route) {
+        return launcher == null ? AnalysisServerConfig.workerPort : launcher.getWorkerPort(route.workerId);
+    }
+
+    /**
+     * Record that a worker has responded to a single point request. If single point requests in its category have
+     * become slow, start another worker to share them.
+     * @param user only used to tag any newly created instance
+     * @param group only used to tag any newly created instance
+     */
+    public void finishSinglePoint (SinglePointRouter.Route route, String group, String user) {
+        if (singlePointRouter.finish(route)) {
+            LOG.info("Single point requests on {} are slow, starting another worker.", route.category);
+            try {
+                createOnDemandWorkerInCategory(route.category, group, user);
+            } catch (AnalysisServerException e) {
+                // The maximum number of workers has been reached. The request itself has already been answered.
+                LOG.warn("Could not start another worker for single point requests: {}", e.getMessage());
+            }
         }
-        // First try to get a worker that's already loaded the right network.
-        // This value will be null if no workers exist in this category - caller should attempt to create some.
-        String workerAddress = workerCatalog.getSinglePointWorkerAddressForCategory(workerCategory);
-        return workerAddress;
     }
 
 
@@ -308,87 +569,93 @@ public class Broker {
      * The returned objects are designed to be serializable so they can be returned over an HTTP API.
      */
     public Collection<JobStatus> getJobSummary() {
-        List<JobStatus> jobStatusList = new ArrayList<>();
-        for (Job job : this.jobs.values()) {
-            jobStatusList.add(new JobStatus(job));
-        }
+        List<JobStatus> jobStatusList = getJobStatuses();
         // Add a summary of all jobs to the list.
-        jobStatusList.add(new JobStatus(jobStatusList));
+        jobStatusList.add(new JobStatus(jobStatusList, getActiveWorkers()));
         return jobStatusList;
     }
 
     /**
-     * Record information that a worker sent about itself.
+     * @return the number of workers that have recently completed tasks in any job on this broker. Each worker is in a
+     *         single category, so the workers counted in each category are distinct.
      */
-    public void recordWorkerObservation(WorkerStatus workerStatus) {
-        workerCatalog.catalog(workerStatus);
+    public int getActiveWorkers () {
+        int activeWorkers = 0;
+        for (CategoryJobQueue queue : jobQueues.values()) {
+            activeWorkers += queue.throughput.getActiveWorkers();
+        }
+        return activeWorkers;
+    }
+
+    /** Get the status of all unfinished jobs being managed by this broker, without a summary. */
+    public List<JobStatus> getJobStatuses () {
+        List<JobStatus> jobStatusList = new ArrayList<>();
+        for (CategoryJobQueue queue : jobQueues.values()) {
+            jobStatusList.addAll(queue.getJobStatuses());
+        }
+        return jobStatusList;
     }
 
     /**
-     * Slots a single regional work result received from a worker into the appropriate position in the appropriate file.
-     * Also considers requesting extra spot instances after a few results have been received. The checks in place
-     * should prevent an unduly large number of workers from proliferating, assuming jobs for a given worker category (transport
-     * network + R5 version) are completed sequentially.
-     * @param workResult an object representing accessibility results for a single-origin, sent by a worker.
+     * Record that a worker polled, returning the given results. This is used to estimate how many tasks the worker
+     * can complete in a given amount of time. Call this before fetching more work for the worker.
      */
-    public void handleRegionalWorkResult (RegionalWorkResult workResult) {
-        GridResultAssembler assembler = resultAssemblers.get(workResult.jobId);
-        if (assembler == null) {
-            LOG.error("Received result for unrecognized job ID {}, discarding.", workResult.jobId);
-        } else {
-            assembler.handleMessage(workResult);
-            // When results for the task with the magic number are received, consider boosting the job by starting EC2
-            // spot instances
-            if (workResult.taskId == AUTO_START_SPOT_INSTANCES_AT_TASK) {
-                requestExtraWorkersIfAppropriate(workResult);
-            }
-        }
+    public void recordWorkerThroughput (String workerId, List<RegionalWorkResult> results) {
+        throughputTracker.recordPoll(workerId, results);
     }
 
-    private void requestExtraWorkersIfAppropriate(RegionalWorkResult workResult) {
-        Job job = findJob(workResult.jobId);
-        WorkerCategory workerCategory = job.workerCategory;
-        int categoryWorkersAlreadyRunning = workerCatalog.countWorkersInCategory(workerCategory);
-        if (categoryWorkersAlreadyRunning < MAX_WORKERS_PER_CATEGORY) {
-            // Start a number of workers that scales with the number of total tasks, up to a fixed number.
-            // TODO more refined determination of number of workers to start (e.g. using tasks per minute)
-            int nSpot = Math.min(MAX_WORKERS_PER_CATEGORY, job.nTasksTotal / TARGET_TASKS_PER_WORKER) -
-                    categoryWorkersAlreadyRunning;
-            createWorkersInCategory(job.workerCategory, job.accessGroup, job.createdBy, 0, nSpot);
-        }
+    /**
+     * Record information that a worker sent about itself.
+     */
+    public void recordWorkerObservation(WorkerStatus workerStatus) {
+        workerCatalog.catalog(workerStatus);
     }
 
     /**
      * Returns a simple status object intended to inform the UI of job progress.
      */
     public RegionalAnalysisStatus getJobStatus (String jobId) {
-        GridResultAssembler gridResultAssembler = resultAssemblers.get(jobId);
-        if (gridResultAssembler == null) {
+        Job job = findJob(jobId);
+        if (job == null) {
             return null;
         } else {
-            return new RegionalAnalysisStatus(gridResultAssembler);
+            return new RegionalAnalysisStatus(job.resultAssembler, job.throughput);
+        }
+    }
+
+    /**
+     * @return the status of every job known to this broker by job ID, including jobs whose results are still being
+     *         uploaded or failed to upload.
+     */
+    public Map<String, RegionalAnalysisStatus> getJobStatusesById () {
+        Map<String, RegionalAnalysisStatus> statuses = new HashMap<>();
+        for (Job job : jobsById.values()) {
+            statuses.put(job.jobId, new RegionalAnalysisStatus(job.resultAssembler, job.throughput));
         }
+        return statuses;
     }
 
     public File getPartialRegionalAnalysisResults (String jobId) {
-        GridResultAssembler gridResultAssembler = resultAssemblers.get(jobId);
-        if (gridResultAssembler == null) {
+        Job job = findJob(jobId);
+        if (job == null) {
             return null;
         } else {
-            return gridResultAssembler.getBufferFile();
+            // Once the results are on S3 the buffer file has been deleted, so they must be fetched from S3.
+            if (job.resultAssembler.getStage() == RegionalAnalysisStatus.Stage.DONE) return null;
+            return job.resultAssembler.getBufferFile();
         }
     }
 
     public boolean anyJobsActive () {
-        for (Job job : jobs.values()) {
-            if (!job.isComplete()) return true;
+        for (CategoryJobQueue queue : jobQueues.values()) {
+            if (queue.anyJobsActive()) return true;
         }
         return false;
     }
 
     public void logJobStatus() {
-        for (Job job : jobs.values()) {
-            LOG.info(job.toString());
+        for (CategoryJobQueue queue : jobQueues.values()) {
+            queue.logJobStatus();
         }
     }
 }
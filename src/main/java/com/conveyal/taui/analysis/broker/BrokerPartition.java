@@ -0,0 +1,382 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.taui.AnalysisServerConfig;
+import com.conveyal.taui.AnalysisServerException;
+import com.conveyal.taui.analysis.RegionalAnalysisStatus;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.hash.Hashing;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.util.EntityUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Divides the work of the broker among several backend nodes, so that the worker fleet is not limited by how many
+ * polls and results a single backend process can handle. Each node runs its own Broker, and every WorkerCategory is
+ * owned by exactly one node, which holds all the jobs in that category. The nodes are listed in the broker-nodes
+ * configuration option, which must be identical on every node, and each node finds itself in the list by its
+ * server-address and server-port.
+ *
+ * Categories are assigned to nodes by rendezvous hashing: each category goes to the node with the highest hash of the
+ * node and category together. This needs no coordination between the nodes, and when a node is added or removed only
+ * the categories owned by that node move. Workers are started by the node that owns their category and poll that node
+ * directly, so in the usual case a poll is handled by a single node. A worker that polls a node which does not own its
+ * category (for example because a single point request loaded a different network) has its poll forwarded to the
+ * owner, and the worker is also recorded by the node it polls so that single point requests arriving there can use it.
+ * Requests to create or delete jobs are forwarded to the owner in the same way, and the status of jobs is gathered
+ * from all the nodes. Each node starts its own workers, so max-workers applies to each node separately. Jobs are not
+ * moved when the list of nodes changes, so it should only be changed when no jobs are running.
+ *
+ * With a single node, which is always the case when working offline, every operation is passed straight to the local
+ * broker and this class makes no HTTP requests.
+ */
+public class BrokerPartition {
+
+    private static final Logger LOG = LoggerFactory.getLogger(BrokerPartition.class);
+
+    /**
+     * Set on requests forwarded from one node to another. A node receiving a forwarded request always handles it
+     * itself, so that nodes that disagree about ownership (because their configuration differs) never forward a
+     * request back and forth.
+     */
+    public static final String FORWARDED_HEADER = "X-Analysis-Broker-Forwarded";
+
+    /**
+     * Set on requests forwarded from one node to another, holding the secret shared by all the nodes. The endpoints
+     * through which nodes create, inspect and delete one another's jobs are not authenticated like the rest of the API,
+     * so they only accept requests that carry this secret.
+     */
+    public static final String SECRET_HEADER = "X-Analysis-Broker-Secret";
+
+    /** The statuses of the jobs on other nodes are cached for this long, as they are read once per analysis. */
+    static final int REMOTE_STATUS_CACHE_SECONDS = 5;
+
+    static final int CONNECT_TIMEOUT_MILLIS = 5 * 1000;
+
+    static final int SOCKET_TIMEOUT_MILLIS = 60 * 1000;
+
+    /** The response of another node to a forwarded request. */
+    public static class ForwardedResponse {
+        public final int status;
+        public final String contentType;
+        public final byte[] body;
+        ForwardedResponse (int status, String contentType, byte[] body) {
+            this.status = status;
+            this.contentType = contentType;
+            this.body = body;
+        }
+    }
+
+    /** The broker holding the jobs in the categories owned by this node. */
+    public final Broker broker;
+
+    /** The address and port of this node, as it appears in the list of nodes. */
+    public final String localNode;
+
+    private final List<String> nodes;
+
+    /** The secret shared by all the nodes, or null if there is only one node. */
+    private final String secret;
+
+    private HttpClient httpClient;
+
+    /** For each other node, the status of each job on that node by job ID. */
+    private LoadingCache<String, Map<String, RegionalAnalysisStatus>> remoteStatuses;
+
+    /** Partition the broker's work as set in the configuration file. */
+    public BrokerPartition (Broker broker) {
+        this(broker, AnalysisServerConfig.serverAddress + ":" + AnalysisServerConfig.serverPort,
+                AnalysisServerConfig.offline ? null : AnalysisServerConfig.brokerNodes,
+                AnalysisServerConfig.brokerSecret);
+    }
+
+    /**
+     * @param nodes a comma separated list of the addresses and ports of all the nodes, or null if there is only one.
+     * @param secret the secret shared by all the nodes, which must be given if there is more than one.
+     */
+    BrokerPartition (Broker broker, String localNode, String nodes, String secret) {
+        this.broker = broker;
+        this.localNode = localNode;
+        this.nodes = nodes == null ? Collections.singletonList(localNode) : Arrays.stream(nodes.split(","))
+                .map(String::trim)
+                .filter(node -> !node.isEmpty())
+                .collect(Collectors.toList());
+        if (!this.nodes.contains(localNode)) {
+            throw new IllegalArgumentException("This node " + localNode + " is not among the broker nodes " + nodes);
+        }
+        this.secret = secret;
+        if (isPartitioned() && (secret == null || secret.trim().isEmpty())) {
+            throw new IllegalArgumentException("A broker-secret must be configured when broker-nodes are listed.");
+        }
+        if (isPartitioned()) {
+            LOG.info("Partitioning worker categories among broker nodes {}, this node is {}.", this.nodes, localNode);
+            RequestConfig requestConfig = RequestConfig.custom()
+                    .setConnectTimeout(CONNECT_TIMEOUT_MILLIS)
+                    .setSocketTimeout(SOCKET_TIMEOUT_MILLIS)
+                    .build();
+            // Polls from many workers may be forwarded to the same node at once.
+            httpClient = HttpClients.custom()
+                    .setDefaultRequestConfig(requestConfig)
+                    .setMaxConnPerRoute(100)
+                    .setMaxConnTotal(100 * this.nodes.size())
+                    .build();
+            remoteStatuses = CacheBuilder.newBuilder()
+                    .expireAfterWrite(REMOTE_STATUS_CACHE_SECONDS, TimeUnit.SECONDS)
+                    .build(CacheLoader.from(this::fetchJobStatuses));
+        }
+    }
+
+    public boolean isPartitioned () {
+        return nodes.size() > 1;
+    }
+
+    /** @return the address and port of the node that holds the jobs in the given category. */
+    public String getOwner (WorkerCategory category) {
+        if (!isPartitioned()) return localNode;
+        String owner = null;
+        long ownerHash = Long.MIN_VALUE;
+        for (String node : nodes) {
+            long hash = Hashing.murmur3_128().newHasher()
+                    .putString(node, StandardCharsets.UTF_8)
+                    .putString(String.valueOf(category.graphId), StandardCharsets.UTF_8)
+                    .putString(String.valueOf(category.workerVersion), StandardCharsets.UTF_8)
+                    .hash().asLong();
+            if (owner == null || hash > ownerHash) {
+                owner = node;
+                ownerHash = hash;
+            }
+        }
+        return owner;
+    }
+
+    /**
+     * @param forwardedBy the node that the request claims to be forwarded by, from the FORWARDED_HEADER.
+     * @param secret the secret sent with the request, from the SECRET_HEADER.
+     * @return true if the request came from another one of the broker nodes.
+     */
+    public boolean isFromOtherNode (String forwardedBy, String secret) {
+        if (!isPartitioned() || forwardedBy == null || secret == null) return false;
+        if (forwardedBy.equals(localNode) || !nodes.contains(forwardedBy)) return false;
+        // Compare in constant time so the secret cannot be guessed from how long the comparison takes.
+        return MessageDigest.isEqual(secret.getBytes(StandardCharsets.UTF_8),
+                this.secret.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public boolean isLocal (WorkerCategory category) {
+        return getOwner(category).equals(localNode);
+    }
+
+    private List<String> getRemoteNodes () {
+        return nodes.stream().filter(node -> !node.equals(localNode)).collect(Collectors.toList());
+    }
+
+    /** Enqueue a regional job on the node that owns its category. See Broker.enqueueTasksForRegionalJob. */
+    public void enqueueTasksForRegionalJob (RegionalTask templateTask, String accessGroup, String createdBy) {
+        String owner = getOwner(new WorkerCategory(templateTask.graphId, templateTask.workerVersion));
+        if (owner.equals(localNode)) {
+            broker.enqueueTasksForRegionalJob(templateTask, accessGroup, createdBy);
+            return;
+        }
+        LOG.info("Enqueuing job {} on broker node {}.", templateTask.jobId, owner);
+        JobStore.JobMetadata metadata = new JobStore.JobMetadata();
+        metadata.templateTask = templateTask;
+        metadata.accessGroup = accessGroup;
+        metadata.createdBy = createdBy;
+        try {
+            HttpPost post = new HttpPost("http://" + owner + "/internal/jobs");
+            post.setEntity(new ByteArrayEntity(JsonUtilities.objectMapper.writeValueAsBytes(metadata),
+                    ContentType.APPLICATION_JSON));
+            ForwardedResponse response = execute(post);
+            if (response.status != 200) {
+                throw new IOException("Broker node " + owner + " responded with status " + response.status);
+            }
+        } catch (IOException e) {
+            throw AnalysisServerException.unknown(e);
+        }
+    }
+
+    /**
+     * Delete the job with the given ID from whichever node holds it.
+     * @return whether the job was found and deleted.
+     */
+    public boolean deleteJob (String jobId) {
+        if (broker.deleteJob(jobId)) return true;
+        for (String node : getRemoteNodes()) {
+            try {
+                if (execute(new HttpDelete("http://" + node + "/internal/jobs/" + jobId)).status == 200) {
+                    return true;
+                }
+            } catch (IOException e) {
+                LOG.error("Could not delete job {} from broker node {}: {}", jobId, node, e.toString());
+            }
+        }
+        return false;
+    }
+
+    /** @return the status of the given job on whichever node holds it, or null if no node holds the job. */
+    public RegionalAnalysisStatus getJobStatus (String jobId) {
+        RegionalAnalysisStatus status = broker.getJobStatus(jobId);
+        if (status != null || !isPartitioned()) return status;
+        for (String node : getRemoteNodes()) {
+            status = remoteStatuses.getUnchecked(node).get(jobId);
+            if (status != null) return status;
+        }
+        return null;
+    }
+
+    /** Fetch the status of every job on another node, or no statuses if the node cannot be reached. */
+    private Map<String, RegionalAnalysisStatus> fetchJobStatuses (String node) {
+        try {
+            ForwardedResponse response = execute(new HttpGet("http://" + node + "/internal/jobs/status"));
+            return JsonUtilities.objectMapper.readValue(response.body,
+                    new TypeReference<Map<String, RegionalAnalysisStatus>>() { });
+        } catch (IOException e) {
+            LOG.error("Could not fetch job statuses from broker node {}: {}", node, e.toString());
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Get the status of all unfinished jobs on all nodes, followed by a summary of all of them.
+     * See Broker.getJobSummary.
+     */
+    public Collection<JobStatus> getJobSummary () {
+        List<JobStatus> jobStatuses = new ArrayList<>();
+        for (JobStatus status : broker.getJobStatuses()) {
+            status.node = localNode;
+            jobStatuses.add(status);
+        }
+        // Categories are partitioned among the nodes, so each node counts a distinct set of active workers.
+        int activeWorkers = broker.getActiveWorkers();
+        for (String node : getRemoteNodes()) {
+            try {
+                ForwardedResponse response = execute(new HttpGet("http://" + node + "/internal/jobs"));
+                for (JobStatus status : JsonUtilities.objectMapper.readValue(response.body, JobStatus[].class)) {
+                    if (JobStatus.SUMMARY_ID.equals(status.jobId)) {
+                        activeWorkers += status.activeWorkers;
+                        continue;
+                    }
+                    status.node = node;
+                    jobStatuses.add(status);
+                }
+            } catch (IOException e) {
+                LOG.error("Could not fetch jobs from broker node {}: {}", node, e.toString());
+            }
+        }
+        jobStatuses.add(new JobStatus(jobStatuses, activeWorkers));
+        return jobStatuses;
+    }
+
+    /**
+     * The partial results of a large job can be hundreds of megabytes, so they are streamed from the other node rather
+     * than read into memory. The caller must close the returned stream, which releases the connection to the node.
+     * @return the partial results of a job held by another node, as an access grid, or null if no other node is still
+     *         receiving results for that job.
+     */
+    public InputStream getRemotePartialResults (String jobId) {
+        if (!isPartitioned()) return null;
+        for (String node : getRemoteNodes()) {
+            // Only contact the node holding the job, so fetching the results of finished jobs makes no requests.
+            RegionalAnalysisStatus status = remoteStatuses.getUnchecked(node).get(jobId);
+            if (status == null || status.stage == RegionalAnalysisStatus.Stage.DONE) continue;
+            HttpEntity entity = null;
+            try {
+                HttpResponse response = send(new HttpGet("http://" + node + "/internal/jobs/" + jobId + "/partial"));
+                entity = response.getEntity();
+                if (response.getStatusLine().getStatusCode() == 200 && entity != null) {
+                    return entity.getContent();
+                }
+            } catch (IOException e) {
+                LOG.error("Could not fetch partial results of job {} from broker node {}: {}", jobId, node,
+                        e.toString());
+            }
+            // Release the connection back to the pool.
+            EntityUtils.consumeQuietly(entity);
+        }
+        return null;
+    }
+
+    /**
+     * Forward a worker's poll to the node that owns the worker's category, which records any results it contains and
+     * responds with tasks for the worker. The worker is also recorded in the catalog of this node, as single point
+     * requests that arrive at this node are sent to the workers in this node's catalog.
+     * @param workerStatus the status decoded from the body of the poll, whose results are removed.
+     * @return the owner's response, or null if the owner could not be reached.
+     */
+    public ForwardedResponse forwardPoll (WorkerStatus workerStatus, byte[] body, String contentType) {
+        // The results are in the body forwarded to the owner, and should not be visible in the worker list.
+        workerStatus.results = null;
+        broker.recordWorkerObservation(workerStatus);
+        String owner = getOwner(workerStatus.getWorkerCategory());
+        try {
+            HttpPost post = new HttpPost("http://" + owner + "/internal/poll");
+            post.setEntity(contentType == null
+                    ? new ByteArrayEntity(body)
+                    : new ByteArrayEntity(body, ContentType.parse(contentType)));
+            return execute(post);
+        } catch (Exception e) {
+            LOG.error("Could not forward poll to broker node {}: {}", owner, e.toString());
+            return null;
+        }
+    }
+
+    /** Send a request to another node, marked as forwarded, and read the whole response. */
+    private ForwardedResponse execute (HttpRequestBase request) throws IOException {
+        HttpEntity entity = null;
+        try {
+            HttpResponse response = send(request);
+            entity = response.getEntity();
+            String contentType = null;
+            byte[] body = new byte[0];
+            if (entity != null) {
+                if (entity.getContentType() != null) contentType = entity.getContentType().getValue();
+                body = EntityUtils.toByteArray(entity);
+            }
+            return new ForwardedResponse(response.getStatusLine().getStatusCode(), contentType, body);
+        } finally {
+            // Release the connection back to the pool even if the response could not be read.
+            EntityUtils.consumeQuietly(entity);
+        }
+    }
+
+    /**
+     * Send a request to another node, marked as forwarded. The caller must consume or close the entity of the
+     * response, if there is one, to release the connection.
+     */
+    private HttpResponse send (HttpRequestBase request) throws IOException {
+        request.setHeader(FORWARDED_HEADER, localNode);
+        request.setHeader(SECRET_HEADER, secret);
+        return httpClient.execute(request);
+    }
+
+}
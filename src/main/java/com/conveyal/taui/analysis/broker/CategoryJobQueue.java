@@ -0,0 +1,212 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.ToIntFunction;
+
+/**
+ * All the regional jobs whose tasks must be run by workers in a single WorkerCategory (network and R5 version).
+ *
+ * Tasks are shared out fairly, first among the access groups (organizations) with jobs in this queue, in proportion
+ * to their weights, and then evenly among the jobs of each access group. So one organization's huge job cannot
+ * starve smaller jobs queued after it, whether they belong to another organization or the same one.
+ *
+ * Each queue has its own lock, so workers polling for tasks on different networks never wait on one another, and
+ * one category's result traffic does not hold up deliveries on another. Job instances are not threadsafe, so every
+ * read or write of a Job's task tracking must happen through the queue that holds it, while holding the queue's lock.
+ */
+public class CategoryJobQueue {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CategoryJobQueue.class);
+
+    public final WorkerCategory category;
+
+    /**
+     * The number of tasks given to an access group (or job) of weight one on each of its turns. This is as large as
+     * the largest batch a worker can receive, so that fair sharing does not shrink batches.
+     */
+    static final int QUANTUM_TASKS = WorkerThroughputTracker.MAX_TASKS_PER_POLL;
+
+    private final List<Job> jobs = new ArrayList<>();
+
+    /** Takes turns between the access groups that have jobs in this queue. */
+    private final DeficitRoundRobin<String> accessGroupScheduler = new DeficitRoundRobin<>(QUANTUM_TASKS);
+
+    /** For each access group with jobs in this queue, takes turns between its jobs. */
+    private final Map<String, DeficitRoundRobin<Job>> jobSchedulerForAccessGroup = new HashMap<>();
+
+    /** The relative share of the workers each access group should receive. */
+    private final ToIntFunction<String> accessGroupWeights;
+
+    /** Estimates how quickly the workers in this category are completing tasks, across all jobs. */
+    public final ThroughputEstimator throughput = new ThroughputEstimator();
+
+    CategoryJobQueue (WorkerCategory category, ToIntFunction<String> accessGroupWeights) {
+        this.category = category;
+        this.accessGroupWeights = accessGroupWeights;
+    }
+
+    /**
+     * Add a job to this queue. The Broker's index by job ID is responsible for rejecting duplicate jobs.
+     */
+    synchronized void add (Job job) {
+        jobs.add(job);
+        jobSchedulerForAccessGroup.computeIfAbsent(job.accessGroup, accessGroup -> {
+            accessGroupScheduler.add(accessGroup, accessGroupWeights.applyAsInt(accessGroup));
+            return new DeficitRoundRobin<>(QUANTUM_TASKS);
+        }).add(job, 1);
+    }
+
+    synchronized boolean remove (Job job) {
+        DeficitRoundRobin<Job> jobScheduler = jobSchedulerForAccessGroup.get(job.accessGroup);
+        if (jobScheduler != null) {
+            jobScheduler.remove(job);
+            if (jobScheduler.isEmpty()) {
+                jobSchedulerForAccessGroup.remove(job.accessGroup);
+                accessGroupScheduler.remove(job.accessGroup);
+            }
+        }
+        return jobs.remove(job);
+    }
+
+    /**
+     * Return some tasks from the job whose turn it is, according to the fair sharing between access groups and jobs.
+     * If no job has any tasks to deliver, the worker would otherwise sit idle, so it is given speculative copies of
+     * tasks that have been outstanding for a while instead, from the oldest job that has any.
+     * Always returns a batch, which may be empty if there is nothing to deliver.
+     */
+    synchronized TaskBatch getSomeWork (int maxTasks, String workerId) {
+        return getSomeWork(maxTasks, workerId, null);
+    }
+
+    /**
+     * @param throughput decides how long tasks are leased to the worker, or null to lease them for the minimum time.
+     */
+    synchronized TaskBatch getSomeWork (int maxTasks, String workerId, WorkerThroughputTracker throughput) {
+        TaskBatch tasks = accessGroupScheduler.deliver(maxTasks, (accessGroup, maxGroupTasks) ->
+            jobSchedulerForAccessGroup.get(accessGroup).deliver(maxGroupTasks, (job, maxJobTasks) ->
+                job.hasTasksToDeliver() ? job.generateSomeTasksToDeliver(maxJobTasks, workerId, throughput)
+                        : TaskBatch.EMPTY
+            )
+        );
+        // Abandoning a task is only noticed while looking for tasks to deliver. A job that abandoned a task can never
+        // be completed, so it is removed here. Its failed assembler keeps it visible to the UI until it is deleted.
+        for (int i = jobs.size() - 1; i >= 0; i--) {
+            Job job = jobs.get(i);
+            if (job.hasFailed()) {
+                LOG.error("Job {} has abandoned tasks and can never be completed, removing it from the queue.",
+                        job.jobId);
+                remove(job);
+            }
+        }
+        if (tasks.isEmpty()) {
+            for (Job job : jobs) {
+                tasks = job.generateSpeculativeCopies(maxTasks, workerId);
+                if (!tasks.isEmpty()) break;
+            }
+        }
+        return tasks;
+    }
+
+    /**
+     * Mark a single task of the given job as completed. Once the last task is marked as completed, the job is
+     * finished and is removed from this queue to free memory.
+     * @return true if this call completed the job (in which case it has been removed from the queue).
+     */
+    synchronized boolean markTaskCompleted (Job job, int taskId, String workerId) {
+        recordCompletion(job, taskId, workerId);
+        return removeIfComplete(job);
+    }
+
+    /**
+     * Mark all the tasks of the given job for which a worker returned results in one poll as completed, taking this
+     * queue's lock only once.
+     * @return true if this call completed the job (in which case it has been removed from the queue).
+     */
+    synchronized boolean markTasksCompleted (Job job, List<RegionalWorkResult> workResults, String workerId) {
+        for (RegionalWorkResult workResult : workResults) {
+            recordCompletion(job, workResult.taskId, workerId);
+        }
+        return removeIfComplete(job);
+    }
+
+    private void recordCompletion (Job job, int taskId, String workerId) {
+        if (job.markTaskCompleted(taskId, workerId)) {
+            throughput.recordCompletion(workerId);
+        } else {
+            // This is expected when a redelivered or speculatively copied task is completed twice.
+            LOG.debug("Task {} of job {} was already completed or does not exist.", taskId, job.jobId);
+        }
+    }
+
+    private boolean removeIfComplete (Job job) {
+        if (job.isComplete()) {
+            job.verifyComplete();
+            return remove(job);
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of the set of completed tasks of the given job, read under this queue's lock. This also works for
+     *         a job that has already been completed and removed from this queue.
+     */
+    synchronized BitSet copyCompletedTasks (Job job) {
+        return job.copyCompletedTasks();
+    }
+
+    /** @return the job that has been in this queue the longest, or null if the queue is empty. */
+    synchronized Job getOldestJob () {
+        return jobs.isEmpty() ? null : jobs.get(0);
+    }
+
+    /** @return the number of tasks in this queue's jobs that have not yet been completed. */
+    synchronized int getRemainingTaskCount () {
+        int nTasksRemaining = 0;
+        for (Job job : jobs) {
+            nTasksRemaining += job.nTasksTotal - job.nTasksCompleted;
+        }
+        return nTasksRemaining;
+    }
+
+    /**
+     * Summarize the jobs in this queue, reading their progress counters under this queue's lock. This includes each
+     * job's fair share of the workers in this category and the share of recent deliveries it actually received.
+     */
+    synchronized List<JobStatus> getJobStatuses () {
+        List<JobStatus> statuses = new ArrayList<>(jobs.size());
+        for (Job job : jobs) {
+            JobStatus status = new JobStatus(job);
+            DeficitRoundRobin<Job> jobScheduler = jobSchedulerForAccessGroup.get(job.accessGroup);
+            status.accessGroupWeight = accessGroupScheduler.getWeight(job.accessGroup);
+            status.accessGroupFairShare = accessGroupScheduler.getFairShare(job.accessGroup);
+            status.accessGroupDeliveredShare = accessGroupScheduler.getDeliveredShare(job.accessGroup);
+            status.fairShare = status.accessGroupFairShare * jobScheduler.getFairShare(job);
+            status.deliveredShare = status.accessGroupDeliveredShare * jobScheduler.getDeliveredShare(job);
+            statuses.add(status);
+        }
+        return statuses;
+    }
+
+    synchronized boolean anyJobsActive () {
+        for (Job job : jobs) {
+            if (!job.isComplete()) return true;
+        }
+        return false;
+    }
+
+    synchronized void logJobStatus () {
+        for (Job job : jobs) {
+            LOG.info(job.toString());
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+package com.conveyal.taui.analysis.broker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.BiFunction;
+
+/**
+ * Shares out task deliveries among a set of items (access groups, or the jobs of one access group) in proportion to
+ * their weights, using deficit round robin. The items take turns in a fixed cyclic order. On its turn an item is
+ * credited with a quantum of tasks times its weight, and keeps receiving batches of tasks until that credit is used
+ * up, at which point the turn passes to the next item. An item with nothing to deliver loses its turn and its credit,
+ * so idle items cannot save up credit and then monopolize the workers. Every item with work therefore receives its
+ * weighted share of deliveries within each round, however much work the other items have queued up.
+ *
+ * This also keeps a record of the share of recent deliveries that went to each item, which decays over time so that
+ * it reflects roughly the last few DECAY_INTERVAL_TASKS deliveries.
+ *
+ * This class is not threadsafe, it is protected by the lock of the CategoryJobQueue that holds it.
+ */
+class DeficitRoundRobin<T> {
+
+    /** After this many tasks are delivered, the record of recent deliveries to each item is halved. */
+    static final int DECAY_INTERVAL_TASKS = 10_000;
+
+    private static class Entry<T> {
+        final T item;
+        final int weight;
+        long deficit = 0;
+        double recentDeliveries = 0;
+        Entry (T item, int weight) {
+            this.item = item;
+            this.weight = weight;
+        }
+    }
+
+    /** The number of tasks credited to an item of weight one on each of its turns. */
+    private final int quantum;
+
+    private final List<Entry<T>> entries = new ArrayList<>();
+
+    /** The index of the entry whose turn it is. */
+    private int current = 0;
+
+    private int tasksSinceDecay = 0;
+
+    DeficitRoundRobin (int quantum) {
+        this.quantum = quantum;
+    }
+
+    void add (T item, int weight) {
+        entries.add(new Entry<>(item, Math.max(1, weight)));
+    }
+
+    boolean remove (T item) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (Objects.equals(entries.get(i).item, item)) {
+                entries.remove(i);
+                // Keep the turn with the same entry, or pass it to the entry that followed the removed one.
+                if (i < current) current -= 1;
+                if (current >= entries.size()) current = 0;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isEmpty () {
+        return entries.isEmpty();
+    }
+
+    /**
+     * Deliver a batch of tasks from the item whose turn it is, skipping over any items that have nothing to deliver.
+     * @param maxTasks the most tasks to deliver. The batch may be smaller if the item has less credit remaining.
+     * @param deliverFrom called with an item and the maximum number of tasks it may deliver, returning its tasks.
+     * @return the tasks delivered, or an empty batch if no item has anything to deliver.
+     */
+    TaskBatch deliver (int maxTasks, BiFunction<T, Integer, TaskBatch> deliverFrom) {
+        for (int visited = 0; visited < entries.size(); visited++) {
+            Entry<T> entry = entries.get(current);
+            if (entry.deficit <= 0) {
+                entry.deficit += (long) quantum * entry.weight;
+            }
+            TaskBatch tasks = deliverFrom.apply(entry.item, (int) Math.min(maxTasks, entry.deficit));
+            if (tasks.isEmpty()) {
+                entry.deficit = 0;
+                advance();
+                continue;
+            }
+            entry.deficit -= tasks.taskIds.length;
+            if (entry.deficit <= 0) {
+                advance();
+            }
+            recordDelivery(entry, tasks.taskIds.length);
+            return tasks;
+        }
+        return TaskBatch.EMPTY;
+    }
+
+    private void advance () {
+        current = (current + 1) % entries.size();
+    }
+
+    private void recordDelivery (Entry<T> entry, int nTasks) {
+        entry.recentDeliveries += nTasks;
+        tasksSinceDecay += nTasks;
+        if (tasksSinceDecay >= DECAY_INTERVAL_TASKS) {
+            for (Entry<T> e : entries) {
+                e.recentDeliveries /= 2;
+            }
+            tasksSinceDecay = 0;
+        }
+    }
+
+    private Entry<T> find (T item) {
+        for (Entry<T> entry : entries) {
+            if (Objects.equals(entry.item, item)) return entry;
+        }
+        return null;
+    }
+
+    int getWeight (T item) {
+        Entry<T> entry = find(item);
+        return entry == null ? 0 : entry.weight;
+    }
+
+    /** @return the fraction of deliveries the given item is entitled to when all items have tasks to deliver. */
+    double getFairShare (T item) {
+        Entry<T> entry = find(item);
+        if (entry == null) return 0;
+        int totalWeight = 0;
+        for (Entry<T> e : entries) {
+            totalWeight += e.weight;
+        }
+        return (double) entry.weight / totalWeight;
+    }
+
+    /** @return the fraction of recent deliveries that went to the given item. */
+    double getDeliveredShare (T item) {
+        Entry<T> entry = find(item);
+        if (entry == null) return 0;
+        double totalDeliveries = 0;
+        for (Entry<T> e : entries) {
+            totalDeliveries += e.recentDeliveries;
+        }
+        return totalDeliveries == 0 ? 0 : entry.recentDeliveries / totalDeliveries;
+    }
+
+}
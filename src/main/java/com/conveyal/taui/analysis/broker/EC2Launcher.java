@@ -8,6 +8,7 @@ import com.amazonaws.services.ec2.model.RequestSpotInstancesRequest;
 import com.amazonaws.services.ec2.model.RequestSpotInstancesResult;
 import com.amazonaws.services.ec2.model.RunInstancesRequest;
 import com.amazonaws.services.ec2.model.RunInstancesResult;
+import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.taui.AnalysisServerConfig;
 import com.conveyal.taui.ExecutorServices;
 
@@ -20,7 +21,7 @@ import org.slf4j.LoggerFactory;
  * AWS SDK client to launch EC2 fleets.  Should be initialized once (in Broker)
  */
 
-public class EC2Launcher {
+public class EC2Launcher implements WorkerLauncher {
     private static final Logger LOG = LoggerFactory.getLogger(EC2Launcher.class);
 
     /** Amazon AWS SDK client. */
@@ -44,6 +45,11 @@ public class EC2Launcher {
 
     }
 
+    @Override
+    public void launch (WorkerCategory category, String group, String user, int nOnDemand, int nSpot) {
+        launch(new EC2RequestConfiguration(category, group, user), nOnDemand, nSpot);
+    }
+
     public void launch (EC2RequestConfiguration requestConfig, int nOnDemand, int nSpot) {
 
         if (nOnDemand > 0){
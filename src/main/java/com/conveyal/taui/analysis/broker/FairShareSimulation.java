@@ -0,0 +1,132 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This is not an automatic unit test. It is a simulation that must be started manually, demonstrating that the fair
+ * sharing in CategoryJobQueue holds up when synthetic workers are processing several jobs from several organizations.
+ * One organization has enqueued a single huge job, a second has two medium sized jobs, and a third organization with
+ * twice the weight enqueues a small job last. Simulated workers of differing speeds each take a batch sized to keep
+ * them busy for ten seconds, work through it, and report it completed before polling again.
+ *
+ * While all the jobs are running, each organization should receive its weighted share of the deliveries, and the two
+ * jobs of the second organization should receive equal shares. Before fair sharing, the huge job enqueued first would
+ * have received every delivery until it was finished. The queue is driven directly, so no configuration is needed.
+ */
+public class FairShareSimulation {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FairShareSimulation.class);
+
+    static final int N_WORKERS = 20;
+
+    /** The largest acceptable difference between an organization's fair share and the share it actually received. */
+    static final double TOLERANCE = 0.02;
+
+    private static class SimulatedWorker {
+        String workerId;
+        double tasksPerSecond;
+        double busyUntil = 0;
+        TaskBatch tasks = TaskBatch.EMPTY;
+    }
+
+    public static void main (String[] params) {
+        WorkerCategory category = new WorkerCategory("SIMULATION", "v0");
+        Map<String, Integer> weights = new HashMap<>();
+        weights.put("C", 2);
+        CategoryJobQueue queue = new CategoryJobQueue(category, group -> weights.getOrDefault(group, 1));
+        List<Job> jobs = new ArrayList<>();
+        jobs.add(makeJob(category, "A", "A_HUGE", 2000));
+        jobs.add(makeJob(category, "B", "B_FIRST", 700));
+        jobs.add(makeJob(category, "B", "B_SECOND", 700));
+        jobs.add(makeJob(category, "C", "C_SMALL", 400));
+        for (Job job : jobs) {
+            queue.add(job);
+        }
+        List<SimulatedWorker> workers = new ArrayList<>();
+        for (int w = 0; w < N_WORKERS; w++) {
+            SimulatedWorker worker = new SimulatedWorker();
+            worker.workerId = "SIM_" + w;
+            worker.tasksPerSecond = 5 + 10 * (w % 4);
+            workers.add(worker);
+        }
+
+        // Deliveries to each job until the first job is finished, while every job is competing for the workers.
+        Map<String, Long> deliveriesByJob = new HashMap<>();
+        boolean allJobsRunning = true;
+        Map<String, Integer> finishTimes = new HashMap<>();
+        for (int second = 0; finishTimes.size() < jobs.size(); second++) {
+            for (SimulatedWorker worker : workers) {
+                if (worker.busyUntil > second) continue;
+                for (int taskId : worker.tasks.taskIds) {
+                    Job job = findJob(jobs, worker.tasks.getJobId());
+                    if (queue.markTaskCompleted(job, taskId, worker.workerId)) {
+                        finishTimes.put(job.jobId, second);
+                        allJobsRunning = false;
+                    }
+                }
+                int maxTasks = (int) (worker.tasksPerSecond * WorkerThroughputTracker.TARGET_BATCH_SECONDS);
+                worker.tasks = queue.getSomeWork(maxTasks, worker.workerId);
+                worker.busyUntil = second + worker.tasks.taskIds.length / worker.tasksPerSecond;
+                if (allJobsRunning && !worker.tasks.isEmpty()) {
+                    deliveriesByJob.merge(worker.tasks.getJobId(), (long) worker.tasks.taskIds.length, Long::sum);
+                }
+            }
+        }
+
+        long totalDeliveries = deliveriesByJob.values().stream().mapToLong(Long::longValue).sum();
+        Map<String, Double> shareByAccessGroup = new HashMap<>();
+        for (Job job : jobs) {
+            double share = deliveriesByJob.getOrDefault(job.jobId, 0L) / (double) totalDeliveries;
+            shareByAccessGroup.merge(job.accessGroup, share, Double::sum);
+            LOG.info("Job {} received {} of deliveries while all jobs were running, finished after {} seconds.",
+                    job.jobId, String.format("%.3f", share), finishTimes.get(job.jobId));
+        }
+        boolean fair = true;
+        int totalWeight = 0;
+        for (String accessGroup : shareByAccessGroup.keySet()) {
+            totalWeight += weights.getOrDefault(accessGroup, 1);
+        }
+        for (Map.Entry<String, Double> entry : shareByAccessGroup.entrySet()) {
+            double fairShare = weights.getOrDefault(entry.getKey(), 1) / (double) totalWeight;
+            LOG.info("Access group {} received {} of deliveries, its fair share is {}.", entry.getKey(),
+                    String.format("%.3f", entry.getValue()), String.format("%.3f", fairShare));
+            if (Math.abs(entry.getValue() - fairShare) > TOLERANCE) fair = false;
+        }
+        double firstShare = deliveriesByJob.get("B_FIRST") / (double) totalDeliveries;
+        double secondShare = deliveriesByJob.get("B_SECOND") / (double) totalDeliveries;
+        if (Math.abs(firstShare - secondShare) > TOLERANCE) fair = false;
+        if (fair) {
+            LOG.info("PASS: all organizations and jobs received their fair share.");
+        } else {
+            LOG.error("FAIL: deliveries were not shared fairly.");
+            System.exit(1);
+        }
+    }
+
+    private static Job makeJob (WorkerCategory category, String accessGroup, String jobId, int gridSize) {
+        RegionalTask templateTask = new RegionalTask();
+        templateTask.jobId = jobId;
+        templateTask.graphId = category.graphId;
+        templateTask.workerVersion = category.workerVersion;
+        templateTask.width = gridSize;
+        templateTask.height = gridSize;
+        // Results are not assembled, so the job has no result assembler.
+        return new Job(templateTask, accessGroup, "simulation", null);
+    }
+
+    private static Job findJob (List<Job> jobs, String jobId) {
+        for (Job job : jobs) {
+            if (job.jobId.equals(jobId)) return job;
+        }
+        return null;
+    }
+
+}
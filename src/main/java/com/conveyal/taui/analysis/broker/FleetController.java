@@ -0,0 +1,158 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.taui.AnalysisServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Periodically sizes the fleet of workers in each worker category to match the regional analysis work queued there.
+ * Each worker category with outstanding tasks should have enough workers to complete them within
+ * TARGET_COMPLETION_SECONDS, at the rate each worker in the category has recently been completing tasks. When there
+ * are fewer workers than that (counting those recently requested that are presumably still starting up) spot
+ * instances are requested to make up the difference. No workers are requested in a category until its task rate has
+ * been measured, and the first worker in a category is started on demand when a job is enqueued, as before.
+ *
+ * Workers are started with auto-shutdown enabled, and shut themselves down once they have nothing to do. So scaling
+ * down only means ceasing to request workers: once a category's queue is drained, the controller forgets any workers
+ * still starting up there, and the idle workers go away on their own.
+ *
+ * The number of workers requested is limited to MAX_WORKERS_PER_CATEGORY in each category, and all requests together
+ * stay below the broker's configured maximum number of workers.
+ */
+public class FleetController implements Runnable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FleetController.class);
+
+    /** How often the size of the fleet is reconsidered. */
+    public static final int CONTROL_INTERVAL_SECONDS = 30;
+
+    /** Start enough workers to finish the outstanding tasks in each category in about this long. */
+    public static final int TARGET_COMPLETION_SECONDS = 20 * 60;
+
+    /** The maximum number of workers requested automatically in any one category. */
+    public static final int MAX_WORKERS_PER_CATEGORY = 100;
+
+    /** Workers are assumed to still be starting up for this long after they are requested. */
+    static final long WORKER_STARTUP_MILLIS = 10 * 60 * 1000;
+
+    /** Workers that have been requested but have not yet polled the broker. */
+    private static class PendingLaunch {
+        final long requestTime;
+        final int nWorkers;
+        final int nWorkersRunningAtRequest;
+        PendingLaunch (long requestTime, int nWorkers, int nWorkersRunningAtRequest) {
+            this.requestTime = requestTime;
+            this.nWorkers = nWorkers;
+            this.nWorkersRunningAtRequest = nWorkersRunningAtRequest;
+        }
+    }
+
+    private final Supplier<Collection<CategoryJobQueue>> queues;
+
+    private final WorkerCatalog workerCatalog;
+
+    private final WorkerLauncher launcher;
+
+    private final int maxWorkers;
+
+    private final Map<WorkerCategory, PendingLaunch> pendingLaunches = new HashMap<>();
+
+    /**
+     * @param queues supplies the broker's job queues, one per worker category, each time the fleet is resized.
+     * @param launcher starts the workers, normally through the broker so that its checks apply to these requests too.
+     * @param maxWorkers the total number of workers must remain below this number.
+     */
+    public FleetController (Supplier<Collection<CategoryJobQueue>> queues, WorkerCatalog workerCatalog,
+                            WorkerLauncher launcher, int maxWorkers) {
+        this.queues = queues;
+        this.workerCatalog = workerCatalog;
+        this.launcher = launcher;
+        this.maxWorkers = maxWorkers;
+    }
+
+    @Override
+    public void run () {
+        // The fake jobs used to test task redelivery must never cause real workers to be requested.
+        if (AnalysisServerConfig.testTaskRedelivery) return;
+        // An exception escaping a periodic task would stop it from ever running again.
+        try {
+            control(System.currentTimeMillis());
+        } catch (Exception e) {
+            LOG.error("Error resizing the worker fleet.", e);
+        }
+    }
+
+    /** Compare the workers in each category to the number needed, and request more where there are too few. */
+    synchronized void control (long now) {
+        int nWorkersTotal = workerCatalog.totalWorkerCount();
+        for (WorkerCategory category : new ArrayList<>(pendingLaunches.keySet())) {
+            nWorkersTotal += countPendingWorkers(category, now);
+        }
+        for (CategoryJobQueue queue : queues.get()) {
+            WorkerCategory category = queue.category;
+            int nTasksRemaining = queue.getRemainingTaskCount();
+            if (nTasksRemaining == 0) {
+                if (pendingLaunches.remove(category) != null) {
+                    LOG.info("No tasks remain on {}, no longer waiting for workers to start.", category);
+                }
+                continue;
+            }
+            int nWorkersTarget = Math.min(MAX_WORKERS_PER_CATEGORY, estimateWorkersNeeded(queue, nTasksRemaining, now));
+            int nWorkersRunning = workerCatalog.countWorkersInCategory(category);
+            int nWorkersPending = countPendingWorkers(category, now);
+            int nWorkersToStart = nWorkersTarget - nWorkersRunning - nWorkersPending;
+            if (nWorkersToStart <= 0) continue;
+            // Keep the total number of workers below the configured maximum.
+            nWorkersToStart = Math.min(nWorkersToStart, maxWorkers - 1 - nWorkersTotal);
+            if (nWorkersToStart <= 0) {
+                LOG.warn("Maximum of {} workers already started, not starting more on {}.", maxWorkers, category);
+                continue;
+            }
+            Job job = queue.getOldestJob();
+            if (job == null) continue;
+            LOG.info("{} tasks remain on {}, needing {} workers. {} are running and {} starting, requesting {}.",
+                    nTasksRemaining, category, nWorkersTarget, nWorkersRunning, nWorkersPending, nWorkersToStart);
+            launcher.launch(category, job.accessGroup, job.createdBy, 0, nWorkersToStart);
+            pendingLaunches.put(category, new PendingLaunch(now, nWorkersPending + nWorkersToStart, nWorkersRunning));
+            nWorkersTotal += nWorkersToStart;
+        }
+    }
+
+    /**
+     * @return the number of workers needed to complete the given number of tasks within TARGET_COMPLETION_SECONDS at
+     *         the rate each worker in the queue's category has recently been completing tasks, or zero if that rate
+     *         is not yet known.
+     */
+    private static int estimateWorkersNeeded (CategoryJobQueue queue, int nTasksRemaining, long now) {
+        double tasksPerSecond = queue.throughput.getTasksPerSecond(now);
+        int activeWorkers = queue.throughput.getActiveWorkers(now);
+        if (tasksPerSecond <= 0 || activeWorkers == 0) {
+            return 0;
+        }
+        double tasksPerWorkerSecond = tasksPerSecond / activeWorkers;
+        return (int) Math.ceil(nTasksRemaining / (tasksPerWorkerSecond * TARGET_COMPLETION_SECONDS));
+    }
+
+    /**
+     * @return how many of the workers requested in the given category are presumably still starting up. Workers that
+     *         have appeared in the category since the request are assumed to be among those requested.
+     */
+    private int countPendingWorkers (WorkerCategory category, long now) {
+        PendingLaunch launch = pendingLaunches.get(category);
+        if (launch == null) return 0;
+        if (launch.requestTime < now - WORKER_STARTUP_MILLIS) {
+            pendingLaunches.remove(category);
+            return 0;
+        }
+        int nWorkersStarted = workerCatalog.countWorkersInCategory(category) - launch.nWorkersRunningAtRequest;
+        return Math.max(0, launch.nWorkers - Math.max(0, nWorkersStarted));
+    }
+
+}
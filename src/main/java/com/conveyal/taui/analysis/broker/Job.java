@@ -3,41 +3,86 @@ package com.conveyal.taui.analysis.broker;
 import com.conveyal.r5.analyst.Grid;
 import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.taui.GridResultAssembler;
+
+import gnu.trove.list.TIntList;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
-import java.util.List;
 
 /**
  * A Job is a collection of tasks that represent all the origins in a regional analysis. All the tasks must have the
  * same network ID and be run against the same R5 version on the workers.
  *
  * There is no concern about multiple tasks having the same ID, because those IDs are created by the broker.
- * An unlikely potential problem is that if the broker restarts, the workers might mark the wrong tasks as completed.
+ * Task IDs are the indexes of the origins in the grid, so they remain the same when a job is resumed from a JobStore
+ * after the broker restarts, and results for tasks delivered before the restart are still filed correctly.
+ *
+ * Each task delivered to a worker is leased to that worker for a time given by the WorkerThroughputTracker: long
+ * enough for a worker's first batch to cover loading the network, and otherwise a generous multiple of the time the
+ * worker's measured throughput suggests. If no result has been received for the task when its lease expires, the task
+ * is redelivered to the next worker that polls, ahead of any tasks that have never been delivered. Leases are kept in
+ * expiry order in a TaskLeaseQueue, so stragglers are found without scanning the whole job, and a job with a handful
+ * of lost tasks is finished as soon as their leases expire. A task that is still failing after MAX_DELIVERIES_PER_TASK
+ * deliveries is abandoned. The job can then never be completed, so it fails, and its assembler reports that to the UI.
+ *
+ * Once every task has been delivered, workers that would otherwise sit idle are given speculative copies of tasks
+ * that have been leased to other workers for more than SPECULATE_AFTER_SEC. The last few tasks of a job are then not
+ * held up by a slow or failing worker. Whichever copy's result arrives first is kept, and the GridResultAssembler
+ * ignores any later results for the same origin. Each task gets at most one speculative copy, which does not count
+ * toward its deliveries or extend its lease. The tasks that could be copied are collected once, when every task has
+ * been delivered, into a SpeculationQueue in the order they were delivered. Tasks are dropped from it as soon as they
+ * are completed or copied, so idle workers polling at the end of a job do not scan all the leases on every poll.
+ *
+ * The methods that depend on the time have package-private versions taking the current time, so they can be tested.
  */
 public class Job {
 
     private static final Logger LOG = LoggerFactory.getLogger(Job.class);
 
-    // TODO Reimplement re-delivery - jobs can get stuck with a few undelivered tasks if something happens to a worker.
+    /** Tasks that have been delivered this many times without a result are assumed to be failing, and abandoned. */
+    public static final int MAX_DELIVERIES_PER_TASK = 5;
+
+    /** Tasks that have been leased to a worker for at least this long may be copied to idle workers. */
+    public static final int SPECULATE_AFTER_SEC = 30;
+
+    // The order in which tasks are first delivered. Random orderings give realistic estimates of job processing time,
+    // while spatially compact orderings make better use of the workers' caches. See TaskOrdering for the trade-offs.
+    // The task at each position is computed on demand, so we just keep track of where we're at in the sequence.
+    // Tasks are only redelivered through their leases.
+    private final TaskOrdering ordering;
+
+    // The type of the ordering above, saved with the job so that a resumed job uses the same ordering.
+    public final TaskOrdering.Type orderingType;
+
+    private int nextPositionToDeliver;
+
+    // The number of times each task has been delivered. Tasks are abandoned after MAX_DELIVERIES_PER_TASK deliveries.
+    private final byte[] deliveryCounts;
+
+    // A lease for every delivery of a task that may not yet have been completed, in order of expiry.
+    private final TaskLeaseQueue leases;
 
-    public static final int REDELIVERY_WAIT_SEC = 2 * 60;
+    // Lease expiry times are measured in seconds since this time, in milliseconds since the epoch.
+    final long creationTime = System.currentTimeMillis();
 
-    public static final int MAX_DELIVERY_PASSES = 5;
+    // Workers are identified in leases by small integers, assigned in the order the workers first receive tasks.
+    private final TObjectIntMap<String> workerNumberForId = new TObjectIntHashMap<>();
 
-    // In order to provide realistic estimates of job processing time, we don't want to deliver the tasks to
-    // workers in row-by-row geographic order, because spatial patterns exist in the world that make some areas
-    // much faster than others. Ideally rather than storing the entire sequence (which is O(n) in the number of
-    // tasks) you'd want to store a permutation seed that would allow instant lookup of the task in position N.
-    // Essentially what we want to do is random selection (sampling) without replacement.
-    // As far as I know there's no way to do this without storing the full sequence, or taking longer and longer
-    // to find random tasks as the set of completed tasks gets larger.
-    // On the other hand, working on tasks from the same geographic area might be more efficient because
-    // they probably use all the same transit lines and roads, which will already be in cache.
-    // So let's just keep track of where we're at in the sequence.
-    private int nextTaskToDeliver;
+    // For each task that has been copied speculatively, the number of the worker that received the copy.
+    // Entries are removed once the task is completed, so this only holds tasks that are still outstanding.
+    private final TIntIntMap speculativeWorkerForTask = new TIntIntHashMap();
+
+    // The deliveries of tasks that may be copied speculatively, in the order they were granted. This is null until
+    // speculative copies are first requested, after every task has been delivered.
+    private SpeculationQueue speculationQueue;
 
     /* A unique identifier for this job, we use random UUIDs. */
     public final String jobId;
@@ -61,24 +106,28 @@ public class Job {
     // Every task in this job will be based on this template task, but have its origin coordinates changed.
     private final RegionalTask templateTask;
 
+    // Pieces together the results received from workers into one regional analysis result file for this job.
+    // Kept here so that looking up a job by ID also finds where to write its results, with no second lookup.
+    public final GridResultAssembler resultAssembler;
+
     // This will serve as as a source of coordinates for each numbered task in the job - one per pointSet point.
     // We will eventually want to expand this to work with any PointSet of origins, not just a grid.
 //    private final WebMercatorGridPointSet originGrid;
 
     /**
-     * The only thing that changes from one task to the next is the origin coordinates.
+     * The only thing that changes from one task to the next is the origin coordinates. Set the fields of a task that
+     * identify its origin, based on its task number. This is used wherever a batch of task numbers is expanded back
+     * into complete tasks from a template, whether on the broker or on a worker.
      * @param taskNumber the task number within the job, equal to the point number within the origin point set.
      */
-    private RegionalTask makeOneTask (int taskNumber) {
-        RegionalTask task = templateTask.clone();
+    static void setOrigin (RegionalTask task, int taskNumber) {
         // We want to support any Pointset but for now we only have grids tied to the task itself.
         // In the future we'll set origin coords from a PointSet object.
-        task.x = taskNumber % templateTask.width;
-        task.y = taskNumber / templateTask.width;
+        task.x = taskNumber % task.width;
+        task.y = taskNumber / task.width;
         task.taskId = taskNumber;
         task.fromLat = Grid.pixelToCenterLat(task.north + task.y, task.zoom);
         task.fromLon = Grid.pixelToCenterLon(task.west + task.x, task.zoom);
-        return task;
     }
 
     /**
@@ -88,28 +137,51 @@ public class Job {
      */
     public final WorkerCategory workerCategory;
 
-    // The last time a non-empty set of tasks was delivered to a worker, in milliseconds since the epoch.
-    // Enables a quiet period after all tasks have been delivered, before we attempt any re-delivery.
-    long lastDeliveryTime = 0;
+    // The number of times a task has been delivered after its lease expired.
+    protected int nTasksRedelivered;
+
+    // The number of tasks abandoned after being delivered MAX_DELIVERIES_PER_TASK times without a result.
+    protected int nTasksAbandoned;
+
+    // The number of speculative copies of tasks delivered, and how many of them returned a result before the original.
+    protected int nSpeculativeCopies;
+    protected int nSpeculativeCopiesWon;
+
+    // Estimates how quickly this job's tasks are being completed, to report its progress and the time remaining.
+    public final ThroughputEstimator throughput = new ThroughputEstimator();
 
-    // How many times we have started over delivering tasks, working through those that were not marked complete.
+    // The largest number of times any one task has been redelivered. This is comparable to the number of passes
+    // through the whole job that were made when tasks were redelivered by starting over at the beginning of the job.
     public int deliveryPass = 0;
 
-    public Job (RegionalTask templateTask, String accessGroup, String createdBy) {
+    public Job (RegionalTask templateTask, String accessGroup, String createdBy, GridResultAssembler resultAssembler) {
+        this(templateTask, accessGroup, createdBy, resultAssembler, TaskOrdering.Type.ROW_MAJOR);
+    }
+
+    public Job (RegionalTask templateTask, String accessGroup, String createdBy, GridResultAssembler resultAssembler,
+                TaskOrdering.Type orderingType) {
         this.jobId = templateTask.jobId;
         this.templateTask = templateTask;
         this.nTasksTotal = templateTask.width * templateTask.height;
         this.completedTasks = new BitSet(nTasksTotal);
+        this.deliveryCounts = new byte[nTasksTotal];
+        this.leases = new TaskLeaseQueue(1024);
         this.workerCategory = new WorkerCategory(templateTask.graphId, templateTask.workerVersion);
         this.nTasksCompleted = 0;
-        this.nextTaskToDeliver = 0;
+        this.orderingType = orderingType;
+        this.ordering = TaskOrdering.create(orderingType, templateTask.width, templateTask.height, jobId.hashCode());
+        this.nextPositionToDeliver = 0;
         this.createdBy = createdBy;
         this.accessGroup = accessGroup;
+        this.resultAssembler = resultAssembler;
     }
 
-    public boolean markTaskCompleted(int taskId) {
+    /**
+     * @param workerId the worker that returned the result, used to tell whether speculative copies were useful.
+     */
+    public boolean markTaskCompleted(int taskId, String workerId) {
         // Don't allow negative or huge task numbers to avoid exceptions or expanding the bitset to a huge size.
-        if (taskId < 0 || taskId > nTasksTotal) {
+        if (taskId < 0 || taskId >= nTasksTotal) {
             return false;
         }
         if (completedTasks.get(taskId)) {
@@ -117,57 +189,242 @@ public class Job {
         } else {
             completedTasks.set(taskId);
             nTasksCompleted += 1;
+            throughput.recordCompletion(workerId);
+            if (speculativeWorkerForTask.containsKey(taskId)) {
+                int speculativeWorker = speculativeWorkerForTask.remove(taskId);
+                if (workerId != null && workerNumberForId.containsKey(workerId)
+                        && workerNumberForId.get(workerId) == speculativeWorker) {
+                    nSpeculativeCopiesWon += 1;
+                }
+            }
             return true;
         }
     }
 
+    /**
+     * Mark the given tasks as completed without counting them toward this job's throughput, when resuming a job whose
+     * results so far were saved before the broker restarted. This must be called before the job is added to a queue.
+     */
+    void restoreCompletedTasks (BitSet tasks) {
+        completedTasks.clear();
+        completedTasks.or(tasks.get(0, nTasksTotal));
+        nTasksCompleted = completedTasks.cardinality();
+    }
+
+    /** @return a copy of the set of completed tasks, which can be saved while this job continues to be updated. */
+    BitSet copyCompletedTasks () {
+        return (BitSet) completedTasks.clone();
+    }
+
+    RegionalTask getTemplateTask () {
+        return templateTask;
+    }
+
     public boolean isComplete() {
         return nTasksCompleted == nTasksTotal;
     }
 
     /**
+     * Tasks whose leases have expired are returned first, followed by tasks that have never been delivered.
      * @param maxTasks the maximum number of tasks to return.
-     * @return some tasks that are not yet marked as completed and have not yet been delivered in this delivery pass.
+     * @param workerId the worker that will receive the tasks, which may be null if it is not known.
+     * @return the numbers of some tasks that are not yet marked as completed and are not leased to any worker, along
+     *         with the template from which complete tasks can be made.
      */
-    public List<RegionalTask> generateSomeTasksToDeliver (int maxTasks) {
-        List<RegionalTask> tasks = new ArrayList<>(maxTasks);
-        // TODO use special bitset iteration syntax.
-        while (nextTaskToDeliver < nTasksTotal && tasks.size() < maxTasks) {
-            if (!completedTasks.get(nextTaskToDeliver)) {
-                tasks.add(makeOneTask(nextTaskToDeliver));
+    public TaskBatch generateSomeTasksToDeliver (int maxTasks, String workerId) {
+        return generateSomeTasksToDeliver(maxTasks, workerId, null);
+    }
+
+    /**
+     * @param throughput decides how long the tasks are leased to the worker, based on its recent throughput. If this
+     *                   is null they are leased for the minimum time.
+     */
+    public TaskBatch generateSomeTasksToDeliver (int maxTasks, String workerId, WorkerThroughputTracker throughput) {
+        return generateSomeTasksToDeliver(maxTasks, workerId, throughput, System.currentTimeMillis());
+    }
+
+    TaskBatch generateSomeTasksToDeliver (int maxTasks, String workerId, WorkerThroughputTracker throughput,
+                                          long currentTimeMillis) {
+        if (isComplete() || hasFailed()) {
+            return TaskBatch.EMPTY;
+        }
+        int now = secondsSinceCreation(currentTimeMillis);
+        int worker = getWorkerNumber(workerId);
+        int[] taskIds = new int[maxTasks];
+        int nTasks = 0;
+        while (nTasks < maxTasks && removeFinishedLeases(now) && leases.peekExpiryTime() <= now) {
+            taskIds[nTasks++] = leases.remove();
+            nTasksRedelivered += 1;
+        }
+        while (nextPositionToDeliver < ordering.size() && nTasks < maxTasks) {
+            int taskId = ordering.taskAt(nextPositionToDeliver);
+            if (taskId >= 0 && !completedTasks.get(taskId)) {
+                taskIds[nTasks++] = taskId;
             }
-            nextTaskToDeliver += 1;
+            nextPositionToDeliver += 1;
         }
-        if (!tasks.isEmpty()) {
-            this.lastDeliveryTime = System.currentTimeMillis();
+        if (nTasks == 0) {
+            return TaskBatch.EMPTY;
         }
-        nTasksDelivered += tasks.size();
-        return tasks;
+        int leaseSec = throughput == null ? WorkerThroughputTracker.MIN_LEASE_SEC
+                : throughput.getLeaseSeconds(workerId, jobId, nTasks);
+        for (int i = 0; i < nTasks; i++) {
+            int taskId = taskIds[i];
+            deliveryCounts[taskId] += 1;
+            deliveryPass = Math.max(deliveryPass, deliveryCounts[taskId] - 1);
+            leases.add(taskId, now, now + leaseSec, worker);
+            if (speculationQueue != null) {
+                speculationQueue.addLast(taskId, now, worker, deliveryCounts[taskId]);
+            }
+        }
+        nTasksDelivered += nTasks;
+        // Only the last batch of tasks that have never been delivered is usually short.
+        return new TaskBatch(templateTask, nTasks == maxTasks ? taskIds : Arrays.copyOf(taskIds, nTasks));
+    }
+
+    /**
+     * Copy tasks that have been leased to other workers for a while and have not yet been copied.
+     * This should only be called when no job has anything else to deliver, so idle workers are not kept from tasks
+     * that have never been started. Every task has been delivered by then, so the leases hold all outstanding tasks.
+     * @param workerId the worker that will receive the copies, which will not be given copies of its own tasks.
+     * @return the numbers of some tasks to copy, which will be empty unless every task has been delivered.
+     */
+    public TaskBatch generateSpeculativeCopies (int maxTasks, String workerId) {
+        return generateSpeculativeCopies(maxTasks, workerId, System.currentTimeMillis());
+    }
+
+    TaskBatch generateSpeculativeCopies (int maxTasks, String workerId, long currentTimeMillis) {
+        if (isComplete() || hasFailed() || nextPositionToDeliver < ordering.size()) {
+            return TaskBatch.EMPTY;
+        }
+        if (speculationQueue == null) {
+            speculationQueue = collectSpeculationCandidates();
+        }
+        int now = secondsSinceCreation(currentTimeMillis);
+        int worker = getWorkerNumber(workerId);
+        int[] taskIds = new int[maxTasks];
+        int nTasks = 0;
+        // The worker's own tasks are taken off the head of the queue to reach the tasks behind them, then put back.
+        TIntList ownDeliveries = new TIntArrayList();
+        while (nTasks < maxTasks && !speculationQueue.isEmpty()
+                && speculationQueue.peekGrantTime() <= now - SPECULATE_AFTER_SEC) {
+            int taskId = speculationQueue.peekTaskId();
+            int grantTime = speculationQueue.peekGrantTime();
+            int holder = speculationQueue.peekWorker();
+            int delivery = speculationQueue.peekDelivery();
+            speculationQueue.removeFirst();
+            // Tasks that have been completed or copied, and deliveries that have been superseded by a redelivery of
+            // the same task, will never be copied so they are dropped.
+            if (completedTasks.get(taskId) || speculativeWorkerForTask.containsKey(taskId)
+                    || deliveryCounts[taskId] != delivery) {
+                continue;
+            }
+            // Don't give a worker a copy of its own task.
+            if (worker >= 0 && holder == worker) {
+                ownDeliveries.add(new int[] {taskId, grantTime, holder, delivery});
+                continue;
+            }
+            speculativeWorkerForTask.put(taskId, worker);
+            taskIds[nTasks++] = taskId;
+        }
+        for (int i = ownDeliveries.size() - 4; i >= 0; i -= 4) {
+            speculationQueue.addFirst(ownDeliveries.get(i), ownDeliveries.get(i + 1), ownDeliveries.get(i + 2),
+                    ownDeliveries.get(i + 3));
+        }
+        if (nTasks == 0) {
+            return TaskBatch.EMPTY;
+        }
+        nSpeculativeCopies += nTasks;
+        nTasksDelivered += nTasks;
+        return new TaskBatch(templateTask, Arrays.copyOf(taskIds, nTasks));
+    }
+
+    /**
+     * Collect the leases of all the incomplete tasks, in the order they were granted. This scans all the leases, but
+     * only once, after every task has been delivered. Later deliveries are added to the queue as they are made.
+     */
+    private SpeculationQueue collectSpeculationCandidates () {
+        // Sort the positions of the leases in the heap by their grant time.
+        long[] grantTimeAndPosition = new long[leases.size()];
+        int nCandidates = 0;
+        for (int position = 0; position < leases.size(); position++) {
+            if (completedTasks.get(leases.getTaskId(position))) continue;
+            grantTimeAndPosition[nCandidates++] = ((long) leases.getGrantTime(position) << 32) | position;
+        }
+        Arrays.sort(grantTimeAndPosition, 0, nCandidates);
+        SpeculationQueue candidates = new SpeculationQueue(nCandidates);
+        for (int i = 0; i < nCandidates; i++) {
+            int position = (int) grantTimeAndPosition[i];
+            int taskId = leases.getTaskId(position);
+            candidates.addLast(taskId, leases.getGrantTime(position), leases.getWorker(position),
+                    deliveryCounts[taskId]);
+        }
+        return candidates;
+    }
+
+    private int getWorkerNumber (String workerId) {
+        if (workerId == null) return -1;
+        if (!workerNumberForId.containsKey(workerId)) {
+            workerNumberForId.put(workerId, workerNumberForId.size());
+        }
+        return workerNumberForId.get(workerId);
     }
 
     public boolean hasTasksToDeliver() {
-        if (this.isComplete()) {
+        return hasTasksToDeliver(System.currentTimeMillis());
+    }
+
+    boolean hasTasksToDeliver (long currentTimeMillis) {
+        if (this.isComplete() || this.hasFailed()) {
             return false;
         }
-        if (nextTaskToDeliver < nTasksTotal) {
+        if (nextPositionToDeliver < ordering.size()) {
             return true;
         }
-        // Check whether we should start redelivering tasks - this will be triggered by workers polling.
-        // The method that generates more tasks to deliver knows to skip already completed tasks.
-        if (System.currentTimeMillis() >= lastDeliveryTime + (REDELIVERY_WAIT_SEC * 1000)) {
-            if (deliveryPass >= MAX_DELIVERY_PASSES) {
-                LOG.error("Job {} has been delivered {} times and it's still not finished. Not redelivering.", jobId, deliveryPass);
-                return false;
+        // Check whether any leases have expired - this will be triggered by workers polling.
+        int now = secondsSinceCreation(currentTimeMillis);
+        return removeFinishedLeases(now) && leases.peekExpiryTime() <= now;
+    }
+
+    /**
+     * Discard leases at the head of the queue whose tasks have been completed, or delivered too many times.
+     * Completed tasks are not removed from the lease queue when their results arrive, only when they reach the head.
+     * @return true if any leases remain, in which case the lease at the head is for an incomplete task.
+     */
+    private boolean removeFinishedLeases (int now) {
+        while (!leases.isEmpty()) {
+            int taskId = leases.peekTaskId();
+            if (completedTasks.get(taskId)) {
+                leases.remove();
+            } else if (deliveryCounts[taskId] >= MAX_DELIVERIES_PER_TASK
+                    && leases.peekExpiryTime() <= now) {
+                LOG.error("Task {} of job {} has been delivered {} times without a result. Not redelivering.",
+                        taskId, jobId, deliveryCounts[taskId]);
+                leases.remove();
+                nTasksAbandoned += 1;
+                if (nTasksAbandoned == 1 && resultAssembler != null) {
+                    resultAssembler.fail(String.format("task %d was delivered %d times without a result",
+                            taskId, deliveryCounts[taskId]));
+                }
+            } else {
+                return true;
             }
-            nextTaskToDeliver = 0;
-            deliveryPass += 1;
-            LOG.warn("Delivered all tasks for job {}, but {} seconds later {} results have not been received. Starting redelivery pass {}.",
-                    jobId, REDELIVERY_WAIT_SEC, nTasksTotal - nTasksCompleted, deliveryPass);
-            return true;
         }
         return false;
     }
 
+    /**
+     * @return true if any task has been abandoned. The job can then never be completed, and should be removed from
+     *         its queue so no more of its tasks are delivered.
+     */
+    public boolean hasFailed () {
+        return nTasksAbandoned > 0;
+    }
+
+    private int secondsSinceCreation (long currentTimeMillis) {
+        return (int) ((currentTimeMillis - creationTime) / 1000);
+    }
+
     /**
      * Just as a failsafe, when our counter indicates that the job is complete, actually check how many bits are set.
      */
@@ -183,7 +440,10 @@ public class Job {
                 "jobId='" + jobId + '\'' +
                 ", nTasksTotal=" + nTasksTotal +
                 ", nTasksCompleted=" + nTasksCompleted +
-                ", deliveryPass=" + deliveryPass +
+                ", nTasksRedelivered=" + nTasksRedelivered +
+                ", nTasksAbandoned=" + nTasksAbandoned +
+                ", nSpeculativeCopies=" + nSpeculativeCopies +
+                ", nSpeculativeCopiesWon=" + nSpeculativeCopiesWon +
                 '}';
     }
 }
@@ -7,6 +7,9 @@ import com.conveyal.taui.models.RegionalAnalysis;
  */
 public class JobStatus {
 
+    /** The job ID of the status summing up all the jobs, which follows the statuses of the individual jobs. */
+    public static final String SUMMARY_ID = "SUM";
+
     /** The ID of this job. */
     public String jobId;
 
@@ -28,9 +31,51 @@ public class JobStatus {
     /** The total number of task deliveries that have occurred. Tasks will be counted more than once if redelivered. */
     public int deliveries;
 
-    /** The number of times we have started over at the beginning to redeliver tasks never marked complete. */
+    /** The largest number of times any one task has been redelivered, because its lease expired with no result. */
     public int deliveryPass;
 
+    /** The number of deliveries of tasks whose leases had expired. */
+    public int redeliveries;
+
+    /** The number of tasks given up on after being delivered many times without a result. */
+    public int abandoned;
+
+    /** The number of speculative copies delivered of tasks that were taking a long time on other workers. */
+    public int speculativeCopies;
+
+    /** The number of speculative copies whose results arrived before those of the original delivery. */
+    public int speculativeCopiesWon;
+
+    /** The recent rate at which this job's tasks have been completed, or zero if it is not yet known. */
+    public double tasksPerSecond;
+
+    /** The estimated number of seconds until this job is complete at the recent rate, or -1 if it is not known. */
+    public long secondsRemaining;
+
+    /** The number of workers that have recently completed tasks in this job. */
+    public int activeWorkers;
+
+    /** The access group (organization) that created this job. */
+    public String accessGroup;
+
+    /** The weight of this job's access group when sharing out the workers in its category. */
+    public int accessGroupWeight;
+
+    /** The fraction of the tasks delivered in this job's category that its access group is entitled to. */
+    public double accessGroupFairShare;
+
+    /** The fraction of tasks recently delivered in this job's category that actually went to its access group. */
+    public double accessGroupDeliveredShare;
+
+    /** The fraction of the tasks delivered in this job's category that this job is entitled to. */
+    public double fairShare;
+
+    /** The fraction of tasks recently delivered in this job's category that actually went to this job. */
+    public double deliveredShare;
+
+    /** The address and port of the backend node holding this job, when the broker is partitioned among several. */
+    public String node;
+
     /** The regional analysis associated with this job */
     public RegionalAnalysis regionalAnalysis;
 
@@ -40,6 +85,7 @@ public class JobStatus {
     /** Summarize the given job to return its status over the REST API. */
     public JobStatus (Job job) {
         this.jobId = job.jobId;
+        this.accessGroup = job.accessGroup;
         this.graphId = job.workerCategory.graphId;
         this.workerCommit = job.workerCategory.workerVersion;
         this.total = job.nTasksTotal;
@@ -47,17 +93,31 @@ public class JobStatus {
         this.incomplete = total - complete;
         this.deliveries = job.nTasksDelivered;
         this.deliveryPass = job.deliveryPass;
+        this.redeliveries = job.nTasksRedelivered;
+        this.abandoned = job.nTasksAbandoned;
+        this.speculativeCopies = job.nSpeculativeCopies;
+        this.speculativeCopiesWon = job.nSpeculativeCopiesWon;
+        this.tasksPerSecond = job.throughput.getTasksPerSecond();
+        this.secondsRemaining = job.throughput.getSecondsRemaining(incomplete);
+        this.activeWorkers = job.throughput.getActiveWorkers();
     }
 
-    /** Sum up the summmary info for a bunch of jobs. */
-    public JobStatus (Iterable<JobStatus> statuses) {
+    /**
+     * Sum up the summmary info for a bunch of jobs. The number of active workers is not summed over the jobs, as a
+     * worker completing tasks in several jobs would be counted once for each of them.
+     * @param activeWorkers the number of workers that have recently completed tasks in any of the jobs.
+     */
+    public JobStatus (Iterable<JobStatus> statuses, int activeWorkers) {
         for (JobStatus status : statuses) {
             this.total += status.total;
             this.complete += status.complete;
             this.incomplete += status.incomplete;
+            this.tasksPerSecond += status.tasksPerSecond;
         }
-        this.jobId = "SUM";
-        this.graphId = "SUM";
+        this.activeWorkers = activeWorkers;
+        this.secondsRemaining = tasksPerSecond > 0 ? Math.round(incomplete / tasksPerSecond) : -1;
+        this.jobId = SUMMARY_ID;
+        this.graphId = SUMMARY_ID;
     }
 
 }
@@ -0,0 +1,133 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.taui.GridResultAssembler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Saves unfinished regional jobs in a directory on local disk, so that when the backend is restarted (by a deploy or a
+ * crash) its jobs are resumed where they left off rather than lost along with all the work already done on them.
+ *
+ * Each job has three files in the directory, named after its job ID. The JSON file holds everything needed to
+ * recreate the job: its template task, the access group and user that created it, and the order in which its tasks
+ * are delivered. It is written once when the job is enqueued. The access grid file is the GridResultAssembler's
+ * buffer, into which results are written as they arrive. The completed file holds the bitset of completed tasks,
+ * which is checkpointed periodically. A result is always written into the buffer before its task is marked as
+ * completed, and the buffer is flushed to disk before the bitset is saved, so every task in a saved bitset has its
+ * result on disk. Tasks completed since the last checkpoint are simply computed again after a restart.
+ *
+ * Files are replaced by writing a new file and renaming it over the old one, so a crash while saving leaves the
+ * previous version intact. Leases are not saved: after a restart every incomplete task is delivered again, and any
+ * results that arrive from workers for tasks delivered before the restart are accepted as usual.
+ */
+public class JobStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JobStore.class);
+
+    /** How often the completed tasks of every unfinished job are saved. */
+    public static final int CHECKPOINT_INTERVAL_SECONDS = 30;
+
+    /** Everything needed to recreate a job, apart from its progress. */
+    public static class JobMetadata {
+        public RegionalTask templateTask;
+        public String accessGroup;
+        public String createdBy;
+        public TaskOrdering.Type taskOrdering;
+    }
+
+    private final File directory;
+
+    public JobStore (File directory) {
+        this.directory = directory;
+        directory.mkdirs();
+    }
+
+    /** @return the file in which the given job's results should be assembled. */
+    public File getBufferFile (String jobId) {
+        return new File(directory, jobId + ".access_grid");
+    }
+
+    private File getMetadataFile (String jobId) {
+        return new File(directory, jobId + ".json");
+    }
+
+    private File getCompletedTasksFile (String jobId) {
+        return new File(directory, jobId + ".completed");
+    }
+
+    /** Save the information needed to recreate the given job, which should be done before it receives any results. */
+    public void saveMetadata (Job job) throws IOException {
+        JobMetadata metadata = new JobMetadata();
+        metadata.templateTask = job.getTemplateTask();
+        metadata.accessGroup = job.accessGroup;
+        metadata.createdBy = job.createdBy;
+        metadata.taskOrdering = job.orderingType;
+        replace(getMetadataFile(job.jobId), JsonUtilities.objectMapper.writeValueAsBytes(metadata));
+    }
+
+    /**
+     * Save the set of completed tasks of a job. The results of all these tasks must already have been flushed to the
+     * job's buffer file.
+     */
+    public void saveCompletedTasks (String jobId, BitSet completedTasks) throws IOException {
+        replace(getCompletedTasksFile(jobId), completedTasks.toByteArray());
+    }
+
+    private void replace (File file, byte[] contents) throws IOException {
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        Files.write(tempFile.toPath(), contents);
+        Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /** Remove all the files of the given job, once it has been deleted or its results have been uploaded. */
+    public void delete (String jobId) {
+        getMetadataFile(jobId).delete();
+        getCompletedTasksFile(jobId).delete();
+        getBufferFile(jobId).delete();
+    }
+
+    /**
+     * Recreate all the jobs saved in this store, with their results so far and the tasks known to be completed.
+     * Jobs that cannot be recreated are logged and deleted from the store.
+     * @param outputBucket the bucket to which the results of the recreated jobs will be uploaded.
+     */
+    public List<Job> loadJobs (String outputBucket) {
+        List<Job> jobs = new ArrayList<>();
+        File[] metadataFiles = directory.listFiles((dir, name) -> name.endsWith(".json"));
+        if (metadataFiles == null) return jobs;
+        for (File metadataFile : metadataFiles) {
+            String jobId = metadataFile.getName().substring(0, metadataFile.getName().length() - ".json".length());
+            try {
+                JobMetadata metadata = JsonUtilities.objectMapper.readValue(metadataFile, JobMetadata.class);
+                File completedTasksFile = getCompletedTasksFile(jobId);
+                BitSet completedTasks = completedTasksFile.exists()
+                        ? BitSet.valueOf(Files.readAllBytes(completedTasksFile.toPath()))
+                        : new BitSet();
+                GridResultAssembler assembler = GridResultAssembler.resume(metadata.templateTask, outputBucket,
+                        getBufferFile(jobId), completedTasks);
+                Job job = new Job(metadata.templateTask, metadata.accessGroup, metadata.createdBy, assembler,
+                        metadata.taskOrdering);
+                job.restoreCompletedTasks(completedTasks);
+                LOG.info("Resuming job {} with {} of {} tasks completed.", jobId, job.nTasksCompleted,
+                        job.nTasksTotal);
+                jobs.add(job);
+            } catch (Exception e) {
+                LOG.error("Could not resume job {}, discarding it.", jobId, e);
+                delete(jobId);
+            }
+        }
+        return jobs;
+    }
+
+}
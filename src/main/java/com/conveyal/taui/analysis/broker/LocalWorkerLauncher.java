@@ -0,0 +1,184 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.taui.AnalysisServerConfig;
+import com.conveyal.taui.analysis.LocalCluster;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Starts workers as separate JVM processes on the machine running the broker. Each worker has its own JVM because
+ * the worker ID is static in the R5 worker, and each listens for single point requests on its own port, counting up
+ * from the configured worker port. This allows one large machine to use all its cores on regional analyses, and
+ * allows testing the broker from end to end without starting any EC2 instances.
+ *
+ * Workers do not report the port they listen on when they poll, and the broker only learns their IDs from their
+ * polls. So each worker process writes its ID to a file named after its port as it starts, and single point requests
+ * for a worker are sent to the port whose file holds its ID.
+ *
+ * Workers are started with the same classpath as the server, in the same working directory so that they read the
+ * same configuration file, and write their output to a log file in the local cache directory. The number of worker
+ * processes is limited to the configured number of local workers, so requests to launch more workers than that are
+ * only partly fulfilled. Processes that have exited are replaced by the next request. All the worker processes are
+ * stopped when the server shuts down.
+ */
+public class LocalWorkerLauncher implements WorkerLauncher {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LocalWorkerLauncher.class);
+
+    /** The maximum number of worker processes to run at once. */
+    private final int maxWorkers;
+
+    /** The directory in which the workers write their ID files and logs. */
+    private final File directory;
+
+    /** The running worker processes, keyed on the port on which each one listens for single point requests. */
+    private final Map<Integer, Process> processForPort = new TreeMap<>();
+
+    /** The ports of the worker processes whose IDs have been read from their ID files. */
+    private final Map<String, Integer> portForWorkerId = new ConcurrentHashMap<>();
+
+    /**
+     * @return the number of local worker processes set in the configuration, or zero if workers should not be
+     *         started locally.
+     */
+    public static int getConfiguredWorkerCount () {
+        String nWorkers = AnalysisServerConfig.localWorkers;
+        return nWorkers == null ? 0 : Integer.parseInt(nWorkers.trim());
+    }
+
+    public LocalWorkerLauncher (int maxWorkers) {
+        this(maxWorkers, new File(AnalysisServerConfig.localCacheDirectory));
+    }
+
+    LocalWorkerLauncher (int maxWorkers, File directory) {
+        this.maxWorkers = maxWorkers;
+        this.directory = directory;
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stopAll, "stop local workers"));
+    }
+
+    /**
+     * Start worker processes, as many as were requested up to the maximum number of local workers. There is no
+     * difference between on-demand and spot workers on the local machine.
+     * @param category the network the workers should load on startup, which may be null.
+     */
+    @Override
+    public synchronized void launch (WorkerCategory category, String group, String user, int nOnDemand, int nSpot) {
+        processForPort.values().removeIf(process -> !process.isAlive());
+        portForWorkerId.values().retainAll(processForPort.keySet());
+        int nWorkers = Math.min(nOnDemand + nSpot, maxWorkers - processForPort.size());
+        if (nWorkers < nOnDemand + nSpot) {
+            LOG.warn("Only {} local workers may run at once, starting {} of the {} requested.", maxWorkers, nWorkers,
+                    nOnDemand + nSpot);
+        }
+        int port = AnalysisServerConfig.workerPort;
+        for (int i = 0; i < nWorkers; i++) {
+            while (processForPort.containsKey(port)) port += 1;
+            // Remove the ID of any earlier worker on this port, which the new worker replaces with its own.
+            File idFile = getIdFile(port);
+            idFile.delete();
+            try {
+                processForPort.put(port, startWorker(category, port, idFile));
+            } catch (IOException e) {
+                LOG.error("Could not start a local worker on port {}: {}", port, e.toString());
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the port of the local worker process with the given ID, or the configured worker port if there is no
+     *         such process, such as a worker started some other way.
+     */
+    @Override
+    public int getWorkerPort (String workerId) {
+        Integer port = portForWorkerId.get(workerId);
+        if (port == null) {
+            port = readWorkerPorts().get(workerId);
+        }
+        if (port == null) {
+            LOG.warn("Worker {} was not started by this launcher, using the default worker port.", workerId);
+            return AnalysisServerConfig.workerPort;
+        }
+        return port;
+    }
+
+    /** Read the ID files of all the running worker processes whose IDs are not yet known. */
+    private synchronized Map<String, Integer> readWorkerPorts () {
+        for (Map.Entry<Integer, Process> entry : processForPort.entrySet()) {
+            int port = entry.getKey();
+            if (!entry.getValue().isAlive() || portForWorkerId.containsValue(port)) continue;
+            File idFile = getIdFile(port);
+            try {
+                if (idFile.exists()) {
+                    String workerId = new String(Files.readAllBytes(idFile.toPath()), StandardCharsets.UTF_8).trim();
+                    if (!workerId.isEmpty()) portForWorkerId.put(workerId, port);
+                }
+            } catch (IOException e) {
+                LOG.error("Could not read the ID of the local worker on port {}: {}", port, e.toString());
+            }
+        }
+        return portForWorkerId;
+    }
+
+    /** The file to which the worker process listening on the given port writes its ID as it starts. */
+    private File getIdFile (int port) {
+        return new File(directory, "worker-" + port + ".id");
+    }
+
+    /**
+     * Start a worker process listening on the given port, which writes its ID to the given file as it starts.
+     * This is overridden in tests, to check the bookkeeping of the processes without starting any.
+     */
+    Process startWorker (WorkerCategory category, int port, File idFile) throws IOException {
+        Properties workerConfig = LocalCluster.createWorkerConfig();
+        workerConfig.setProperty("worker-port", Integer.toString(port));
+        if (category != null && category.graphId != null) {
+            workerConfig.setProperty("initial-graph-id", category.graphId);
+        }
+        File configFile = File.createTempFile("worker-" + port + "-", ".conf");
+        configFile.deleteOnExit();
+        try (OutputStream out = new FileOutputStream(configFile)) {
+            workerConfig.store(out, "Local worker on port " + port);
+        }
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        if (AnalysisServerConfig.localWorkerHeap != null) {
+            command.add("-Xmx" + AnalysisServerConfig.localWorkerHeap);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(LocalCluster.class.getName());
+        command.add(configFile.getPath());
+        command.add(idFile.getPath());
+        File logFile = new File(directory, "worker-" + port + ".log");
+        LOG.info("Starting local worker on port {}, logging to {}", port, logFile);
+        return new ProcessBuilder(command)
+                .redirectErrorStream(true)
+                .redirectOutput(ProcessBuilder.Redirect.appendTo(logFile))
+                .start();
+    }
+
+    /** Stop all the worker processes started by this launcher. */
+    public synchronized void stopAll () {
+        for (Process process : processForPort.values()) {
+            process.destroy();
+        }
+        processForPort.clear();
+        portForWorkerId.clear();
+    }
+
+}
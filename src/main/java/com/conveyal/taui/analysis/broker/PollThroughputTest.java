@@ -0,0 +1,111 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.conveyal.taui.AnalysisServerConfig;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This is not an automatic unit test. It is a concurrency stress test that must be started manually, and requires an
+ * analysis.properties file in the working directory like the rest of the backend. It hammers a single Broker from
+ * an increasing number of threads, each thread playing the part of many workers polling for tasks on its own network
+ * and immediately returning the results of each batch together, as a worker does in its next poll. Because each
+ * WorkerCategory has its own lock, the reported poll throughput should grow roughly linearly with the number of
+ * threads, up to the number of available cores.
+ * A second series has all threads polling the same network, which shows the cost of contention within one category.
+ */
+public class PollThroughputTest {
+
+    private static final Logger LOG = LoggerFactory.getLogger(PollThroughputTest.class);
+
+    /** How long to let the polling threads run for each thread count. */
+    static final int RUN_MILLISECONDS = 5000;
+
+    /** Each job is a grid of this width and height, large enough that no job completes during a run. */
+    static final int GRID_SIZE = 2000;
+
+    public static void main (String[] params) throws Exception {
+        // Keep the broker from trying to start workers for these fake jobs.
+        AnalysisServerConfig.testTaskRedelivery = true;
+        int maxThreads = Runtime.getRuntime().availableProcessors();
+        for (boolean sharedCategory : new boolean[] {false, true}) {
+            LOG.info(sharedCategory ? "All threads polling one network:" : "Each thread polling its own network:");
+            for (int nThreads = 1; nThreads <= maxThreads; nThreads *= 2) {
+                double pollsPerSecond = measure(nThreads, sharedCategory);
+                LOG.info("{} threads: {} polls per second", nThreads, String.format("%.0f", pollsPerSecond));
+            }
+        }
+        System.exit(0);
+    }
+
+    private static double measure (int nThreads, boolean sharedCategory) throws InterruptedException {
+        Broker broker = new Broker(false);
+        List<String> jobIds = new ArrayList<>();
+        List<WorkerCategory> categories = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            RegionalTask templateTask = new RegionalTask();
+            templateTask.jobId = RedeliveryTest.compactUUID();
+            templateTask.graphId = sharedCategory ? "SHARED" : "NETWORK_" + t;
+            templateTask.workerVersion = "v0";
+            templateTask.west = 0;
+            templateTask.north = 0;
+            templateTask.width = GRID_SIZE;
+            templateTask.height = GRID_SIZE;
+            templateTask.scenarioId = "FAKE";
+            broker.enqueueTasksForRegionalJob(templateTask, "test", "test");
+            jobIds.add(templateTask.jobId);
+            categories.add(new WorkerCategory(templateTask.graphId, templateTask.workerVersion));
+        }
+        AtomicLong nPolls = new AtomicLong();
+        CountDownLatch startSignal = new CountDownLatch(1);
+        long deadline = System.currentTimeMillis() + RUN_MILLISECONDS;
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < nThreads; t++) {
+            final WorkerCategory category = categories.get(t);
+            final String workerId = "WORKER_" + t;
+            Thread thread = new Thread(() -> {
+                try {
+                    startSignal.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long localPolls = 0;
+                while (System.currentTimeMillis() < deadline) {
+                    TaskBatch tasks = broker.getSomeWork(category, workerId);
+                    List<RegionalWorkResult> workResults = new ArrayList<>(tasks.taskIds.length);
+                    for (int taskId : tasks.taskIds) {
+                        RegionalWorkResult workResult = new RegionalWorkResult();
+                        workResult.jobId = tasks.getJobId();
+                        workResult.taskId = taskId;
+                        workResult.accessibilityValues = new int[][][] {{{taskId}}};
+                        workResults.add(workResult);
+                    }
+                    broker.acceptResults(workResults, workerId);
+                    localPolls += 1;
+                }
+                nPolls.addAndGet(localPolls);
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        long startTime = System.currentTimeMillis();
+        startSignal.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        double elapsedSeconds = (System.currentTimeMillis() - startTime) / 1000d;
+        for (String jobId : jobIds) {
+            broker.deleteJob(jobId);
+        }
+        broker.shutdown();
+        return nPolls.get() / elapsedSeconds;
+    }
+
+}
@@ -0,0 +1,203 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.taui.AnalysisServerConfig;
+import com.google.common.hash.Hashing;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Chooses which worker in a category handles each single point request, and decides when a category needs more
+ * workers to keep single point requests responsive.
+ *
+ * Workers cache the networks they build by applying scenarios and the pointsets they link, so requests for the same
+ * scenario should go to the same worker. Workers are ranked for each scenario by rendezvous hashing of the scenario ID
+ * and worker ID, and a request goes to the highest ranked worker that has fewer than MAX_OUTSTANDING_PER_WORKER
+ * requests in progress. So each scenario usually stays on one worker, different scenarios are spread across all the
+ * workers in the category, and when a worker starts a new scenario only the scenarios it ranks first for move to it.
+ * If every worker is that busy, the request goes to the one with the fewest requests in progress.
+ *
+ * The time taken to answer each request is recorded for each category. When the 95th percentile of the recent times
+ * exceeds the configured threshold another worker is requested, at most once per SCALE_UP_INTERVAL_MILLIS, so that the
+ * new worker has time to start up and take a share of the requests before the times are measured again.
+ *
+ * This class is threadsafe.
+ */
+public class SinglePointRouter {
+
+    /** A worker with this many single point requests in progress is passed over for the next ranked worker. */
+    static final int MAX_OUTSTANDING_PER_WORKER = 2;
+
+    /** The number of recent response times kept for each category. */
+    static final int LATENCY_WINDOW_SIZE = 100;
+
+    /** No workers are requested until at least this many response times have been recorded in a category. */
+    static final int MIN_LATENCY_SAMPLES = 20;
+
+    /** After a worker is requested for a category, no more are requested for this long. */
+    static final long SCALE_UP_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+    /** No more workers are requested for single point requests once a category has this many. */
+    static final int MAX_SINGLE_POINT_WORKERS = 5;
+
+    static final double DEFAULT_LATENCY_THRESHOLD_SECONDS = 10;
+
+    /** A single point request that has been sent to a worker. Pass it to finish once the worker has responded. */
+    public static class Route {
+        public final WorkerCategory category;
+        public final String workerId;
+        public final String address;
+        final long startTime;
+
+        Route (WorkerCategory category, String workerId, String address, long startTime) {
+            this.category = category;
+            this.workerId = workerId;
+            this.address = address;
+            this.startTime = startTime;
+        }
+    }
+
+    /** The most recent response times in one category, in a circular buffer. */
+    private static class LatencyWindow {
+        final long[] latencies = new long[LATENCY_WINDOW_SIZE];
+        int nLatencies = 0;
+        int next = 0;
+        long lastScaleUpTime = Long.MIN_VALUE / 2;
+
+        void record (long latency) {
+            latencies[next] = latency;
+            next = (next + 1) % LATENCY_WINDOW_SIZE;
+            nLatencies = Math.min(nLatencies + 1, LATENCY_WINDOW_SIZE);
+        }
+
+        long percentile95 () {
+            long[] sorted = Arrays.copyOf(latencies, nLatencies);
+            Arrays.sort(sorted);
+            return sorted[(int) Math.ceil(nLatencies * 0.95) - 1];
+        }
+    }
+
+    private final WorkerCatalog workerCatalog;
+
+    private final long latencyThresholdMillis;
+
+    private final Map<String, Integer> outstandingForWorker = new ConcurrentHashMap<>();
+
+    private final Map<WorkerCategory, LatencyWindow> latencyForCategory = new ConcurrentHashMap<>();
+
+    /**
+     * @return the 95th percentile response time above which more workers are requested, as set in the configuration,
+     *         in milliseconds.
+     */
+    public static long getConfiguredLatencyThresholdMillis () {
+        String seconds = AnalysisServerConfig.singlePointLatencyThreshold;
+        double threshold = seconds == null ? DEFAULT_LATENCY_THRESHOLD_SECONDS : Double.parseDouble(seconds.trim());
+        return (long) (threshold * 1000);
+    }
+
+    public SinglePointRouter (WorkerCatalog workerCatalog, long latencyThresholdMillis) {
+        this.workerCatalog = workerCatalog;
+        this.latencyThresholdMillis = latencyThresholdMillis;
+    }
+
+    /**
+     * Choose a worker for a single point request on the given scenario, and count the request as in progress on it.
+     * @return the chosen worker, or null if there are no workers in the category.
+     */
+    public Route route (WorkerCategory category, String scenarioId) {
+        return route(category, scenarioId, System.currentTimeMillis());
+    }
+
+    Route route (WorkerCategory category, String scenarioId, long now) {
+        return chooseAmong(workerCatalog.getWorkersInCategory(category), category, scenarioId, now);
+    }
+
+    /**
+     * Choose any worker in the catalog for a single point request, whatever network it has loaded. This is for local
+     * workers when working offline, which all share the same files and can each load any network.
+     * @return the chosen worker, or null if there are no workers at all.
+     */
+    public Route routeToAnyWorker (WorkerCategory category, String scenarioId) {
+        return chooseAmong(new ArrayList<>(workerCatalog.getAllWorkerObservations()), category, scenarioId,
+                System.currentTimeMillis());
+    }
+
+    private Route chooseAmong (List<WorkerObservation> workers, WorkerCategory category, String scenarioId, long now) {
+        if (workers.isEmpty()) return null;
+        String key = String.valueOf(scenarioId);
+        List<WorkerObservation> ranked = workers.stream()
+                .sorted(Comparator.comparingLong((WorkerObservation worker) -> rank(worker.workerId, key)).reversed())
+                .collect(Collectors.toList());
+        // Another request may be routed between reading the counts and incrementing one, so a worker can briefly have
+        // more than the maximum number of requests in progress. That is harmless.
+        WorkerObservation chosen = null;
+        int chosenOutstanding = Integer.MAX_VALUE;
+        for (WorkerObservation worker : ranked) {
+            int outstanding = outstandingForWorker.getOrDefault(worker.workerId, 0);
+            if (outstanding < MAX_OUTSTANDING_PER_WORKER) {
+                chosen = worker;
+                break;
+            }
+            if (outstanding < chosenOutstanding) {
+                chosen = worker;
+                chosenOutstanding = outstanding;
+            }
+        }
+        outstandingForWorker.merge(chosen.workerId, 1, Integer::sum);
+        return new Route(category, chosen.workerId, chosen.status.ipAddress, now);
+    }
+
+    /** Route requests to a single worker that is not in the catalog, such as the local worker when working offline. */
+    Route routeTo (WorkerCategory category, String workerId, String address) {
+        outstandingForWorker.merge(workerId, 1, Integer::sum);
+        return new Route(category, workerId, address, System.currentTimeMillis());
+    }
+
+    private static long rank (String workerId, String scenarioId) {
+        return Hashing.murmur3_128().newHasher()
+                .putString(workerId, StandardCharsets.UTF_8)
+                .putString(scenarioId, StandardCharsets.UTF_8)
+                .hash().asLong();
+    }
+
+    /**
+     * Record that the worker has finished responding to a request, successfully or not.
+     * @return true if the category of the request needs another worker to keep single point requests responsive.
+     */
+    public boolean finish (Route route) {
+        return finish(route, System.currentTimeMillis());
+    }
+
+    boolean finish (Route route, long now) {
+        outstandingForWorker.computeIfPresent(route.workerId, (workerId, outstanding) ->
+                outstanding > 1 ? outstanding - 1 : null);
+        LatencyWindow window = latencyForCategory.computeIfAbsent(route.category, category -> new LatencyWindow());
+        synchronized (window) {
+            window.record(now - route.startTime);
+            if (window.nLatencies < MIN_LATENCY_SAMPLES
+                    || now - window.lastScaleUpTime < SCALE_UP_INTERVAL_MILLIS
+                    || window.percentile95() <= latencyThresholdMillis
+                    || workerCatalog.countWorkersInCategory(route.category) >= MAX_SINGLE_POINT_WORKERS) {
+                return false;
+            }
+            // Start measuring afresh, so the times recorded before the new worker arrived do not trigger another.
+            window.lastScaleUpTime = now;
+            window.nLatencies = 0;
+            window.next = 0;
+            return true;
+        }
+    }
+
+    /** @return the number of single point requests in progress on the given worker. */
+    int getOutstanding (String workerId) {
+        return outstandingForWorker.getOrDefault(workerId, 0);
+    }
+
+}
@@ -0,0 +1,107 @@
+package com.conveyal.taui.analysis.broker;
+
+import java.util.Arrays;
+
+/**
+ * The deliveries of tasks that may be copied speculatively to idle workers, in the order they were granted. Each is
+ * made up of a task number, the time at which it was delivered, the number identifying the worker it was delivered
+ * to, and how many times the task had been delivered including this delivery, which tells whether it is still the
+ * latest delivery of the task.
+ *
+ * Deliveries are granted in time order, so they are added at the tail and the ones granted longest ago are at the
+ * head. They can also be put back at the head, after being taken off to look at the ones behind them. This is a
+ * circular buffer of parallel int arrays, which grow when they fill up, so it creates no objects per delivery.
+ *
+ * This class is not threadsafe, it is protected by the lock of the CategoryJobQueue holding the job.
+ */
+class SpeculationQueue {
+
+    private int[] taskIds;
+
+    private int[] grantTimes;
+
+    private int[] workers;
+
+    private int[] deliveries;
+
+    /** The position in the arrays of the head of the queue. */
+    private int head = 0;
+
+    private int size = 0;
+
+    SpeculationQueue (int initialCapacity) {
+        taskIds = new int[Math.max(16, initialCapacity)];
+        grantTimes = new int[taskIds.length];
+        workers = new int[taskIds.length];
+        deliveries = new int[taskIds.length];
+    }
+
+    /** Add a delivery at the tail. It must not have been granted before the delivery already at the tail. */
+    void addLast (int taskId, int grantTime, int worker, int delivery) {
+        if (size == taskIds.length) grow();
+        set((head + size) % taskIds.length, taskId, grantTime, worker, delivery);
+        size += 1;
+    }
+
+    /** Put a delivery back at the head. It must not have been granted after the delivery already at the head. */
+    void addFirst (int taskId, int grantTime, int worker, int delivery) {
+        if (size == taskIds.length) grow();
+        head = (head + taskIds.length - 1) % taskIds.length;
+        set(head, taskId, grantTime, worker, delivery);
+        size += 1;
+    }
+
+    boolean isEmpty () {
+        return size == 0;
+    }
+
+    int size () {
+        return size;
+    }
+
+    /** The fields of the delivery at the head, which was granted longest ago. The queue must not be empty. */
+    int peekTaskId () {
+        return taskIds[head];
+    }
+
+    int peekGrantTime () {
+        return grantTimes[head];
+    }
+
+    int peekWorker () {
+        return workers[head];
+    }
+
+    int peekDelivery () {
+        return deliveries[head];
+    }
+
+    /** Remove the delivery at the head. The queue must not be empty. */
+    void removeFirst () {
+        head = (head + 1) % taskIds.length;
+        size -= 1;
+    }
+
+    private void set (int position, int taskId, int grantTime, int worker, int delivery) {
+        taskIds[position] = taskId;
+        grantTimes[position] = grantTime;
+        workers[position] = worker;
+        deliveries[position] = delivery;
+    }
+
+    /** Double the capacity, moving the head back to the start of the arrays. */
+    private void grow () {
+        taskIds = unwrap(taskIds);
+        grantTimes = unwrap(grantTimes);
+        workers = unwrap(workers);
+        deliveries = unwrap(deliveries);
+        head = 0;
+    }
+
+    private int[] unwrap (int[] values) {
+        int[] grown = Arrays.copyOf(Arrays.copyOfRange(values, head, values.length), values.length * 2);
+        System.arraycopy(values, 0, grown, values.length - head, head);
+        return grown;
+    }
+
+}
@@ -0,0 +1,57 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A group of tasks from a single job, delivered to a worker together in response to one poll.
+ *
+ * Every task in a job is identical to the job's template except for its origin, which is determined by the task
+ * number. So rather than making a full copy of the template for every task delivered, the broker hands out the task
+ * numbers along with a reference to the shared template. Delivering tasks then allocates only one small array per
+ * poll. Workers using the binary poll protocol hold on to the template and receive only the task numbers, while the
+ * full per-task copies are only made when tasks are sent to workers as JSON.
+ */
+public class TaskBatch {
+
+    /** A batch containing no tasks, returned when there is no work to deliver. */
+    public static final TaskBatch EMPTY = new TaskBatch(null, new int[0]);
+
+    /**
+     * The task on which all tasks in this batch are based. This is the job's own template rather than a copy, so it
+     * must never be modified.
+     */
+    public final RegionalTask templateTask;
+
+    /** The task numbers within the job, each of which is also the index of the origin point within the job's grid. */
+    public final int[] taskIds;
+
+    TaskBatch (RegionalTask templateTask, int[] taskIds) {
+        this.templateTask = templateTask;
+        this.taskIds = taskIds;
+    }
+
+    public boolean isEmpty () {
+        return taskIds.length == 0;
+    }
+
+    public String getJobId () {
+        return templateTask == null ? null : templateTask.jobId;
+    }
+
+    /** Expand this batch into one complete task per origin, for workers that receive their tasks as JSON. */
+    public List<RegionalTask> toTasks () {
+        if (isEmpty()) return Collections.EMPTY_LIST;
+        List<RegionalTask> tasks = new ArrayList<>(taskIds.length);
+        for (int taskId : taskIds) {
+            RegionalTask task = templateTask.clone();
+            Job.setOrigin(task, taskId);
+            tasks.add(task);
+        }
+        return tasks;
+    }
+
+}
@@ -0,0 +1,74 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * This is not an automatic unit test. It is a benchmark that must be started manually, measuring the time taken and
+ * the memory allocated on each worker poll by Job.generateSomeTasksToDeliver. It compares handing out a batch of task
+ * numbers (as sent to workers using the binary poll protocol) against expanding every batch into one complete copy
+ * of the template per task (as still happens for workers polling with JSON, and as happened for all workers before).
+ * Each measurement delivers every task of a large job, and is repeated a few times so later rounds reflect
+ * JIT-compiled code. Allocation is measured with the HotSpot-specific per-thread allocation counter.
+ */
+public class TaskDeliveryBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TaskDeliveryBenchmark.class);
+
+    static final int GRID_SIZE = 1000;
+
+    static final int N_ROUNDS = 5;
+
+    public static void main (String[] params) {
+        for (int round = 0; round < N_ROUNDS; round++) {
+            for (boolean expand : new boolean[] {true, false}) {
+                measure(round, expand);
+            }
+        }
+    }
+
+    private static void measure (int round, boolean expand) {
+        RegionalTask templateTask = new RegionalTask();
+        templateTask.jobId = RedeliveryTest.compactUUID();
+        templateTask.graphId = "BENCHMARK";
+        templateTask.workerVersion = "v0";
+        templateTask.zoom = 9;
+        templateTask.width = GRID_SIZE;
+        templateTask.height = GRID_SIZE;
+        templateTask.scenarioId = "FAKE";
+        // The job has no result assembler, as results are never returned.
+        Job job = new Job(templateTask, "test", "test", null);
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        long nPolls = 0;
+        long checksum = 0;
+        long startBytes = threadMXBean.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        while (true) {
+            TaskBatch batch = job.generateSomeTasksToDeliver(WorkerThroughputTracker.DEFAULT_TASKS_PER_POLL, null);
+            if (batch.isEmpty()) break;
+            if (expand) {
+                for (RegionalTask task : batch.toTasks()) {
+                    checksum += task.x;
+                }
+            } else {
+                for (int taskId : batch.taskIds) {
+                    checksum += taskId;
+                }
+            }
+            nPolls += 1;
+        }
+        long elapsedNanos = System.nanoTime() - startTime;
+        long allocatedBytes = threadMXBean.getThreadAllocatedBytes(threadId) - startBytes;
+        LOG.info("Round {}, {}: {} ns and {} bytes allocated per poll (checksum {})", round,
+                expand ? "complete tasks" : "task number batches",
+                String.format("%.0f", (double) elapsedNanos / nPolls),
+                String.format("%.0f", (double) allocatedBytes / nPolls),
+                checksum);
+    }
+
+}
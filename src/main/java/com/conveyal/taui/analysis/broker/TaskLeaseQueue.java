@@ -0,0 +1,139 @@
+package com.conveyal.taui.analysis.broker;
+
+import java.util.Arrays;
+
+/**
+ * A priority queue of task leases, each made up of a task number, the times at which the lease was granted and
+ * expires, and a number identifying the worker holding the lease. Leases are granted for different lengths of time
+ * depending on how quickly the worker holding them is expected to complete its tasks, so they do not expire in the
+ * order they were granted. The queue is a binary min-heap on expiry time, so the lease that expires first is always
+ * at the head. Finding the tasks that need to be redelivered only requires looking at the head of the queue, rather
+ * than scanning every task in the job.
+ *
+ * The leases are stored in parallel int arrays holding the heap, which grow when they fill up. This uses 16 bytes per
+ * outstanding lease and creates no objects per lease. Times are in seconds relative to some reference point chosen by
+ * the caller (such as the creation of the job) so that they fit in an int.
+ *
+ * This class is not threadsafe, it is protected by the lock of the CategoryJobQueue holding the job.
+ */
+class TaskLeaseQueue {
+
+    private int[] taskIds;
+
+    private int[] grantTimes;
+
+    private int[] expiryTimes;
+
+    private int[] workers;
+
+    private int size = 0;
+
+    TaskLeaseQueue (int initialCapacity) {
+        taskIds = new int[Math.max(16, initialCapacity)];
+        grantTimes = new int[taskIds.length];
+        expiryTimes = new int[taskIds.length];
+        workers = new int[taskIds.length];
+    }
+
+    void add (int taskId, int grantTime, int expiryTime, int worker) {
+        if (size == taskIds.length) {
+            grow();
+        }
+        set(size, taskId, grantTime, expiryTime, worker);
+        size += 1;
+        siftUp(size - 1);
+    }
+
+    boolean isEmpty () {
+        return size == 0;
+    }
+
+    int size () {
+        return size;
+    }
+
+    /** @return the task number of the lease that expires first. The queue must not be empty. */
+    int peekTaskId () {
+        return taskIds[0];
+    }
+
+    /** @return the expiry time of the lease that expires first. The queue must not be empty. */
+    int peekExpiryTime () {
+        return expiryTimes[0];
+    }
+
+    /**
+     * The leases can be read by position to look at all of them, for example to find the ones granted long ago.
+     * Positions follow the order of the heap, so earlier positions tend to expire sooner, but they are not sorted.
+     * @return the task number of the lease at the given position, from zero to size() - 1.
+     */
+    int getTaskId (int position) {
+        return taskIds[position];
+    }
+
+    int getGrantTime (int position) {
+        return grantTimes[position];
+    }
+
+    int getWorker (int position) {
+        return workers[position];
+    }
+
+    /** Remove the lease that expires first, returning its task number. The queue must not be empty. */
+    int remove () {
+        int taskId = taskIds[0];
+        size -= 1;
+        if (size > 0) {
+            set(0, taskIds[size], grantTimes[size], expiryTimes[size], workers[size]);
+            siftDown(0);
+        }
+        return taskId;
+    }
+
+    private void set (int position, int taskId, int grantTime, int expiryTime, int worker) {
+        taskIds[position] = taskId;
+        grantTimes[position] = grantTime;
+        expiryTimes[position] = expiryTime;
+        workers[position] = worker;
+    }
+
+    private void swap (int a, int b) {
+        int taskId = taskIds[a];
+        int grantTime = grantTimes[a];
+        int expiryTime = expiryTimes[a];
+        int worker = workers[a];
+        set(a, taskIds[b], grantTimes[b], expiryTimes[b], workers[b]);
+        set(b, taskId, grantTime, expiryTime, worker);
+    }
+
+    private void siftUp (int position) {
+        while (position > 0) {
+            int parent = (position - 1) / 2;
+            if (expiryTimes[parent] <= expiryTimes[position]) return;
+            swap(parent, position);
+            position = parent;
+        }
+    }
+
+    private void siftDown (int position) {
+        while (true) {
+            int child = 2 * position + 1;
+            if (child >= size) return;
+            if (child + 1 < size && expiryTimes[child + 1] < expiryTimes[child]) {
+                child += 1;
+            }
+            if (expiryTimes[position] <= expiryTimes[child]) return;
+            swap(position, child);
+            position = child;
+        }
+    }
+
+    private void grow () {
+        int capacity = taskIds.length * 2;
+        taskIds = Arrays.copyOf(taskIds, capacity);
+        grantTimes = Arrays.copyOf(grantTimes, capacity);
+        expiryTimes = Arrays.copyOf(expiryTimes, capacity);
+        workers = Arrays.copyOf(workers, capacity);
+    }
+
+}
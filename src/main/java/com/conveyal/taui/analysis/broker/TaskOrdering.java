@@ -0,0 +1,206 @@
+package com.conveyal.taui.analysis.broker;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The order in which the tasks of a job are handed out to workers. Each job walks through a sequence of positions
+ * from zero to size(), delivering the task at each position. An ordering only needs a few fields per job however
+ * many tasks it has, because the task at any position is computed rather than looked up in a stored sequence.
+ *
+ * Delivering tasks in row-major order is simplest, but spatial patterns in the world make some areas of a region
+ * much slower to compute than others (a dense downtown versus the rural fringe). Progress through the first rows of
+ * a grid then says little about how long the rest of the job will take. A pseudo-random order samples the whole
+ * region evenly from the start, so the fraction of tasks completed is an unbiased estimate of the fraction of the
+ * work done. On the other hand, neighboring origins use the same transit lines and roads, so a worker computing a
+ * compact block of origins is more likely to find what it needs already in its caches. The Z-order puts each batch
+ * of tasks in a compact square block rather than a long strip of a single row.
+ */
+public abstract class TaskOrdering {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TaskOrdering.class);
+
+    public enum Type {
+        ROW_MAJOR, Z_ORDER, RANDOM;
+
+        /**
+         * Parse an ordering name from the configuration, such as "row-major" or "z-order".
+         * A name that cannot be parsed is logged, as a mistake in the configuration should not stop the server.
+         * @return the named ordering, or ROW_MAJOR if the name is null or not recognized.
+         */
+        public static Type fromName (String name) {
+            if (name == null) return ROW_MAJOR;
+            try {
+                return valueOf(name.trim().toUpperCase().replace('-', '_'));
+            } catch (IllegalArgumentException e) {
+                LOG.error("Unknown task ordering '{}', expected row-major, z-order or random. Using row-major.", name);
+                return ROW_MAJOR;
+            }
+        }
+    }
+
+    /** @return the number of positions in the sequence, which may be more than the number of tasks. */
+    public abstract int size ();
+
+    /**
+     * @param position a position in the sequence, from zero up to size().
+     * @return the task to deliver at the given position, or -1 if no task falls at that position.
+     */
+    public abstract int taskAt (int position);
+
+    /**
+     * @param seed used to vary the order of random orderings from one job to the next.
+     */
+    public static TaskOrdering create (Type type, int width, int height, long seed) {
+        switch (type) {
+            case Z_ORDER:
+                return new ZOrder(width, height);
+            case RANDOM:
+                return new RandomOrder(width * height, seed);
+            default:
+                return new RowMajor(width * height);
+        }
+    }
+
+    /** Every task in order of its task number, one row of the grid after another. */
+    static class RowMajor extends TaskOrdering {
+
+        private final int nTasks;
+
+        RowMajor (int nTasks) {
+            this.nTasks = nTasks;
+        }
+
+        @Override
+        public int size () {
+            return nTasks;
+        }
+
+        @Override
+        public int taskAt (int position) {
+            return position;
+        }
+    }
+
+    /**
+     * The grid is divided into square tiles of TILE_SIZE by TILE_SIZE origins. The tiles are visited one row after
+     * another, alternating direction so that consecutive tiles are always adjacent, and the origins within each tile
+     * are visited in Z-order (Morton order). Any aligned run of 4^k positions within a tile is a square block of
+     * origins, so a batch of 16 tasks is a 4x4 block and a batch of 256 tasks is a whole tile. The tiles at the right
+     * and bottom edges of the grid may extend past it, and the positions falling outside the grid are skipped.
+     */
+    static class ZOrder extends TaskOrdering {
+
+        /** The width and height of each tile, which must be a power of two. */
+        static final int TILE_SIZE = 16;
+
+        private static final int TILE_AREA = TILE_SIZE * TILE_SIZE;
+
+        private final int width;
+        private final int height;
+        private final int nTilesX;
+        private final int nTilesY;
+
+        ZOrder (int width, int height) {
+            this.width = width;
+            this.height = height;
+            this.nTilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+            this.nTilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        }
+
+        @Override
+        public int size () {
+            return nTilesX * nTilesY * TILE_AREA;
+        }
+
+        @Override
+        public int taskAt (int position) {
+            int tile = position / TILE_AREA;
+            int withinTile = position % TILE_AREA;
+            int tileY = tile / nTilesX;
+            int tileX = tile % nTilesX;
+            if (tileY % 2 == 1) {
+                tileX = nTilesX - 1 - tileX;
+            }
+            int x = tileX * TILE_SIZE + compactBits(withinTile);
+            int y = tileY * TILE_SIZE + compactBits(withinTile >>> 1);
+            if (x >= width || y >= height) {
+                return -1;
+            }
+            return y * width + x;
+        }
+
+        /** Extract the even-numbered bits of the given Morton code, packing them together into the low bits. */
+        private static int compactBits (int code) {
+            code &= 0x55555555;
+            code = (code | (code >>> 1)) & 0x33333333;
+            code = (code | (code >>> 2)) & 0x0F0F0F0F;
+            code = (code | (code >>> 4)) & 0x00FF00FF;
+            code = (code | (code >>> 8)) & 0x0000FFFF;
+            return code;
+        }
+    }
+
+    /**
+     * A pseudo-random permutation of the task numbers, which visits every task exactly once without storing the
+     * sequence. This is a small Feistel network, which is a bijection on the numbers with an even number of bits
+     * whatever its round function. That domain is rounded up from the number of tasks, so it can be up to four times
+     * larger. Any number that falls outside the job is passed through the network again (cycle walking) until it
+     * lands on a task, which still yields a bijection on the task numbers. On average fewer than four passes are
+     * needed for each position.
+     */
+    static class RandomOrder extends TaskOrdering {
+
+        private static final int N_ROUNDS = 4;
+
+        private final int nTasks;
+        private final int halfBits;
+        private final long halfMask;
+        private final long seed;
+
+        RandomOrder (int nTasks, long seed) {
+            this.nTasks = nTasks;
+            int bits = 64 - Long.numberOfLeadingZeros(Math.max(0, nTasks - 1));
+            this.halfBits = (bits + 1) / 2;
+            this.halfMask = (1L << halfBits) - 1;
+            this.seed = seed;
+        }
+
+        @Override
+        public int size () {
+            return nTasks;
+        }
+
+        @Override
+        public int taskAt (int position) {
+            long value = position;
+            do {
+                value = permute(value);
+            } while (value >= nTasks);
+            return (int) value;
+        }
+
+        private long permute (long value) {
+            long left = value >>> halfBits;
+            long right = value & halfMask;
+            for (int round = 0; round < N_ROUNDS; round++) {
+                long newRight = left ^ (mix(right, round) & halfMask);
+                left = right;
+                right = newRight;
+            }
+            return (left << halfBits) | right;
+        }
+
+        /** The Feistel round function, which need not be invertible. This is the finalizer of MurmurHash3. */
+        private long mix (long value, int round) {
+            long h = value ^ seed ^ (round * 0x9E3779B97F4A7C15L);
+            h ^= h >>> 33;
+            h *= 0xFF51AFD7ED558CCDL;
+            h ^= h >>> 33;
+            h *= 0xC4CEB93FE1A85A53L;
+            h ^= h >>> 33;
+            return h;
+        }
+    }
+
+}
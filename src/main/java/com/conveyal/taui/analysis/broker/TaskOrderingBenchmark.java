@@ -0,0 +1,154 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * This is not an automatic unit test. It is a benchmark that must be started manually, comparing the wall time of a
+ * simulated regional analysis job when its tasks are delivered in each TaskOrdering, along with how well the progress
+ * of the job predicts its total duration. The job is handed out by a real CategoryJobQueue to simulated workers, which
+ * take a batch of tasks, work through it, and return it completed before polling again.
+ *
+ * The cost of computing each origin is modeled on a real region: origins near a dense downtown (placed off-center,
+ * in the upper left of the grid) take ten times as long as those on the fringe. Each worker keeps the data for the
+ * last few CELL_SIZE by CELL_SIZE blocks of origins it worked on in its cache. Starting work on an origin in any
+ * other block incurs a cache miss penalty. These costs are made up, so the results only show the relative merits of
+ * the orderings. The benchmark also checks that every ordering delivers every task exactly once.
+ */
+public class TaskOrderingBenchmark {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TaskOrderingBenchmark.class);
+
+    static final int WIDTH = 300;
+    static final int HEIGHT = 200;
+    static final int N_WORKERS = 20;
+
+    /** The width and height of the blocks of origins that share cached data, and how many blocks fit in the cache. */
+    static final int CELL_SIZE = 8;
+    static final int CACHE_CELLS = 8;
+
+    static final double FRINGE_SECONDS = 0.2;
+    static final double DOWNTOWN_SECONDS = 2.0;
+    static final double CACHE_MISS_SECONDS = 0.5;
+
+    /** The fractions of the job completed at which the duration of the whole job is estimated. */
+    static final double[] PROGRESS_FRACTIONS = {0.1, 0.25, 0.5};
+
+    private static class SimulatedWorker {
+        String workerId;
+        double busyUntil = 0;
+        TaskBatch tasks = TaskBatch.EMPTY;
+        /** The blocks of origins whose data is in this worker's cache, in order of last use. */
+        Set<Integer> cachedCells = new LinkedHashSet<>();
+    }
+
+    public static void main (String[] params) {
+        boolean allDeliveredOnce = true;
+        for (TaskOrdering.Type type : TaskOrdering.Type.values()) {
+            allDeliveredOnce &= simulate(type);
+        }
+        if (allDeliveredOnce) {
+            LOG.info("PASS: every ordering delivered every task exactly once.");
+        } else {
+            LOG.error("FAIL: some ordering did not deliver every task exactly once.");
+            System.exit(1);
+        }
+    }
+
+    /** @return whether every task of the job was delivered exactly once. */
+    private static boolean simulate (TaskOrdering.Type type) {
+        WorkerCategory category = new WorkerCategory("BENCHMARK", "v0");
+        CategoryJobQueue queue = new CategoryJobQueue(category, accessGroup -> 1);
+        RegionalTask templateTask = new RegionalTask();
+        templateTask.jobId = RedeliveryTest.compactUUID();
+        templateTask.graphId = category.graphId;
+        templateTask.workerVersion = category.workerVersion;
+        templateTask.width = WIDTH;
+        templateTask.height = HEIGHT;
+        // Results are not assembled, so the job has no result assembler.
+        Job job = new Job(templateTask, "benchmark", "benchmark", null, type);
+        queue.add(job);
+
+        PriorityQueue<SimulatedWorker> workers = new PriorityQueue<>((a, b) -> Double.compare(a.busyUntil, b.busyUntil));
+        for (int w = 0; w < N_WORKERS; w++) {
+            SimulatedWorker worker = new SimulatedWorker();
+            worker.workerId = "BENCHMARK_" + w;
+            workers.add(worker);
+        }
+        BitSet delivered = new BitSet(job.nTasksTotal);
+        boolean deliveredOnce = true;
+        int nCompleted = 0;
+        long nCacheMisses = 0;
+        double[] progressTimes = new double[PROGRESS_FRACTIONS.length];
+        double finishTime = 0;
+        while (!workers.isEmpty()) {
+            SimulatedWorker worker = workers.poll();
+            double now = worker.busyUntil;
+            for (int taskId : worker.tasks.taskIds) {
+                queue.markTaskCompleted(job, taskId, worker.workerId);
+                nCompleted += 1;
+                for (int i = 0; i < PROGRESS_FRACTIONS.length; i++) {
+                    if (progressTimes[i] == 0 && nCompleted >= PROGRESS_FRACTIONS[i] * job.nTasksTotal) {
+                        progressTimes[i] = now;
+                    }
+                }
+                finishTime = now;
+            }
+            worker.tasks = queue.getSomeWork(WorkerThroughputTracker.DEFAULT_TASKS_PER_POLL, worker.workerId);
+            if (worker.tasks.isEmpty()) {
+                // Every task has been handed out, so this worker is finished.
+                continue;
+            }
+            double duration = 0;
+            for (int taskId : worker.tasks.taskIds) {
+                if (delivered.get(taskId)) deliveredOnce = false;
+                delivered.set(taskId);
+                int x = taskId % WIDTH;
+                int y = taskId / WIDTH;
+                Integer cell = (y / CELL_SIZE) * WIDTH + x / CELL_SIZE;
+                if (!worker.cachedCells.remove(cell)) {
+                    duration += CACHE_MISS_SECONDS;
+                    nCacheMisses += 1;
+                    if (worker.cachedCells.size() >= CACHE_CELLS) {
+                        worker.cachedCells.remove(worker.cachedCells.iterator().next());
+                    }
+                }
+                worker.cachedCells.add(cell);
+                duration += originSeconds(x, y);
+            }
+            worker.busyUntil = now + duration;
+            workers.add(worker);
+        }
+        if (delivered.cardinality() != job.nTasksTotal) deliveredOnce = false;
+
+        StringBuilder estimates = new StringBuilder();
+        for (int i = 0; i < PROGRESS_FRACTIONS.length; i++) {
+            double estimatedTotal = progressTimes[i] / PROGRESS_FRACTIONS[i];
+            estimates.append(String.format(" %.0f%% done: %+.1f%%", PROGRESS_FRACTIONS[i] * 100,
+                    (estimatedTotal / finishTime - 1) * 100));
+        }
+        LOG.info("{}: job took {} simulated seconds, {} cache misses per task. Error of duration estimated at{}.",
+                type, String.format("%.0f", finishTime),
+                String.format("%.2f", (double) nCacheMisses / job.nTasksTotal), estimates);
+        return deliveredOnce;
+    }
+
+    /** The time taken to compute the given origin, not counting any cache miss. */
+    private static double originSeconds (int x, int y) {
+        double dx = x - WIDTH * 0.25;
+        double dy = y - HEIGHT * 0.25;
+        double sigma = WIDTH * 0.15;
+        double density = Math.exp(-(dx * dx + dy * dy) / (2 * sigma * sigma));
+        return FRINGE_SECONDS + (DOWNTOWN_SECONDS - FRINGE_SECONDS) * density;
+    }
+
+}
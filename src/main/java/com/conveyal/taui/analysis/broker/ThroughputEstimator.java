@@ -0,0 +1,105 @@
+package com.conveyal.taui.analysis.broker;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Estimates how many tasks per second are being completed, for a single job or for all the jobs in a worker category,
+ * and how many workers are contributing to that rate. This is used to report progress and estimate the time remaining
+ * in the UI and API, and to decide how many workers to start.
+ *
+ * The rate is an exponentially weighted moving average in continuous time: both the number of tasks completed and the
+ * time elapsed since measurement began are discounted by a factor of e for every TIME_CONSTANT_SECONDS that passes,
+ * and the estimate is their ratio. Until a few time constants have elapsed this is close to the plain average rate
+ * since the first completion. After that, it reflects mostly the last few time constants, so it follows changes in
+ * the number of workers and stalls where no tasks are completed, without being thrown off by the burst of results
+ * returned when a worker polls. Recording a completion is constant time and creates no objects once a worker is known.
+ *
+ * This class is threadsafe, so the estimates can be read without holding the lock of the queue that updates them.
+ */
+public class ThroughputEstimator {
+
+    /** Tasks completed this long ago carry about a third (1/e) of the weight of those completed now. */
+    static final double TIME_CONSTANT_SECONDS = 60;
+
+    /** No rate is reported until completions have been measured for at least this long. */
+    static final double MIN_SAMPLE_SECONDS = 5;
+
+    /** Workers are considered active if they have completed a task within this many milliseconds. */
+    static final long ACTIVE_WORKER_MILLIS = 60 * 1000;
+
+    private boolean started = false;
+
+    /** The last time the weighted values below were brought up to date, in milliseconds since the epoch. */
+    private long lastUpdateTime;
+
+    private double weightedTasks = 0;
+
+    private double weightedSeconds = 0;
+
+    private final Map<String, Long> lastCompletionTimeForWorker = new HashMap<>();
+
+    /** Record that the given worker completed one task just now. */
+    public void recordCompletion (String workerId) {
+        recordCompletion(workerId, System.currentTimeMillis());
+    }
+
+    synchronized void recordCompletion (String workerId, long now) {
+        if (workerId != null) {
+            lastCompletionTimeForWorker.put(workerId, now);
+        }
+        if (!started) {
+            // The first completion marks the start of measurement, and is not counted as it took no measured time.
+            started = true;
+            lastUpdateTime = now;
+            return;
+        }
+        decayTo(now);
+        weightedTasks += 1;
+    }
+
+    /** Discount the weighted values for the time that has passed since they were last updated. */
+    private void decayTo (long now) {
+        if (now <= lastUpdateTime) return;
+        double elapsedSeconds = (now - lastUpdateTime) / 1000d;
+        double decay = Math.exp(-elapsedSeconds / TIME_CONSTANT_SECONDS);
+        weightedTasks *= decay;
+        // The discounted length of the interval that just passed, integrated over the interval.
+        weightedSeconds = weightedSeconds * decay + TIME_CONSTANT_SECONDS * (1 - decay);
+        lastUpdateTime = now;
+    }
+
+    /** @return the estimated number of tasks completed per second, or zero if there is no estimate yet. */
+    public double getTasksPerSecond () {
+        return getTasksPerSecond(System.currentTimeMillis());
+    }
+
+    synchronized double getTasksPerSecond (long now) {
+        if (!started) return 0;
+        decayTo(now);
+        if (weightedSeconds < MIN_SAMPLE_SECONDS) return 0;
+        return weightedTasks / weightedSeconds;
+    }
+
+    /**
+     * @param nTasksRemaining the number of tasks still to be completed.
+     * @return the estimated number of seconds until the remaining tasks are completed, or -1 if it's not known.
+     */
+    public long getSecondsRemaining (int nTasksRemaining) {
+        if (nTasksRemaining <= 0) return 0;
+        double tasksPerSecond = getTasksPerSecond();
+        if (tasksPerSecond <= 0) return -1;
+        return Math.round(nTasksRemaining / tasksPerSecond);
+    }
+
+    /** @return the number of workers that have completed a task recently. */
+    public int getActiveWorkers () {
+        return getActiveWorkers(System.currentTimeMillis());
+    }
+
+    synchronized int getActiveWorkers (long now) {
+        lastCompletionTimeForWorker.values().removeIf(time -> time < now - ACTIVE_WORKER_MILLIS);
+        return lastCompletionTimeForWorker.size();
+    }
+
+}
@@ -2,127 +2,162 @@ package com.conveyal.taui.analysis.broker;
 
 import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.analyst.cluster.WorkerStatus;
-import com.google.common.collect.HashMultimap;
-import com.google.common.collect.Multimap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * A catalog of all the workers this broker has been contacted by recently.
  * Ideally this would also manage target quantities of workers by category and migrate workers from one category to
  * another. But for now we just leave workers on a single graph / r5 commit and don't migrate them.
+ *
+ * Workers record themselves here every time they poll, and single point requests look up workers here, so none of
+ * these methods take a lock on the whole catalog. Everything is held in concurrent maps, and all the changes for one
+ * worker are made while ConcurrentHashMap holds the lock on that worker's observation, so polls from different
+ * workers never wait on one another or on readers. Workers that have stopped polling are removed by calling
+ * purgeDeadWorkers on a timer rather than on every read.
  */
 public class WorkerCatalog {
 
+    private static final Logger LOG = LoggerFactory.getLogger(WorkerCatalog.class);
+
     public static final int WORKER_RECORD_DURATION_MSEC = 2 * 60 * 1000;
 
+    /** How often purgeDeadWorkers should be called. */
+    public static final int PURGE_INTERVAL_SECONDS = 10;
+
     /**
      * The information supplied by workers the last time they polled for more tasks.
      * We store these observations keyed on the worker ID so new observations replace old ones for the same worker.
      */
-    private Map<String, WorkerObservation> observationsByWorkerId = new HashMap<>();
+    private final Map<String, WorkerObservation> observationsByWorkerId = new ConcurrentHashMap<>();
 
     /**
      * Keeps the workers sorted into categories depending on which network and R5 commit they are running.
      * The values are worker IDs instead of observations because the observation objects are being constantly updated,
-     * so are not practical for equality tests and hashing.
+     * so are not practical for equality tests and hashing. Categories with no workers are removed from the map.
      */
-    private Multimap<WorkerCategory, String> workerIdsByCategory = HashMultimap.create();
+    private final Map<WorkerCategory, Set<String>> workerIdsByCategory = new ConcurrentHashMap<>();
 
     /**
-     * Tracks which worker within each category we are directing single point requests to.
-     * This is a trade-off: single point work is not balanced between workers, but once a worker applies scenarios
-     * and links pointsets that work will not need to be redone for subsequent single point requests.
+     * The same workers indexed by network alone, for finding workers on a network whatever their R5 version.
+     * Networks with no workers are removed from the map.
      */
-    private Map<WorkerCategory, String> singlePointWorkerIdByCategory = new HashMap<>();
+    private final Map<String, Set<String>> workerIdsByGraphId = new ConcurrentHashMap<>();
 
     /**
      * Record the fact that a worker with a particular ID was just observed polling for tasks.
      */
-    public synchronized void catalog (WorkerStatus workerStatus) {
-        String workerId = workerStatus.workerId;
+    public void catalog (WorkerStatus workerStatus) {
         WorkerObservation observation = new WorkerObservation(workerStatus);
-        WorkerObservation oldObservation = observationsByWorkerId.put(workerId, observation);
-        if (oldObservation != null) {
-            // A worker with this ID has been seen before. The worker may have changed category.
+        observationsByWorkerId.compute(workerStatus.workerId, (workerId, oldObservation) -> {
+            // A worker with this ID may have been seen before, and may have changed category.
             // Remove the worker from its previous category before adding it to the new category.
-            if ( ! observation.category.equals(oldObservation.category)) {
-                workerIdsByCategory.remove(oldObservation.category, workerId);
-                singlePointWorkerIdByCategory.remove(oldObservation.category, workerId);
+            if (oldObservation != null && !observation.category.equals(oldObservation.category)) {
+                removeFromIndexes(oldObservation);
             }
-        }
-        // Associate the worker with its currently reported category. According to Guava docs, Multimap does not store
-        // duplicate key-value pairs. Adding a new key-value pair equal to an existing key-value pair has no effect.
-        workerIdsByCategory.put(observation.category, workerId);
-        // If this worker's current category has no assigned single point worker, assign this worker.
-        if (singlePointWorkerIdByCategory.get(observation.category) == null) {
-            singlePointWorkerIdByCategory.put(observation.category, observation.workerId);
-        }
+            addToIndexes(observation);
+            return observation;
+        });
+    }
+
+    private void addToIndexes (WorkerObservation observation) {
+        addToIndex(workerIdsByCategory, observation.category, observation.workerId);
+        addToIndex(workerIdsByGraphId, observation.category.graphId, observation.workerId);
+    }
+
+    private void removeFromIndexes (WorkerObservation observation) {
+        removeFromIndex(workerIdsByCategory, observation.category, observation.workerId);
+        removeFromIndex(workerIdsByGraphId, observation.category.graphId, observation.workerId);
+    }
+
+    /** Sets are created and removed while holding the lock on their key, so an emptied set is never added to. */
+    private static <K> void addToIndex (Map<K, Set<String>> index, K key, String workerId) {
+        // A worker that has not yet loaded any network has no graph ID.
+        if (key == null) return;
+        index.compute(key, (k, workerIds) -> {
+            if (workerIds == null) workerIds = ConcurrentHashMap.newKeySet();
+            workerIds.add(workerId);
+            return workerIds;
+        });
+    }
+
+    private static <K> void removeFromIndex (Map<K, Set<String>> index, K key, String workerId) {
+        if (key == null) return;
+        index.computeIfPresent(key, (k, workerIds) -> {
+            workerIds.remove(workerId);
+            return workerIds.isEmpty() ? null : workerIds;
+        });
     }
 
     /**
-     * Before fetching worker information, call this method to remove any workers that we haven't heard from for a
-     * while. This does leave a 2 minute window where a worker is still in the catalog but not
-     * reachable after shutdown. FIXME That delay will sometimes be a problem for single-point requests.
-     * Perhaps we should be calling this method on a timer instead of every time read-oriented methods are called.
+     * Remove any workers that we haven't heard from for a while. This is called on a timer, and must never throw an
+     * exception or it would not be run again. This does leave a window of up to two minutes where a worker is still
+     * in the catalog but not reachable after shutdown. FIXME That delay will sometimes be a problem for single-point
+     * requests.
      */
-    private void purgeDeadWorkers () {
-        long now = System.currentTimeMillis();
-        long oldestAcceptable = now - WORKER_RECORD_DURATION_MSEC;
-        List<WorkerObservation> ancientObservations = new ArrayList<>();
-        for (WorkerObservation observation : observationsByWorkerId.values()) {
-            if (observation.lastSeen < oldestAcceptable) {
-                ancientObservations.add(observation);
-            }
+    public void purgeDeadWorkers () {
+        try {
+            purgeDeadWorkers(System.currentTimeMillis());
+        } catch (Exception e) {
+            LOG.error("Could not purge dead workers from the catalog.", e);
         }
-        for (WorkerObservation observation : ancientObservations) {
-            observationsByWorkerId.remove(observation.workerId);
-            workerIdsByCategory.remove(observation.category, observation.workerId);
-            singlePointWorkerIdByCategory.remove(observation.category, observation.workerId);
+    }
+
+    void purgeDeadWorkers (long now) {
+        long oldestAcceptable = now - WORKER_RECORD_DURATION_MSEC;
+        for (String workerId : observationsByWorkerId.keySet()) {
+            // The worker may poll again while we are purging, so its observation is checked again under its lock.
+            observationsByWorkerId.computeIfPresent(workerId, (id, observation) -> {
+                if (observation.lastSeen >= oldestAcceptable) return observation;
+                removeFromIndexes(observation);
+                return null;
+            });
         }
     }
 
     /**
-     * Return the address of a worker machine on a given category that can be used to handle a single point request.
-     * Attempt to repeatedly return the same active worker for a given category.
-     * This helps direct single point requests to the same worker and avoid relinking.
-     * The HashMultimap does not return values in a predictable order, so we maintain a separate map for these workers.
+     * @return the latest observation of every worker in the given category, in no particular order. This is used to
+     *         choose a worker for each single point request.
      */
-    public synchronized String getSinglePointWorkerAddressForCategory(WorkerCategory workerCategory) {
-        purgeDeadWorkers();
-        String workerId = singlePointWorkerIdByCategory.get(workerCategory);
-        if (workerId == null) return null;
-        return observationsByWorkerId.get(workerId).status.ipAddress;
+    public List<WorkerObservation> getWorkersInCategory(WorkerCategory workerCategory) {
+        List<WorkerObservation> observations = new ArrayList<>();
+        Set<String> workerIds = workerIdsByCategory.get(workerCategory);
+        if (workerIds == null) return observations;
+        for (String workerId : workerIds) {
+            // The worker may have been purged since we looked up its ID.
+            WorkerObservation observation = observationsByWorkerId.get(workerId);
+            if (observation != null) observations.add(observation);
+        }
+        return observations;
     }
 
-    public synchronized int totalWorkerCount() {
+    public int totalWorkerCount() {
         return observationsByWorkerId.size();
     }
 
-    public synchronized int countWorkersInCategory(WorkerCategory workerCategory){
-        return workerIdsByCategory.get(workerCategory).size();
+    public int countWorkersInCategory(WorkerCategory workerCategory){
+        Set<String> workerIds = workerIdsByCategory.get(workerCategory);
+        return workerIds == null ? 0 : workerIds.size();
     }
 
-    /**
-     * TODO should this return a protective copy? For now it's synchronized like all other methods.
-     */
-    public synchronized Collection<WorkerObservation> getAllWorkerObservations() {
-        purgeDeadWorkers();
-        return observationsByWorkerId.values();
+    /** @return a copy of the latest observation of every worker in the catalog. */
+    public Collection<WorkerObservation> getAllWorkerObservations() {
+        return new ArrayList<>(observationsByWorkerId.values());
     }
 
-    public synchronized boolean noWorkersAvailable(WorkerCategory category, boolean ignoreWorkerVersion) {
-        purgeDeadWorkers();
+    public boolean noWorkersAvailable(WorkerCategory category, boolean ignoreWorkerVersion) {
         if (ignoreWorkerVersion) {
             // Look for workers on the right network ID, independent of their worker software version.
-            return observationsByWorkerId.values().stream().noneMatch(obs -> obs.category.graphId.equals(category.graphId));
+            return !workerIdsByGraphId.containsKey(category.graphId);
         }
-        return workerIdsByCategory.get(category).isEmpty();
+        return !workerIdsByCategory.containsKey(category);
     }
 
 }
@@ -0,0 +1,31 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.taui.AnalysisServerConfig;
+
+/**
+ * Starts new workers for the broker. The broker and the FleetController decide how many workers are needed, and
+ * an implementation of this interface decides how they are started: as EC2 instances, or as processes on the machine
+ * running the broker. Workers are expected to find the broker and poll it for tasks once they have started.
+ */
+public interface WorkerLauncher {
+
+    /**
+     * Start workers on the given network and R5 version. This should return quickly, starting the workers in the
+     * background if that takes a while.
+     * @param group only used to tag the newly created workers
+     * @param user only used to tag the newly created workers
+     * @param nOnDemand the number of workers to start that will not be taken away from us.
+     * @param nSpot the number of workers to start that may be cheaper, but could be taken away at any time.
+     */
+    void launch (WorkerCategory category, String group, String user, int nOnDemand, int nSpot);
+
+    /**
+     * @return the port on which the given worker listens for single point requests. Workers on separate machines all
+     *         use the configured worker port.
+     */
+    default int getWorkerPort (String workerId) {
+        return AnalysisServerConfig.workerPort;
+    }
+
+}
@@ -0,0 +1,144 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps track of how quickly each worker is completing regional tasks, so the number of tasks handed out on each
+ * poll can be sized to keep the worker busy for about TARGET_BATCH_SECONDS.
+ *
+ * Each worker returns the results it has completed since its last poll, so every poll returning results yields one
+ * sample of the worker's throughput, which is folded into an exponentially weighted moving average. A worker that
+ * has been given tasks but returns no results is still working on them, so its next sample covers both polls. Only
+ * a worker that has nothing to do restarts the sampling interval when it polls. The cost of a task varies
+ * enormously from one job to another (a simple scenario versus one with fares or many Monte Carlo draws), so the
+ * average is restarted whenever a worker starts returning results for a different job. Fast workers on cheap tasks
+ * then receive large batches and poll less often, while slow tasks are handed out a few at a time so no one worker
+ * is left holding a large share of the remaining work at the end of a job.
+ */
+public class WorkerThroughputTracker {
+
+    /** The number of tasks to deliver to a worker whose throughput is not yet known. */
+    public static final int DEFAULT_TASKS_PER_POLL = 16;
+
+    public static final int MIN_TASKS_PER_POLL = 1;
+
+    /** Limits the size of poll responses, and the amount of work lost if a worker disappears. */
+    public static final int MAX_TASKS_PER_POLL = 1000;
+
+    /** Each batch of tasks should take a worker about this long to complete. */
+    public static final double TARGET_BATCH_SECONDS = 10;
+
+    /**
+     * A worker receiving its first tasks of a job may need to build or download a network, apply a scenario and link
+     * pointsets before it completes any of them, which can take many minutes. Its tasks are leased for this long.
+     */
+    public static final int FIRST_BATCH_LEASE_SEC = 20 * 60;
+
+    /** Tasks are never leased for less than this long, to allow for variation in the time taken by each task. */
+    public static final int MIN_LEASE_SEC = 2 * 60;
+
+    /** Tasks are never leased for more than this long, however slowly the worker has been completing them. */
+    public static final int MAX_LEASE_SEC = 60 * 60;
+
+    /** A worker is given this many times as long as its measured throughput suggests to complete a batch. */
+    static final double LEASE_SAFETY_FACTOR = 4;
+
+    /** The weight given to each new sample in the moving average of a worker's throughput. */
+    static final double SMOOTHING_FACTOR = 0.3;
+
+    /** Stop tracking workers that have not polled for this long. */
+    static final long FORGET_AFTER_MILLIS = 10 * 60 * 1000;
+
+    private static class WorkerRate {
+        String jobId;
+        boolean polled = false;
+        long lastPollTime = 0;
+        /** The start of the period over which the next results returned by the worker were computed. */
+        long intervalStartTime = 0;
+        /** Whether the worker was given any tasks on its last poll. */
+        boolean busy = false;
+        double tasksPerSecond = Double.NaN;
+    }
+
+    private final Map<String, WorkerRate> rateForWorkerId = new ConcurrentHashMap<>();
+
+    private volatile long lastPurgeTime = 0;
+
+    /** Record a poll from the given worker, which returned the given results. */
+    public void recordPoll (String workerId, List<RegionalWorkResult> results) {
+        recordPoll(workerId, results, System.currentTimeMillis());
+    }
+
+    void recordPoll (String workerId, List<RegionalWorkResult> results, long now) {
+        if (workerId == null) return;
+        WorkerRate rate = rateForWorkerId.computeIfAbsent(workerId, id -> new WorkerRate());
+        synchronized (rate) {
+            boolean anyResults = results != null && !results.isEmpty();
+            if (anyResults && rate.polled && now > rate.intervalStartTime) {
+                String jobId = results.get(0).jobId;
+                double sample = results.size() * 1000d / (now - rate.intervalStartTime);
+                if (Double.isNaN(rate.tasksPerSecond) || !jobId.equals(rate.jobId)) {
+                    rate.tasksPerSecond = sample;
+                } else {
+                    rate.tasksPerSecond += SMOOTHING_FACTOR * (sample - rate.tasksPerSecond);
+                }
+                rate.jobId = jobId;
+            }
+            if (anyResults || !rate.busy || !rate.polled) {
+                rate.intervalStartTime = now;
+            }
+            rate.polled = true;
+            rate.lastPollTime = now;
+        }
+        if (now > lastPurgeTime + FORGET_AFTER_MILLIS) {
+            lastPurgeTime = now;
+            rateForWorkerId.values().removeIf(r -> r.lastPollTime < now - FORGET_AFTER_MILLIS);
+        }
+    }
+
+    /** Record how many tasks were delivered to the given worker in response to its most recent poll. */
+    public void recordDelivery (String workerId, int nTasks) {
+        WorkerRate rate = workerId == null ? null : rateForWorkerId.get(workerId);
+        if (rate == null) return;
+        synchronized (rate) {
+            rate.busy = nTasks > 0;
+        }
+    }
+
+    /** @return the number of tasks that should be delivered to the given worker in response to its current poll. */
+    public int getTasksPerPoll (String workerId) {
+        WorkerRate rate = workerId == null ? null : rateForWorkerId.get(workerId);
+        if (rate == null) return DEFAULT_TASKS_PER_POLL;
+        double tasksPerSecond;
+        synchronized (rate) {
+            tasksPerSecond = rate.tasksPerSecond;
+        }
+        if (Double.isNaN(tasksPerSecond)) return DEFAULT_TASKS_PER_POLL;
+        long nTasks = Math.round(tasksPerSecond * TARGET_BATCH_SECONDS);
+        return (int) Math.max(MIN_TASKS_PER_POLL, Math.min(MAX_TASKS_PER_POLL, nTasks));
+    }
+
+    /**
+     * @return how long the given worker should be given to complete a batch of tasks from the given job before they
+     *         are delivered to another worker. Until the worker has returned results for this job its throughput on
+     *         it is unknown, and it may have a lot of preparation to do before completing any tasks, so it is given
+     *         FIRST_BATCH_LEASE_SEC. Otherwise it gets a generous multiple of the time it should take to complete them.
+     */
+    public int getLeaseSeconds (String workerId, String jobId, int nTasks) {
+        WorkerRate rate = workerId == null ? null : rateForWorkerId.get(workerId);
+        if (rate == null) return FIRST_BATCH_LEASE_SEC;
+        double tasksPerSecond;
+        synchronized (rate) {
+            if (!jobId.equals(rate.jobId)) return FIRST_BATCH_LEASE_SEC;
+            tasksPerSecond = rate.tasksPerSecond;
+        }
+        if (Double.isNaN(tasksPerSecond) || tasksPerSecond <= 0) return FIRST_BATCH_LEASE_SEC;
+        double seconds = Math.ceil(LEASE_SAFETY_FACTOR * nTasks / tasksPerSecond);
+        return (int) Math.max(MIN_LEASE_SEC, Math.min(MAX_LEASE_SEC, seconds));
+    }
+
+}
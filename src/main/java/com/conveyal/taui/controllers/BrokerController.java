@@ -3,15 +3,20 @@ package com.conveyal.taui.controllers;
 import com.amazonaws.services.s3.Headers;
 import com.conveyal.r5.analyst.WorkerCategory;
 import com.conveyal.r5.analyst.cluster.AnalystWorker;
-import com.conveyal.r5.analyst.cluster.RegionalTask;
-import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
 import com.conveyal.r5.analyst.cluster.TravelTimeSurfaceTask;
 import com.conveyal.r5.analyst.cluster.WorkerStatus;
 import com.conveyal.r5.common.JsonUtilities;
 import com.conveyal.taui.AnalysisServerConfig;
 import com.conveyal.taui.AnalysisServerException;
+import com.conveyal.taui.analysis.SinglePointCache;
+import com.conveyal.taui.analysis.SinglePointResponse;
+import com.conveyal.taui.analysis.broker.BinaryPollCodec;
 import com.conveyal.taui.analysis.broker.Broker;
+import com.conveyal.taui.analysis.broker.BrokerPartition;
 import com.conveyal.taui.analysis.broker.JobStatus;
+import com.conveyal.taui.analysis.broker.JobStore;
+import com.conveyal.taui.analysis.broker.SinglePointRouter;
+import com.conveyal.taui.analysis.broker.TaskBatch;
 import com.conveyal.taui.analysis.broker.WorkerObservation;
 import com.conveyal.taui.models.AnalysisRequest;
 import com.conveyal.taui.models.Bundle;
@@ -22,12 +27,13 @@ import com.conveyal.taui.util.JsonUtil;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableMap;
-import com.google.common.io.ByteStreams;
+import com.google.common.hash.Hashing;
 import com.mongodb.QueryBuilder;
 import org.apache.http.Header;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.util.EntityUtils;
@@ -36,13 +42,29 @@ import org.slf4j.LoggerFactory;
 import spark.Request;
 import spark.Response;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.SocketTimeoutException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import static spark.Spark.delete;
 import static spark.Spark.get;
 import static spark.Spark.head;
 import static spark.Spark.post;
@@ -70,14 +92,52 @@ public class BrokerController {
      */
     private Broker broker;
 
+    /** Routes requests concerning jobs held by other backend nodes, when the broker is partitioned among several. */
+    private BrokerPartition partition;
+
     /** For convenience, a local reference to the shared JSON object codec. */
     private ObjectMapper jsonMapper = JsonUtilities.objectMapper;
 
     /** This HTTP client contacts workers to send them single-point tasks for immediate processing. */
     private static HttpClient httpClient = AnalystWorker.makeHttpClient();
 
-    public BrokerController(Broker broker) {
-        this.broker = broker;
+    /**
+     * How long to wait for a worker to send any part of its single point response. This is also the longest a request
+     * waits for an identical request already in progress, before giving up on it and asking a worker itself.
+     */
+    private static final int WORKER_SOCKET_TIMEOUT_MILLIS = 60 * 1000;
+
+    /**
+     * Single point responses are passed through to the UI exactly as the worker compressed them, so the HTTP client
+     * must not decompress them. The connect timeout is set on the client's connection manager, so it still applies.
+     */
+    private static final RequestConfig SINGLE_POINT_REQUEST_CONFIG = RequestConfig.custom()
+            .setContentCompressionEnabled(false)
+            .setSocketTimeout(WORKER_SOCKET_TIMEOUT_MILLIS)
+            .build();
+
+    /** The size of the chunks in which single point responses are copied from the worker to the UI. */
+    private static final int STREAM_BUFFER_SIZE = 16 * 1024;
+
+    /** The headers of the worker's single point response that are passed on to the UI. */
+    private static final String[] PROXIED_HEADERS = {
+            Headers.CONTENT_TYPE, Headers.CONTENT_ENCODING, Headers.CONTENT_LENGTH
+    };
+
+    /**
+     * Single point requests currently being computed by workers, keyed on a hash of the task sent to the worker.
+     * Identical requests arriving while one is in progress wait for its response instead of being computed again.
+     */
+    private final Map<String, CompletableFuture<SinglePointResponse>> singlePointRequestsInFlight =
+            new ConcurrentHashMap<>();
+
+    /** Recent successful responses to single point requests, shared with the controllers that invalidate them. */
+    public static final SinglePointCache singlePointCache =
+            new SinglePointCache(SinglePointCache.getConfiguredSizeMb());
+
+    public BrokerController(BrokerPartition partition) {
+        this.partition = partition;
+        this.broker = partition.broker;
     }
 
     /**
@@ -92,8 +152,20 @@ public class BrokerController {
     public void register () {
         head("", this::headHandler);
         post("/internal/poll", this::workerPoll);
+        if (partition.isPartitioned()) {
+            // These are contacted by other backend nodes when the broker is partitioned, and only act on this node.
+            // Every handler checks that the request really came from another node.
+            post("/internal/jobs", this::enqueueForwardedJob);
+            get("/internal/jobs", this::getLocalJobs);
+            get("/internal/jobs/status", this::getLocalJobStatuses);
+            get("/internal/jobs/:jobId/partial", this::getLocalPartialResults);
+            delete("/internal/jobs/:jobId", this::deleteLocalJob);
+        }
+        // Workers can fetch the scenarios of regional analyses here instead of from S3.
+        get("/internal/scenario/:id", this::getScenario);
         get("/api/jobs", this::getAllJobs);
         get("/api/workers", this::getAllWorkers);
+        get("/api/single-point-cache", this::getSinglePointCacheStatistics);
         post("/api/analysis", this::singlePoint); // TODO rename HTTP path to "single" or something
     }
 
@@ -107,7 +179,15 @@ public class BrokerController {
      * we forward the request to a worker), but since Spark wraps the internal Jetty request/response objects, we
      * don't gain much. We should probably switch to the Jetty HTTP client some day when we get rid of Spark.
      * There is also a Jetty proxy module that may be too simple for what we're doing here.
-     * @return whatever the worker responds, usually an input stream. Spark serializer chain can properly handle streams.
+     * The worker's response is streamed to the UI as it arrives rather than buffered, still compressed if the worker
+     * compressed it, and the connection to the worker is always released when the response is finished.
+     *
+     * Identical requests (for example from several users looking at the same scenario and origin, or from a browser
+     * retrying) are coalesced while they are in progress: only the first is sent to a worker, and the others wait for
+     * its response and are sent a copy. Spark gives us no way to hand a request back to Jetty and complete it later, so
+     * the waiting requests still hold their Jetty threads, but they cost no work on the workers. Successful responses
+     * are also kept in the singlePointCache, from which repeated requests are answered without contacting a worker.
+     * @return an empty string once the worker's response has been sent, or a JSON message if it could not be.
      */
     private Object singlePoint(Request request, Response response) {
         // Deserialize the task in the request body so we can see what kind of worker it wants.
@@ -130,9 +210,86 @@ public class BrokerController {
             // The default response format is our own compact grid representation.
             task.setFormat(TravelTimeSurfaceTask.Format.GRID);
         }
+        // Ask the worker for gzip only if the UI accepts it, as its response is passed through without decompressing.
+        String acceptEncoding = request.headers("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        byte[] taskBytes;
+        try {
+            // Serialize the R5-specific task (not the original one the broker received from the UI)
+            taskBytes = JsonUtil.objectMapper.writeValueAsBytes(task);
+        } catch (JsonProcessingException e) {
+            throw AnalysisServerException.unknown(e);
+        }
+        String requestKey = Hashing.murmur3_128().newHasher().putBytes(taskBytes).putBoolean(gzip).hash().toString();
+        SinglePointResponse cachedResponse = singlePointCache.get(analysisRequest.projectId, requestKey);
+        if (cachedResponse != null) {
+            LOG.info("Answering single point request from the cache.");
+            return sendSinglePointResponse(cachedResponse, response);
+        }
+        CompletableFuture<SinglePointResponse> result = new CompletableFuture<>();
+        CompletableFuture<SinglePointResponse> identicalRequest = singlePointRequestsInFlight.putIfAbsent(requestKey,
+                result);
+        if (identicalRequest != null) {
+            // The future is always completed normally, with null if the identical request was not answered by a worker.
+            // Do not wait on it indefinitely though, as it is only completed once its whole response has been streamed
+            // to its own client, which may be slow to read it.
+            SinglePointResponse coalescedResponse = null;
+            try {
+                coalescedResponse = identicalRequest.get(WORKER_SOCKET_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                LOG.info("Timeout waiting for an identical single point request, asking a worker independently.");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw AnalysisServerException.unknown(e);
+            } catch (ExecutionException e) {
+                LOG.warn("Identical single point request failed, asking a worker independently.", e);
+            }
+            if (coalescedResponse != null) {
+                LOG.info("Answering single point request with the response to an identical request.");
+                return sendSinglePointResponse(coalescedResponse, response);
+            }
+            // Make the request ourselves, without waiting on or being waited on by any other request.
+            return forwardSinglePoint(task, taskBytes, gzip, accessGroup, userEmail, response, null);
+        }
+        try {
+            Object body = forwardSinglePoint(task, taskBytes, gzip, accessGroup, userEmail, response, result);
+            SinglePointResponse workerResponse = result.getNow(null);
+            if (workerResponse != null && workerResponse.status == HttpStatus.OK_200) {
+                singlePointCache.put(analysisRequest.projectId, requestKey, workerResponse);
+            }
+            return body;
+        } finally {
+            // Release any waiting requests, with null if the worker's response could not be passed on to them.
+            result.complete(null);
+            singlePointRequestsInFlight.remove(requestKey, result);
+        }
+    }
+
+    /** Send a complete response to a client, returning the empty string that Spark expects of a committed response. */
+    private static String sendSinglePointResponse (SinglePointResponse singlePointResponse, Response response) {
+        response.status(singlePointResponse.status);
+        singlePointResponse.headers.forEach(response::header);
+        try {
+            response.raw().getOutputStream().write(singlePointResponse.body);
+            response.raw().flushBuffer();
+        } catch (IOException e) {
+            LOG.warn("Single point response was interrupted: {}", e.toString());
+        }
+        return "";
+    }
+
+    /**
+     * Send a single point task to a worker in its category, streaming the worker's response to the UI.
+     * @param taskBytes the task serialized as JSON
+     * @param gzip whether the UI accepts a gzipped response
+     * @param result if not null, this is completed with a copy of the worker's response once it has all been sent.
+     */
+    private Object forwardSinglePoint (TravelTimeSurfaceTask task, byte[] taskBytes, boolean gzip,
+                                       String accessGroup, String userEmail, Response response,
+                                       CompletableFuture<SinglePointResponse> result) {
         WorkerCategory workerCategory = task.getWorkerCategory();
-        String address = broker.getWorkerAddress(workerCategory);
-        if (address == null) {
+        SinglePointRouter.Route route = broker.routeSinglePoint(workerCategory, task.scenarioId);
+        if (route == null) {
             // There are no workers that can handle this request. Request some.
             broker.createOnDemandWorkerInCategory(workerCategory, accessGroup, userEmail);
             // No workers exist. Kick one off and return "service unavailable".
@@ -143,46 +300,83 @@ public class BrokerController {
             // FIXME the tracking of which workers are starting up should really be encapsulated using a "start up if needed" method.
             broker.recentlyRequestedWorkers.remove(workerCategory);
         }
-        String workerUrl = "http://" + address + ":7080/single";
+        String workerUrl = "http://" + route.address + ":" + broker.getSinglePointPort(route) + "/single";
         LOG.info("Re-issuing HTTP request from UI to worker at {}", workerUrl);
         HttpPost httpPost = new HttpPost(workerUrl);
+        httpPost.setConfig(SINGLE_POINT_REQUEST_CONFIG);
         // httpPost.setHeader("Accept", "application/x-analysis-time-grid");
-        // TODO Explore: is this unzipping and re-zipping the result from the worker?
-        httpPost.setHeader("Accept-Encoding", "gzip");
+        if (gzip) {
+            httpPost.setHeader("Accept-Encoding", "gzip");
+        }
         HttpEntity entity = null;
         try {
-            // Serialize and send the R5-specific task (not the original one the broker received from the UI)
-            httpPost.setEntity(new ByteArrayEntity(JsonUtil.objectMapper.writeValueAsBytes(task)));
+            httpPost.setEntity(new ByteArrayEntity(taskBytes));
             HttpResponse workerResponse = httpClient.execute(httpPost);
             // Mimic the status code sent by the worker.
             response.status(workerResponse.getStatusLine().getStatusCode());
-            // Mimic headers sent by the worker. We're mostly interested in Content-Type, maybe Content-Encoding.
+            // Mimic headers sent by the worker. We're mostly interested in Content-Type and Content-Encoding.
             // We do not want to mimic all headers like Date, Server etc.
-            Header contentTypeHeader = workerResponse.getFirstHeader(Headers.CONTENT_TYPE);
-            response.header(contentTypeHeader.getName(), contentTypeHeader.getValue());
-            LOG.info("Returning worker response to UI with status code {} and content type {}",
-                    workerResponse.getStatusLine(), contentTypeHeader.getValue());
-            // This header will cause the Spark Framework to gzip the data automatically if requested by the client.
-            response.header("Content-Encoding", "gzip");
+            Map<String, String> headers = new LinkedHashMap<>();
+            for (String headerName : PROXIED_HEADERS) {
+                Header header = workerResponse.getFirstHeader(headerName);
+                if (header != null) headers.put(header.getName(), header.getValue());
+            }
+            headers.forEach(response::header);
+            LOG.info("Streaming worker response to UI with status code {}", workerResponse.getStatusLine());
+            // Keep a copy of the response for any identical requests that arrive while it is being sent.
+            ByteArrayOutputStream copy = result == null ? null : new ByteArrayOutputStream();
             entity = workerResponse.getEntity();
-            // If you return a stream to the Spark Framework, its SerializerChain will copy that stream out to the
-            // client, but does not then close the stream. HttpClient waits for the stream to be closed to return the
-            // connection to the pool. In order to be able to close the stream in code we control, we buffer the
-            // response in a byte buffer before resending it. NOTE: The fact that we're buffering before re-sending
-            // probably degrades the perceived responsiveness of single-point requests.
-            return ByteStreams.toByteArray(entity.getContent());
+            if (entity != null) {
+                streamToClient(entity.getContent(), response.raw().getOutputStream(), copy);
+            }
+            // Committing the response causes Spark to skip serializing our return value, so the empty string is not
+            // written. Spark would otherwise also gzip its output whenever the Content-Encoding header says gzip.
+            response.raw().flushBuffer();
+            if (result != null) {
+                result.complete(new SinglePointResponse(workerResponse.getStatusLine().getStatusCode(), headers,
+                        copy.toByteArray()));
+            }
+            return "";
         } catch (SocketTimeoutException ste) {
             LOG.info("Timeout waiting for response from worker. Perhaps an old version of R5 has blocked while preparing a network.");
             // Aborting the request might help release resources - we had problems with exhausting connection pools here.
             httpPost.abort();
+            if (response.raw().isCommitted()) return "";
+            // Clear any status and headers copied from the worker, which do not describe our own response.
+            response.raw().reset();
             return jsonResponse(response, HttpStatus.ACCEPTED_202, "Preparing network for analysis");
         } catch (Exception e) {
+            // Abort rather than drain the worker's response, which may be large and which the UI may have hung up on.
+            httpPost.abort();
+            if (response.raw().isCommitted()) {
+                // Part of the response has already been sent, so the status can no longer be changed.
+                LOG.warn("Single point response was interrupted: {}", e.toString());
+                return "";
+            }
+            response.raw().reset();
             // TODO we need to detect the case where the worker was not reachable and purge it from the worker catalog.
             throw AnalysisServerException.unknown(e);
         } finally {
             // If the HTTP response entity is non-null close the associated input stream, which causes the HttpClient
-            // to release the TCP connection back to its pool. This is critical to avoid exhausting the pool.
+            // to release the TCP connection back to its pool. This is critical to avoid exhausting the pool. If the
+            // request was aborted this does nothing, as the connection has already been closed.
             EntityUtils.consumeQuietly(entity);
+            broker.finishSinglePoint(route, accessGroup, userEmail);
+        }
+    }
+
+    /**
+     * Copy bytes from the worker to the UI as they arrive. Output is flushed whenever the worker has no more bytes
+     * ready, so the UI receives each part of the response as soon as possible without a write for every small read.
+     * @param copy if not null, all the bytes are also written here.
+     */
+    private static void streamToClient (InputStream in, OutputStream out, OutputStream copy) throws IOException {
+        byte[] buffer = new byte[STREAM_BUFFER_SIZE];
+        int nBytes;
+        while ((nBytes = in.read(buffer)) != -1) {
+            out.write(buffer, 0, nBytes);
+            if (copy != null) copy.write(buffer, 0, nBytes);
+            if (in.available() == 0) out.flush();
         }
     }
 
@@ -220,6 +414,49 @@ public class BrokerController {
         }
     }
 
+    /**
+     * Serve the scenario of a regional analysis, as stored by the ScenarioStore. The ID is the same file name under
+     * which the scenario is stored in S3. Scenarios never change once stored, so the name serves as the ETag and a
+     * client that already has the scenario is told so without sending it again. The scenario is gzipped if the client
+     * accepts it. The gzipped and identity representations have different bytes, so each has its own strong ETag, and
+     * caches are told that the representation depends on the Accept-Encoding header.
+     */
+    private Object getScenario (Request request, Response response) throws IOException {
+        String id = request.params("id");
+        byte[] scenario = RegionalAnalysisController.scenarioStore.get(id);
+        if (scenario == null) {
+            return jsonResponse(response, HttpStatus.NOT_FOUND_404, "No scenario with ID " + id);
+        }
+        String acceptEncoding = request.headers("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        String etag = "\"" + id + (gzip ? "-gzip" : "") + "\"";
+        response.header(Headers.ETAG, etag);
+        response.header("Vary", "Accept-Encoding");
+        response.header("Cache-Control", "public, max-age=31536000, immutable");
+        if (etag.equals(request.headers("If-None-Match"))) {
+            response.status(HttpStatus.NOT_MODIFIED_304);
+            return "";
+        }
+        response.type("application/json");
+        if (gzip) {
+            // This header will cause the Spark Framework to gzip the data automatically.
+            response.header(Headers.CONTENT_ENCODING, "gzip");
+        }
+        return scenario;
+    }
+
+    /**
+     * Report how effective the cache of single point responses is being.
+     */
+    private String getSinglePointCacheStatistics (Request request, Response response) {
+        String accessGroup = request.attribute("accessGroup");
+        if (!AnalysisServerConfig.adminAccessGroup.equals(accessGroup)) {
+            response.status(401);
+            return "You do not have access.";
+        }
+        return jsonResponse(response, HttpStatus.OK_200, singlePointCache.getStatistics());
+    }
+
     /**
      * Fetch status of all unfinished jobs as a JSON list.
      */
@@ -230,7 +467,7 @@ public class BrokerController {
             return "You do not have access.";
         }
 
-        Collection<JobStatus> jobStatuses = broker.getJobSummary();
+        Collection<JobStatus> jobStatuses = partition.getJobSummary();
         for (JobStatus jobStatus : jobStatuses) {
             if (!jobStatus.jobId.equals("SUM")) {
                 jobStatus.regionalAnalysis = Persistence.regionalAnalyses
@@ -241,6 +478,74 @@ public class BrokerController {
         return jsonResponse(response, HttpStatus.OK_200, jobStatuses);
     }
 
+    /**
+     * The endpoints through which broker nodes manage one another's jobs are outside the authenticated API, so they
+     * must check that each request came from another node holding the shared secret.
+     */
+    private void requireOtherBrokerNode (Request request) {
+        String forwardedBy = request.headers(BrokerPartition.FORWARDED_HEADER);
+        if (!partition.isFromOtherNode(forwardedBy, request.headers(BrokerPartition.SECRET_HEADER))) {
+            LOG.warn("Rejected request to {} claiming to be from broker node {}.", request.pathInfo(), forwardedBy);
+            throw AnalysisServerException.forbidden("Only other broker nodes may use this endpoint.");
+        }
+    }
+
+    /** Enqueue a job forwarded by another node, which found that this node owns the job's worker category. */
+    private String enqueueForwardedJob (Request request, Response response) {
+        requireOtherBrokerNode(request);
+        JobStore.JobMetadata metadata;
+        try {
+            metadata = jsonMapper.readValue(request.bodyAsBytes(), JobStore.JobMetadata.class);
+        } catch (IOException e) {
+            throw AnalysisServerException.badRequest("Could not decode forwarded job: " + e.getMessage());
+        }
+        broker.enqueueTasksForRegionalJob(metadata.templateTask, metadata.accessGroup, metadata.createdBy);
+        return jsonResponse(response, HttpStatus.OK_200, "Enqueued job " + metadata.templateTask.jobId);
+    }
+
+    /**
+     * Fetch the status of the unfinished jobs on this node followed by their summary, without any regional analysis
+     * details. The summary is only used for its count of active workers, which cannot be derived from the jobs.
+     */
+    private String getLocalJobs (Request request, Response response) {
+        requireOtherBrokerNode(request);
+        return jsonResponse(response, HttpStatus.OK_200, broker.getJobSummary());
+    }
+
+    /** Fetch the status reported to the UI of every job on this node, by job ID. */
+    private String getLocalJobStatuses (Request request, Response response) {
+        requireOtherBrokerNode(request);
+        return jsonResponse(response, HttpStatus.OK_200, broker.getJobStatusesById());
+    }
+
+    /** Fetch the results received so far for a job on this node, as an access grid. */
+    private Object getLocalPartialResults (Request request, Response response) {
+        requireOtherBrokerNode(request);
+        File partialResults = broker.getPartialRegionalAnalysisResults(request.params("jobId"));
+        if (partialResults == null) {
+            return jsonResponse(response, HttpStatus.NOT_FOUND_404, "No partial results for this job on this node.");
+        }
+        try {
+            response.type("application/octet-stream");
+            response.header("Content-Encoding", "gzip");
+            return new FileInputStream(partialResults);
+        } catch (FileNotFoundException e) {
+            // The job finished and its buffer file was deleted after uploading.
+            return jsonResponse(response, HttpStatus.NOT_FOUND_404, "No partial results for this job on this node.");
+        }
+    }
+
+    /** Delete a job from this node, when it is deleted through another node. */
+    private String deleteLocalJob (Request request, Response response) {
+        requireOtherBrokerNode(request);
+        String jobId = request.params("jobId");
+        if (broker.deleteJob(jobId)) {
+            return jsonResponse(response, HttpStatus.OK_200, "Deleted job " + jobId);
+        } else {
+            return jsonResponse(response, HttpStatus.NOT_FOUND_404, "Job " + jobId + " is not on this node.");
+        }
+    }
+
     /**
      * Report all workers that have recently contacted the broker as JSON list.
      */
@@ -275,29 +580,66 @@ public class BrokerController {
      * completed work via this same object. The broker should preferentially send them work they can do efficiently
      * using already loaded networks and scenarios. The method is POST because unlike GETs (which fetch status) it
      * modifies the contents of the task queue.
+     *
+     * Workers may instead send their status and results in the compact binary encoding of BinaryPollCodec, in which
+     * case the tasks are returned in that same encoding.
      */
     private Object workerPoll (Request request, Response response) {
-        WorkerStatus workerStatus = objectFromRequestBody(request, WorkerStatus.class);
-        // Record any regional analysis results that were supplied by the worker and mark them completed.
-        for (RegionalWorkResult workResult : workerStatus.results) {
-            // TODO merge these two methods on the broker?
-            broker.handleRegionalWorkResult(workResult);
-            broker.markTaskCompleted(workResult);
-        }
-        // Clear out the results field so it's not visible in the worker list API endpoint.
-        workerStatus.results = null;
-        // Add this worker to our catalog, tracking its graph affinity and the last time it was seen among other things.
-        broker.recordWorkerObservation(workerStatus);
+        boolean binary = BinaryPollCodec.isBinaryPoll(request.contentType());
+        WorkerStatus workerStatus;
+        Set<String> knownJobIds = Collections.emptySet();
+        if (binary) {
+            try {
+                BinaryPollCodec.PollRequest pollRequest = BinaryPollCodec.decodeRequest(request.bodyAsBytes());
+                workerStatus = pollRequest.workerStatus;
+                knownJobIds = pollRequest.knownJobIds;
+            } catch (IOException e) {
+                throw AnalysisServerException.badRequest("Could not decode binary poll request: " + e.getMessage());
+            }
+        } else {
+            workerStatus = objectFromRequestBody(request, WorkerStatus.class);
+        }
         WorkerCategory workerCategory = workerStatus.getWorkerCategory();
-        // See if any appropriate tasks exist for this worker.
-        List<RegionalTask> tasks = broker.getSomeWork(workerCategory);
+        if (!partition.isLocal(workerCategory) && request.headers(BrokerPartition.FORWARDED_HEADER) == null) {
+            // Another node holds the jobs on this worker's network, and the results it is returning.
+            return forwardPoll(request, response, workerStatus);
+        }
+        TaskBatch tasks = broker.poll(workerStatus);
         // If there is no work for the worker, signal this clearly with a "no content" code,
         // so the worker can sleep a while before the next polling attempt.
-        if (tasks.isEmpty()) {
-            return jsonResponse(response, HttpStatus.NO_CONTENT_204, tasks);
+        if (binary) {
+            response.status(tasks.isEmpty() ? HttpStatus.NO_CONTENT_204 : HttpStatus.OK_200);
+            response.type(BinaryPollCodec.MEDIA_TYPE);
+            try {
+                return BinaryPollCodec.encodeResponse(tasks, knownJobIds);
+            } catch (IOException e) {
+                throw AnalysisServerException.unknown(e);
+            }
+        } else if (tasks.isEmpty()) {
+            return jsonResponse(response, HttpStatus.NO_CONTENT_204, tasks.toTasks());
         } else {
-            return jsonResponse(response, HttpStatus.OK_200, tasks);
+            // Workers polling with JSON expect every task to be complete, so expand the batch from its template.
+            return jsonResponse(response, HttpStatus.OK_200, tasks.toTasks());
+        }
+    }
+
+    /**
+     * Pass a worker's poll on to the node that owns its category, and return that node's response to the worker
+     * unchanged. If the owner can't be reached the worker is told there is no work, and any results it returned will
+     * be recomputed when their tasks' leases expire.
+     */
+    private Object forwardPoll (Request request, Response response, WorkerStatus workerStatus) {
+        BrokerPartition.ForwardedResponse forwarded =
+                partition.forwardPoll(workerStatus, request.bodyAsBytes(), request.contentType());
+        if (forwarded == null) {
+            response.status(HttpStatus.NO_CONTENT_204);
+            return "";
+        }
+        response.status(forwarded.status);
+        if (forwarded.contentType != null) {
+            response.type(forwarded.contentType);
         }
+        return forwarded.body;
     }
 
     /**
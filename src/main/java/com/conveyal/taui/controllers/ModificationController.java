@@ -2,6 +2,7 @@ package com.conveyal.taui.controllers;
 
 import com.conveyal.taui.models.AbstractTimetable;
 import com.conveyal.taui.models.AddTripPattern;
+import com.conveyal.taui.models.AnalysisRequest;
 import com.conveyal.taui.models.ConvertToFrequency;
 import com.conveyal.taui.models.Modification;
 import com.conveyal.taui.persistence.Persistence;
@@ -30,15 +31,30 @@ public class ModificationController {
     }
 
     public static Modification create (Request request, Response response) throws IOException {
-        return Persistence.modifications.createFromJSONRequest(request);
+        return invalidateProjectCaches(Persistence.modifications.createFromJSONRequest(request));
     }
 
     public static Modification update (Request request, Response response) throws IOException {
-        return Persistence.modifications.updateFromJSONRequest(request);
+        return invalidateProjectCaches(Persistence.modifications.updateFromJSONRequest(request));
     }
 
     public static Modification deleteModification (Request req, Response res) {
-        return Persistence.modifications.removeIfPermitted(req.params("_id"), req.attribute("accessGroup"));
+        return invalidateProjectCaches(
+                Persistence.modifications.removeIfPermitted(req.params("_id"), req.attribute("accessGroup")));
+    }
+
+    /**
+     * Discard the cached scenarios and single point results of the project containing a modification that has just
+     * changed.
+     */
+    static Modification invalidateProjectCaches (Modification modification) {
+        invalidateProjectCaches(modification.projectId);
+        return modification;
+    }
+
+    static void invalidateProjectCaches (String projectId) {
+        AnalysisRequest.scenarioCache.invalidateProject(projectId);
+        BrokerController.singlePointCache.invalidateProject(projectId);
     }
 
     public static void mapPhaseIds (List<AbstractTimetable> timetables, String oldModificationId, String newModificationId) {
@@ -79,7 +95,7 @@ public class ModificationController {
         clone.updatedBy = req.attribute("email");
 
         // Update the clone
-        return Persistence.modifications.put(clone);
+        return invalidateProjectCaches(Persistence.modifications.put(clone));
     }
 
     public static void register () {
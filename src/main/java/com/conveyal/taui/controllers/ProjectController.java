@@ -74,7 +74,7 @@ public class ProjectController {
         final Map<String, String> modificationIdPairs = new HashMap<>();
         final Map<String, String> timetableIdPairs = new HashMap<>();
 
-        return modifications
+        final Collection<Modification> importedModifications = modifications
                 .stream()
                 .map(modification -> {
                     String oldModificationId = modification._id;
@@ -147,6 +147,9 @@ public class ProjectController {
                     return Persistence.modifications.put(modification);
                 })
                 .collect(Collectors.toList());
+        // The imported modifications have been added to the new project's variants.
+        ModificationController.invalidateProjectCaches(newId);
+        return importedModifications;
     }
 
     public static Project deleteProject (Request req, Response res) {
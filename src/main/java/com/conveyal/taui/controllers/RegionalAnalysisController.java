@@ -9,7 +9,9 @@ import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.taui.AnalysisServerConfig;
 import com.conveyal.taui.AnalysisServerException;
 import com.conveyal.taui.SelectingGridReducer;
+import com.conveyal.taui.analysis.ScenarioStore;
 import com.conveyal.taui.analysis.broker.Broker;
+import com.conveyal.taui.analysis.broker.BrokerPartition;
 import com.conveyal.taui.grids.GridExporter;
 import com.conveyal.taui.models.AnalysisRequest;
 import com.conveyal.taui.models.OpportunityDataset;
@@ -27,6 +29,7 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.Collection;
 
 import static spark.Spark.delete;
@@ -51,6 +54,17 @@ public class RegionalAnalysisController {
     // FIXME hackish - all other components can use the broker via this public field.
     public static final Broker broker = new Broker();
 
+    // Routes jobs to the broker on whichever backend node owns their worker category. With only one node, which is
+    // the default, this just passes everything on to the broker above.
+    public static final BrokerPartition partition = new BrokerPartition(broker);
+
+    // Holds the scenarios of regional analyses, which workers fetch by ID rather than receiving them in every task.
+    // Local workers share the local cache directory and look for scenarios at its top level.
+    public static final ScenarioStore scenarioStore = new ScenarioStore(
+            new File(AnalysisServerConfig.localCacheDirectory, "scenarios"),
+            new File(AnalysisServerConfig.localCacheDirectory), AnalysisServerConfig.offline ? null : s3,
+            AnalysisServerConfig.bundleBucket);
+
     public static Collection<RegionalAnalysis> getRegionalAnalysis (Request req, Response res) {
         return Persistence.regionalAnalyses.findPermitted(
                 QueryBuilder.start().and(
@@ -72,7 +86,7 @@ public class RegionalAnalysisController {
         // clear it from the broker
         if (!analysis.complete) {
             String jobId = analysis._id;
-            if (broker.deleteJob(jobId)) {
+            if (partition.deleteJob(jobId)) {
                 LOG.info("Deleted job {} from broker.", jobId);
             } else {
                 LOG.error("Deleting job {} from broker failed.", jobId);
@@ -104,23 +118,27 @@ public class RegionalAnalysisController {
         // isn't readily accessible to the internal Job-tracking mechanism of the back end. Instead, just try to fetch
         // the partially completed results file, which includes an O(1) check whether the job is still being processed.
         File partialRegionalAnalysisResultFile = broker.getPartialRegionalAnalysisResults(regionalAnalysisId);
+        // When the broker is partitioned, the job may be held by another backend node.
+        InputStream remotePartialResults = partialRegionalAnalysisResultFile == null
+                ? partition.getRemotePartialResults(regionalAnalysisId) : null;
 
-        if (partialRegionalAnalysisResultFile != null) {
+        if (partialRegionalAnalysisResultFile != null || remotePartialResults != null) {
             // The job is still being processed. There is a probably harmless race condition if the job happens to be
             // completed at the very moment we're in this block, because the file will be deleted at that moment.
             LOG.info("Analysis {} is not complete, attempting to return the partial results grid.", regionalAnalysisId);
             if (!"GRID".equalsIgnoreCase(formatString)) {
+                if (remotePartialResults != null) remotePartialResults.close();
                 throw AnalysisServerException.badRequest(
                         "For partially completed regional analyses, we can only return grid files, not images.");
             }
-            if (partialRegionalAnalysisResultFile == null) {
-                throw AnalysisServerException.unknown(
-                        "Could not find partial result grid for incomplete regional analysis on server.");
+            res.header("content-type", "application/octet-stream");
+            // This will cause Spark Framework to gzip the data automatically if requested by the client.
+            res.header("Content-Encoding", "gzip");
+            if (remotePartialResults != null) {
+                // Spark copies the stream to the response and closes it.
+                return remotePartialResults;
             }
             try {
-                res.header("content-type", "application/octet-stream");
-                // This will cause Spark Framework to gzip the data automatically if requested by the client.
-                res.header("Content-Encoding", "gzip");
                 // Spark has default serializers for InputStream and Bytes, and calls toString() on everything else.
                 return new FileInputStream(partialRegionalAnalysisResultFile);
             } catch (FileNotFoundException e) {
@@ -263,18 +281,9 @@ public class RegionalAnalysisController {
         Scenario scenario = templateTask.scenario;
         templateTask.scenarioId = scenario.id;
         templateTask.scenario = null;
-        String fileName = String.format("%s_%s.json", regionalAnalysis.bundleId, scenario.id);
-        File cachedScenario = new File(AnalysisServerConfig.localCacheDirectory, fileName);
-        try {
-            JsonUtil.objectMapper.writeValue(cachedScenario, scenario);
-        } catch (IOException e) {
-            LOG.error("Error saving scenario to disk", e);
-        }
-        if (!AnalysisServerConfig.offline) {
-            // Upload the scenario to S3 where workers can fetch it by ID.
-            // TODO have the backend supply the scenarios over an HTTP API to the workers (which would then cache them), so we don't need to use S3?
-            s3.putObject(AnalysisServerConfig.bundleBucket, fileName, cachedScenario);
-        }
+        // Save the scenario to disk and upload it to S3 where workers can fetch it by ID, unless the same scenario
+        // was already stored for an earlier analysis. It can also be fetched from the backend over HTTP.
+        scenarioStore.save(regionalAnalysis.bundleId, scenario);
 
         // Fill in all the fields in the template task that will remain the same across all tasks in a job.
         // Re-setting all these fields may not be necessary (they might already be set previously),
@@ -292,7 +301,7 @@ public class RegionalAnalysisController {
         templateTask.grid = opportunityDataset.getKey(GridExporter.Format.GRID);
 
         // Register the regional job with the broker, which will distribute individual tasks to workers and track progress.
-        broker.enqueueTasksForRegionalJob(templateTask, regionalAnalysis.accessGroup, regionalAnalysis.createdBy);
+        partition.enqueueTasksForRegionalJob(templateTask, regionalAnalysis.accessGroup, regionalAnalysis.createdBy);
 
         return regionalAnalysis;
     }
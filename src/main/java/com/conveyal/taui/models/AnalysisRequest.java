@@ -3,21 +3,16 @@ package com.conveyal.taui.models;
 import com.conveyal.r5.analyst.Grid;
 import com.conveyal.r5.analyst.cluster.AnalysisTask;
 import com.conveyal.r5.analyst.fare.InRoutingFareCalculator;
-import com.conveyal.r5.analyst.scenario.Modification;
 import com.conveyal.r5.analyst.scenario.Scenario;
 import com.conveyal.r5.api.util.LegMode;
 import com.conveyal.r5.api.util.TransitModes;
-import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.taui.analysis.ScenarioCache;
 import com.conveyal.taui.persistence.Persistence;
-import com.mongodb.QueryBuilder;
 
 import java.time.LocalDate;
-import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.EnumSet;
-import java.util.List;
 import java.util.stream.Collectors;
-import java.util.zip.CRC32;
 
 /**
  * This is the request sent from the UI. It is actually distinct from the requests sent to the R5 workers, though it
@@ -69,39 +64,27 @@ public class AnalysisRequest {
     public InRoutingFareCalculator inRoutingFareCalculator;
 
     /**
-     * Get all of the modifications for a project id that are in the Variant and map them to their corresponding r5 mod
+     * The R5 modifications of recently analyzed variants, which must be invalidated whenever a project's modifications
+     * change.
      */
-    private static List<Modification> modificationsForProject (String accessGroup, String projectId, int variantIndex) {
-        return Persistence.modifications
-                .findPermitted(QueryBuilder.start("projectId").is(projectId).get(), accessGroup)
-                .stream()
-                .filter(m -> variantIndex < m.variants.length && m.variants[variantIndex])
-                .map(com.conveyal.taui.models.Modification::toR5)
-                .collect(Collectors.toList());
-    }
+    public static final ScenarioCache scenarioCache = new ScenarioCache();
 
     /**
-     * Finds the modifications for the specified project and variant, maps them to their corresponding R5 modification
-     * types, creates a checksum from those modifications, and adds them to the AnalysisTask along with the rest of the
+     * Finds the modifications for the specified project and variant (mapped to their corresponding R5 modification
+     * types, with a checksum of those modifications) in the scenarioCache, and adds them to the AnalysisTask along with the rest of the
      * request.
      *
      * This method takes a task as a parameter, modifies that task, and also returns that same task.
      * This is because we have two subtypes of AnalysisTask and need to be able to create both.
      */
     public AnalysisTask populateTask (AnalysisTask task, Project project) {
-        List<Modification> modifications = new ArrayList<>();
-
-        // No modifications in the baseline comparison
-        if (variantIndex > -1) {
-            modifications = modificationsForProject(project.accessGroup, projectId, variantIndex);
-        }
+        // No modifications in the baseline comparison, which has a variant index of -1.
+        ScenarioCache.VariantModifications variant = scenarioCache.get(project.accessGroup, projectId, variantIndex);
 
         // The CRC is appended to the scenario ID to identify a unique revision of the scenario (still denoted here
         // as variant) allowing the worker to cache and reuse networks built by applying that exact revision of the
         // scenario to a base network.
-        CRC32 crc = new CRC32();
-        crc.update(JsonUtilities.objectToJsonBytes(modifications));
-        long crcValue = crc.getValue();
+        long crcValue = variant.crc;
 
         task.scenario = new Scenario();
         // TODO figure out why we use both
@@ -109,7 +92,7 @@ public class AnalysisRequest {
         // FIXME Job IDs need to be unique. Why are we setting this to the project and variant? This only works because the job ID is overwritten when the job is enqueued.
         task.jobId = String.format("%s-%s-%s", projectId, variantIndex, crcValue);
         task.scenario.id = task.scenarioId = task.jobId;
-        task.scenario.modifications = modifications;
+        task.scenario.modifications = variant.modifications;
         task.graphId = project.bundleId;
         task.workerVersion = workerVersion;
         task.maxFare = this.maxFare;
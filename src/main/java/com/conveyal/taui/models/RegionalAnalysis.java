@@ -53,7 +53,7 @@ public class RegionalAnalysis extends Model implements Cloneable {
     // TODO do statuses differently
     @JsonView(JsonViews.Api.class)
     public RegionalAnalysisStatus getStatus () {
-        return RegionalAnalysisController.broker.getJobStatus(this._id);
+        return RegionalAnalysisController.partition.getJobStatus(this._id);
     }
 
     /**
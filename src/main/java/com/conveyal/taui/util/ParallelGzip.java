@@ -0,0 +1,89 @@
+package com.conveyal.taui.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compresses a file in independent blocks on several threads at once, in the manner of pigz.
+ *
+ * Each block becomes a complete gzip member, and the members are written out in order. A series of concatenated gzip
+ * members is itself a valid gzip stream: GZIPInputStream (like command line gunzip and web browsers) reads all the
+ * members in turn, producing the original data. Compressing blocks independently costs a little compression ratio at
+ * each block boundary, which is negligible with blocks of several megabytes.
+ */
+public abstract class ParallelGzip {
+
+    /** The number of uncompressed bytes in each independently compressed block. */
+    public static final int BLOCK_SIZE_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Compress the entire contents of the given file channel, writing the compressed bytes to the output stream in
+     * order. Blocks are read with positional reads, so this does not disturb the channel's position. At most a few
+     * blocks per processor are held in memory at once, so the caller's writes to the output stream (e.g. uploads)
+     * proceed in parallel with compression of the following blocks. The output stream is not closed.
+     */
+    public static void compress (FileChannel source, OutputStream out, ExecutorService executor) throws IOException {
+        final long sourceSize = source.size();
+        if (sourceSize == 0) {
+            // Write a single empty member, as an empty file is not a valid gzip stream.
+            out.write(compressBlock(source, 0, 0));
+            return;
+        }
+        final int maxBlocksInFlight = Runtime.getRuntime().availableProcessors() * 2;
+        Deque<Future<byte[]>> blocksInFlight = new ArrayDeque<>();
+        try {
+            for (long position = 0; position < sourceSize; position += BLOCK_SIZE_BYTES) {
+                final long blockPosition = position;
+                final int blockLength = (int) Math.min(BLOCK_SIZE_BYTES, sourceSize - position);
+                blocksInFlight.addLast(executor.submit(() -> compressBlock(source, blockPosition, blockLength)));
+                if (blocksInFlight.size() >= maxBlocksInFlight) {
+                    out.write(waitForBlock(blocksInFlight.removeFirst()));
+                }
+            }
+            while (!blocksInFlight.isEmpty()) {
+                out.write(waitForBlock(blocksInFlight.removeFirst()));
+            }
+        } finally {
+            // If anything went wrong, don't leave the executor compressing blocks no one will use. We don't interrupt
+            // running tasks because interrupting a thread blocked on a FileChannel read closes the channel.
+            for (Future<byte[]> block : blocksInFlight) {
+                block.cancel(false);
+            }
+        }
+    }
+
+    private static byte[] compressBlock (FileChannel source, long position, int length) throws IOException {
+        ByteBuffer uncompressed = ByteBuffer.allocate(length);
+        while (uncompressed.hasRemaining()) {
+            if (source.read(uncompressed, position + uncompressed.position()) < 0) {
+                throw new IOException("File was truncated while it was being compressed.");
+            }
+        }
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 4);
+        try (GZIPOutputStream gzipOutputStream = new GZIPOutputStream(compressed)) {
+            gzipOutputStream.write(uncompressed.array(), 0, length);
+        }
+        return compressed.toByteArray();
+    }
+
+    private static byte[] waitForBlock (Future<byte[]> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing.", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to compress block.", e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,138 @@
+package com.conveyal.taui.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An OutputStream that uploads everything written to it into a single S3 object, using a multipart upload.
+ * This allows data to be streamed to S3 as it is produced, without first writing it all to a temporary file.
+ * Bytes are accumulated in memory until there is enough to upload a part, so memory use is bounded by the part size.
+ *
+ * The object only appears on S3 once the stream is closed. If the data being produced turns out to be unusable,
+ * call abort() instead of close() so S3 discards the parts already uploaded (otherwise they are billed indefinitely).
+ */
+public class S3MultipartOutputStream extends OutputStream {
+
+    private static final Logger LOG = LoggerFactory.getLogger(S3MultipartOutputStream.class);
+
+    /** S3 requires every part except the last to be at least 5MB. */
+    public static final int PART_SIZE_BYTES = 8 * 1024 * 1024;
+
+    private final AmazonS3 s3;
+
+    private final String bucket;
+
+    private final String key;
+
+    private final String uploadId;
+
+    private final List<PartETag> partETags = new ArrayList<>();
+
+    private final byte[] buffer = new byte[PART_SIZE_BYTES];
+
+    private int bufferedBytes = 0;
+
+    private long totalBytes = 0;
+
+    private boolean closed = false;
+
+    private boolean aborted = false;
+
+    public S3MultipartOutputStream (AmazonS3 s3, String bucket, String key) throws IOException {
+        this.s3 = s3;
+        this.bucket = bucket;
+        this.key = key;
+        try {
+            this.uploadId = s3.initiateMultipartUpload(new InitiateMultipartUploadRequest(bucket, key)).getUploadId();
+        } catch (AmazonClientException e) {
+            throw new IOException("Could not start multipart upload to " + bucket + "/" + key, e);
+        }
+    }
+
+    @Override
+    public void write (int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write (byte[] bytes, int offset, int length) throws IOException {
+        if (closed) {
+            throw new IOException("Stream is closed.");
+        }
+        while (length > 0) {
+            int n = Math.min(length, buffer.length - bufferedBytes);
+            System.arraycopy(bytes, offset, buffer, bufferedBytes, n);
+            bufferedBytes += n;
+            totalBytes += n;
+            offset += n;
+            length -= n;
+            if (bufferedBytes == buffer.length) {
+                uploadPart(false);
+            }
+        }
+    }
+
+    private void uploadPart (boolean lastPart) throws IOException {
+        UploadPartRequest request = new UploadPartRequest()
+                .withBucketName(bucket)
+                .withKey(key)
+                .withUploadId(uploadId)
+                .withPartNumber(partETags.size() + 1)
+                .withInputStream(new ByteArrayInputStream(buffer, 0, bufferedBytes))
+                .withPartSize(bufferedBytes)
+                .withLastPart(lastPart);
+        try {
+            partETags.add(s3.uploadPart(request).getPartETag());
+        } catch (AmazonClientException e) {
+            throw new IOException("Failed to upload part " + (partETags.size() + 1) + " of " + bucket + "/" + key, e);
+        }
+        bufferedBytes = 0;
+    }
+
+    /** Upload any remaining buffered bytes as the last part, then ask S3 to assemble the parts into one object. */
+    @Override
+    public void close () throws IOException {
+        if (closed) return;
+        closed = true;
+        try {
+            if (bufferedBytes > 0 || partETags.isEmpty()) {
+                uploadPart(true);
+            }
+            s3.completeMultipartUpload(new CompleteMultipartUploadRequest(bucket, key, uploadId, partETags));
+        } catch (IOException | AmazonClientException e) {
+            abort();
+            throw new IOException("Failed to complete multipart upload to " + bucket + "/" + key, e);
+        }
+    }
+
+    /** Give up on this upload, telling S3 to discard any parts that have already been uploaded. */
+    public void abort () {
+        if (aborted) return;
+        aborted = true;
+        closed = true;
+        try {
+            s3.abortMultipartUpload(new AbortMultipartUploadRequest(bucket, key, uploadId));
+        } catch (AmazonClientException e) {
+            LOG.error("Could not abort multipart upload {} to {}/{}, parts may remain on S3.", uploadId, bucket, key, e);
+        }
+    }
+
+    /** @return the total number of bytes written to this stream so far. */
+    public long getTotalBytes () {
+        return totalBytes;
+    }
+
+}
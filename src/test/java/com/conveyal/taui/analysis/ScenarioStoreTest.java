@@ -0,0 +1,59 @@
+package com.conveyal.taui.analysis;
+
+import com.conveyal.r5.analyst.scenario.Scenario;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ScenarioStoreTest {
+
+    @Test
+    public void savedScenariosCanBeFetched () throws Exception {
+        File workerDirectory = Files.createTempDirectory("cache").toFile();
+        File directory = new File(workerDirectory, "scenarios");
+        Scenario scenario = new Scenario();
+        scenario.id = "PROJECT-0-12345";
+        new ScenarioStore(directory, workerDirectory, null, null).save("BUNDLE", scenario);
+        String fileName = ScenarioStore.getFileName("BUNDLE", scenario.id);
+        File file = new File(directory, fileName);
+        File workerFile = new File(workerDirectory, fileName);
+        assertTrue(file.exists());
+        assertTrue(workerFile.exists());
+        // A store that has not seen the scenario reads it from disk.
+        byte[] serializedScenario = new ScenarioStore(directory, workerDirectory, null, null).get(fileName);
+        assertNotNull(serializedScenario);
+        assertArrayEquals(Files.readAllBytes(file.toPath()), serializedScenario);
+        file.delete();
+        workerFile.delete();
+        directory.delete();
+        workerDirectory.delete();
+    }
+
+    @Test
+    public void onlyScenarioNamesAreAccepted () throws Exception {
+        File workerDirectory = Files.createTempDirectory("cache").toFile();
+        File directory = new File(workerDirectory, "scenarios");
+        ScenarioStore store = new ScenarioStore(directory, workerDirectory, null, null);
+        // Files outside the scenario directory are never served, even if they are named like scenarios.
+        File outside = new File(workerDirectory, "BUNDLE_PROJECT-0-12345.json");
+        Files.write(outside.toPath(), new byte[] {'{', '}'});
+        assertNull(store.get(outside.getName()));
+        assertNull(store.get("../" + outside.getName()));
+        // Other JSON files in the scenario directory are not served either.
+        File other = new File(directory, "settings.json");
+        Files.write(other.toPath(), new byte[] {'{', '}'});
+        assertNull(store.get(other.getName()));
+        assertNull(store.get("BUNDLE_PROJECT-0-12345.json.tmp"));
+        outside.delete();
+        other.delete();
+        directory.delete();
+        workerDirectory.delete();
+    }
+
+}
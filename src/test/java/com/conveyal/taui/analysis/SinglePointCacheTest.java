@@ -0,0 +1,54 @@
+package com.conveyal.taui.analysis;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SinglePointCacheTest {
+
+    private static SinglePointResponse response (int nBytes) {
+        return new SinglePointResponse(200, Collections.singletonMap("Content-Type", "application/octet-stream"),
+                new byte[nBytes]);
+    }
+
+    @Test
+    public void responsesAreCachedAndCounted () {
+        SinglePointCache cache = new SinglePointCache(1);
+        assertNull(cache.get("PROJECT", "TASK"));
+        cache.put("PROJECT", "TASK", response(1000));
+        assertNotNull(cache.get("PROJECT", "TASK"));
+        SinglePointCache.Statistics statistics = cache.getStatistics();
+        assertEquals(1, statistics.hitCount);
+        assertEquals(1, statistics.missCount);
+        assertEquals(1, statistics.entryCount);
+        assertEquals(1000, statistics.bytes);
+    }
+
+    @Test
+    public void sizeIsLimited () {
+        SinglePointCache cache = new SinglePointCache(1);
+        for (int i = 0; i < 100; i++) {
+            cache.put("PROJECT", "TASK_" + i, response(100_000));
+        }
+        SinglePointCache.Statistics statistics = cache.getStatistics();
+        assertTrue(statistics.bytes <= statistics.maxBytes);
+        assertEquals(100 - statistics.entryCount, statistics.evictionCount);
+    }
+
+    @Test
+    public void changedProjectsAreInvalidated () {
+        SinglePointCache cache = new SinglePointCache(1);
+        cache.put("PROJECT_A", "TASK", response(1000));
+        cache.put("PROJECT_B", "TASK", response(1000));
+        cache.invalidateProject("PROJECT_A");
+        assertNull(cache.get("PROJECT_A", "TASK"));
+        assertNotNull(cache.get("PROJECT_B", "TASK"));
+        assertEquals(1000, cache.getStatistics().bytes);
+    }
+
+}
@@ -0,0 +1,93 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import com.google.common.io.LittleEndianDataOutputStream;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class BinaryPollCodecTest {
+
+    private static final byte[] STATUS_JSON = "{\"workerId\":\"WORKER\"}".getBytes(StandardCharsets.UTF_8);
+
+    /** Encode a poll request with the given ints following the worker status. */
+    private static byte[] request (int... ints) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+        out.writeInt(BinaryPollCodec.PROTOCOL_VERSION);
+        out.writeInt(STATUS_JSON.length);
+        out.write(STATUS_JSON);
+        for (int i : ints) {
+            out.writeInt(i);
+        }
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    @Test
+    public void resultsSurviveTheRoundTrip () throws IOException {
+        WorkerStatus status = new WorkerStatus();
+        status.workerId = "WORKER";
+        RegionalWorkResult result = new RegionalWorkResult();
+        result.jobId = "JOB";
+        result.taskId = 12;
+        result.accessibilityValues = new int[][][] {{{34, 56}}};
+        status.results = Collections.singletonList(result);
+        BinaryPollCodec.PollRequest decoded = BinaryPollCodec.decodeRequest(
+                BinaryPollCodec.encodeRequest(status, Collections.singleton("JOB")));
+        assertEquals(Collections.singleton("JOB"), decoded.knownJobIds);
+        assertEquals(1, decoded.workerStatus.results.size());
+        assertEquals(12, decoded.workerStatus.results.get(0).taskId);
+        assertArrayEquals(new int[] {34, 56}, decoded.workerStatus.results.get(0).accessibilityValues[0][0]);
+    }
+
+    @Test(expected = IOException.class)
+    public void negativeCountsAreRejected () throws IOException {
+        BinaryPollCodec.decodeRequest(request(-1, 0));
+    }
+
+    @Test(expected = IOException.class)
+    public void countsLargerThanTheMessageAreRejected () throws IOException {
+        BinaryPollCodec.decodeRequest(request(0, Integer.MAX_VALUE));
+    }
+
+    @Test(expected = IOException.class)
+    public void lengthsLargerThanTheMessageAreRejected () throws IOException {
+        byte[] body = request();
+        // Overwrite the length of the worker status.
+        body[4] = (byte) 0xff;
+        body[7] = (byte) 0x7f;
+        BinaryPollCodec.decodeRequest(body);
+    }
+
+    @Test(expected = IOException.class)
+    public void resultDimensionsLargerThanTheMessageAreRejected () throws IOException {
+        byte[] body = request(0, 1);
+        // A group of results for job "J" with huge dimensions.
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        LittleEndianDataOutputStream out = new LittleEndianDataOutputStream(bytes);
+        out.write(body);
+        out.writeUTF("J");
+        for (int i : new int[] {1, 65536, 65536, 65536}) {
+            out.writeInt(i);
+        }
+        out.writeInt(0);
+        out.close();
+        BinaryPollCodec.decodeRequest(bytes.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedMessagesAreRejected () throws IOException {
+        byte[] body = request(0, 0);
+        BinaryPollCodec.decodeRequest(Arrays.copyOf(body, body.length - 2));
+    }
+
+}
@@ -0,0 +1,250 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import com.conveyal.r5.common.JsonUtilities;
+import com.conveyal.taui.analysis.RegionalAnalysisStatus;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BrokerPartitionTest {
+
+    private static final String NODES = "10.0.0.1:7070,10.0.0.2:7070,10.0.0.3:7070";
+
+    private static final String SECRET = "SECRET";
+
+    private static final int N_CATEGORIES = 3000;
+
+    private static WorkerCategory category (int i) {
+        return new WorkerCategory("NETWORK_" + i, "v" + (i % 3));
+    }
+
+    @Test
+    public void singleNodeOwnsEverything () {
+        BrokerPartition partition = new BrokerPartition(null, "10.0.0.1:7070", null, null);
+        assertFalse(partition.isPartitioned());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(partition.isLocal(category(i)));
+        }
+    }
+
+    @Test
+    public void categoriesAreSpreadEvenly () {
+        BrokerPartition partition = new BrokerPartition(null, "10.0.0.1:7070", NODES, SECRET);
+        // Another node with the same list of nodes must agree on every owner.
+        BrokerPartition otherNode = new BrokerPartition(null, "10.0.0.2:7070", NODES, SECRET);
+        Map<String, Integer> nCategoriesForNode = new HashMap<>();
+        for (int i = 0; i < N_CATEGORIES; i++) {
+            String owner = partition.getOwner(category(i));
+            assertEquals(owner, otherNode.getOwner(category(i)));
+            nCategoriesForNode.merge(owner, 1, Integer::sum);
+        }
+        assertEquals(3, nCategoriesForNode.size());
+        for (int nCategories : nCategoriesForNode.values()) {
+            assertTrue(nCategories > N_CATEGORIES / 4 && nCategories < N_CATEGORIES * 5 / 12);
+        }
+    }
+
+    @Test
+    public void addingNodeOnlyMovesCategoriesToIt () {
+        BrokerPartition before = new BrokerPartition(null, "10.0.0.1:7070", NODES, SECRET);
+        BrokerPartition after = new BrokerPartition(null, "10.0.0.1:7070", NODES + ",10.0.0.4:7070", SECRET);
+        int nMoved = 0;
+        for (int i = 0; i < N_CATEGORIES; i++) {
+            String ownerAfter = after.getOwner(category(i));
+            if (!ownerAfter.equals(before.getOwner(category(i)))) {
+                assertEquals("10.0.0.4:7070", ownerAfter);
+                nMoved += 1;
+            }
+        }
+        assertTrue(nMoved > N_CATEGORIES / 6 && nMoved < N_CATEGORIES / 3);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void secretIsRequired () {
+        new BrokerPartition(null, "10.0.0.1:7070", NODES, null);
+    }
+
+    @Test
+    public void onlyOtherNodesWithTheSecretAreTrusted () {
+        BrokerPartition partition = new BrokerPartition(null, "10.0.0.1:7070", NODES, SECRET);
+        assertTrue(partition.isFromOtherNode("10.0.0.2:7070", SECRET));
+        assertFalse(partition.isFromOtherNode("10.0.0.2:7070", "GUESS"));
+        assertFalse(partition.isFromOtherNode("10.0.0.2:7070", null));
+        assertFalse(partition.isFromOtherNode("10.0.0.9:7070", SECRET));
+        assertFalse(partition.isFromOtherNode("10.0.0.1:7070", SECRET));
+        assertFalse(new BrokerPartition(null, "10.0.0.1:7070", null, null).isFromOtherNode("10.0.0.2:7070", SECRET));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void localNodeMustBeListed () {
+        new BrokerPartition(null, "10.0.0.9:7070", NODES, SECRET);
+    }
+
+    /**
+     * Two broker nodes in this JVM. Node A forwards requests to node B, which listens on an HTTP server answering them
+     * the way BrokerController does. Node A never receives requests, so it does not listen.
+     */
+    private static class TwoNodes implements AutoCloseable {
+        final HttpServer server;
+        final Broker brokerA = new Broker(false);
+        final Broker brokerB = new Broker(false);
+        final BrokerPartition nodeA;
+        final BrokerPartition nodeB;
+
+        TwoNodes () throws IOException {
+            server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+            String addressB = "127.0.0.1:" + server.getAddress().getPort();
+            String nodes = "127.0.0.1:1," + addressB;
+            nodeA = new BrokerPartition(brokerA, "127.0.0.1:1", nodes, SECRET);
+            nodeB = new BrokerPartition(brokerB, addressB, nodes, SECRET);
+            server.createContext("/internal/poll", internal(exchange -> {
+                BinaryPollCodec.PollRequest poll = BinaryPollCodec.decodeRequest(
+                        ByteStreams.toByteArray(exchange.getRequestBody()));
+                TaskBatch tasks = brokerB.poll(poll.workerStatus);
+                respond(exchange, tasks.isEmpty() ? 204 : 200, BinaryPollCodec.encodeResponse(tasks, poll.knownJobIds));
+            }));
+            server.createContext("/internal/jobs/status", internal(exchange -> respond(exchange, 200,
+                    JsonUtilities.objectMapper.writeValueAsBytes(brokerB.getJobStatusesById()))));
+            server.createContext("/internal/jobs/JOB/partial", internal(exchange -> respond(exchange, 200,
+                    Files.readAllBytes(brokerB.getPartialRegionalAnalysisResults("JOB").toPath()))));
+            server.start();
+        }
+
+        /** Reject requests that did not come from node A with the secret, as BrokerController does. */
+        private HttpHandler internal (HttpHandler handler) {
+            return exchange -> {
+                if (nodeB.isFromOtherNode(exchange.getRequestHeaders().getFirst(BrokerPartition.FORWARDED_HEADER),
+                        exchange.getRequestHeaders().getFirst(BrokerPartition.SECRET_HEADER))) {
+                    handler.handle(exchange);
+                } else {
+                    respond(exchange, 403, new byte[0]);
+                }
+            };
+        }
+
+        private static void respond (HttpExchange exchange, int status, byte[] body) throws IOException {
+            exchange.sendResponseHeaders(status, status == 204 ? -1 : body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                if (status != 204) out.write(body);
+            }
+        }
+
+        /** @return a category whose jobs are held by node B. */
+        WorkerCategory categoryOfNodeB () {
+            for (int i = 0; ; i++) {
+                if (!nodeA.isLocal(category(i))) return category(i);
+            }
+        }
+
+        /** Enqueue a job with a 10 by 10 grid of origins on node B. */
+        void enqueueJobOnNodeB (WorkerCategory category) {
+            RegionalTask template = new RegionalTask();
+            template.jobId = "JOB";
+            template.graphId = category.graphId;
+            template.workerVersion = category.workerVersion;
+            template.width = 10;
+            template.height = 10;
+            brokerB.enqueueTasksForRegionalJob(template, "GROUP", "USER");
+        }
+
+        @Override
+        public void close () {
+            server.stop(0);
+            brokerB.deleteJob("JOB");
+            brokerA.shutdown();
+            brokerB.shutdown();
+        }
+    }
+
+    private static WorkerStatus workerStatus (WorkerCategory category) {
+        WorkerStatus status = new WorkerStatus();
+        status.workerId = "WORKER";
+        status.ipAddress = "10.0.1.1";
+        status.workerVersion = category.workerVersion;
+        status.networks = Collections.singleton(category.graphId);
+        return status;
+    }
+
+    @Test
+    public void pollsAreForwardedToTheOwner () throws IOException {
+        try (TwoNodes twoNodes = new TwoNodes()) {
+            WorkerCategory category = twoNodes.categoryOfNodeB();
+            twoNodes.enqueueJobOnNodeB(category);
+            WorkerStatus status = workerStatus(category);
+            Map<String, RegionalTask> templates = new HashMap<>();
+            BrokerPartition.ForwardedResponse response = twoNodes.nodeA.forwardPoll(status,
+                    BinaryPollCodec.encodeRequest(status, templates.keySet()), BinaryPollCodec.MEDIA_TYPE);
+            assertEquals(200, response.status);
+            List<RegionalTask> tasks = BinaryPollCodec.decodeResponse(response.body, templates);
+            assertFalse(tasks.isEmpty());
+            // Return the results through node A, and node B records them.
+            status = workerStatus(category);
+            status.results = new ArrayList<>();
+            for (RegionalTask task : tasks) {
+                RegionalWorkResult result = new RegionalWorkResult();
+                result.jobId = task.jobId;
+                result.taskId = task.taskId;
+                result.accessibilityValues = new int[][][] {{{task.taskId}}};
+                status.results.add(result);
+            }
+            twoNodes.nodeA.forwardPoll(status, BinaryPollCodec.encodeRequest(status, templates.keySet()),
+                    BinaryPollCodec.MEDIA_TYPE);
+            assertEquals(tasks.size(), twoNodes.brokerB.getJobStatus("JOB").complete);
+        }
+    }
+
+    @Test
+    public void singlePointRequestsFindWorkersWhosePollsWereForwarded () throws IOException {
+        try (TwoNodes twoNodes = new TwoNodes()) {
+            WorkerCategory category = twoNodes.categoryOfNodeB();
+            assertNull(twoNodes.brokerA.routeSinglePoint(category, "SCENARIO"));
+            WorkerStatus status = workerStatus(category);
+            twoNodes.nodeA.forwardPoll(status, BinaryPollCodec.encodeRequest(status, Collections.emptySet()),
+                    BinaryPollCodec.MEDIA_TYPE);
+            // Both the node that was polled and the node that owns the category can send the worker requests.
+            SinglePointRouter.Route route = twoNodes.brokerA.routeSinglePoint(category, "SCENARIO");
+            assertNotNull(route);
+            assertEquals("WORKER", route.workerId);
+            assertEquals("10.0.1.1", route.address);
+            assertEquals("WORKER", twoNodes.brokerB.routeSinglePoint(category, "SCENARIO").workerId);
+        }
+    }
+
+    @Test
+    public void partialResultsAreStreamedFromTheOwner () throws IOException {
+        try (TwoNodes twoNodes = new TwoNodes()) {
+            twoNodes.enqueueJobOnNodeB(twoNodes.categoryOfNodeB());
+            byte[] expected = Files.readAllBytes(twoNodes.brokerB.getPartialRegionalAnalysisResults("JOB").toPath());
+            try (InputStream partialResults = twoNodes.nodeA.getRemotePartialResults("JOB")) {
+                assertNotNull(partialResults);
+                assertArrayEquals(expected, ByteStreams.toByteArray(partialResults));
+            }
+            assertNull(twoNodes.nodeA.getRemotePartialResults("OTHER_JOB"));
+        }
+    }
+
+}
@@ -0,0 +1,99 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class FleetControllerTest {
+
+    private static final WorkerCategory CATEGORY = new WorkerCategory("NETWORK", "v0");
+
+    private static final long NOW = 10 * 60 * 1000;
+
+    /** Records the spot instances requested instead of starting them. */
+    private static class FakeLauncher implements WorkerLauncher {
+        List<Integer> spotRequests = new ArrayList<>();
+        @Override
+        public void launch (WorkerCategory category, String group, String user, int nOnDemand, int nSpot) {
+            spotRequests.add(nSpot);
+        }
+    }
+
+    /** A queue holding one job of the given size, in which each of the given workers completes a task per second. */
+    private static CategoryJobQueue queue (int nTasks, int nWorkers) {
+        CategoryJobQueue queue = new CategoryJobQueue(CATEGORY, accessGroup -> 1);
+        RegionalTask templateTask = new RegionalTask();
+        templateTask.jobId = "JOB";
+        templateTask.graphId = CATEGORY.graphId;
+        templateTask.workerVersion = CATEGORY.workerVersion;
+        templateTask.width = nTasks;
+        templateTask.height = 1;
+        queue.add(new Job(templateTask, "group", "user", null));
+        for (long time = 0; time <= NOW; time += 1000) {
+            for (int w = 0; w < nWorkers; w++) {
+                queue.throughput.recordCompletion("WORKER_" + w, time);
+            }
+        }
+        return queue;
+    }
+
+    private static WorkerCatalog catalog (int nWorkers) {
+        WorkerCatalog catalog = new WorkerCatalog();
+        for (int w = 0; w < nWorkers; w++) {
+            WorkerStatus status = new WorkerStatus();
+            status.workerId = "WORKER_" + w;
+            status.workerVersion = CATEGORY.workerVersion;
+            status.networks = Collections.singleton(CATEGORY.graphId);
+            catalog.catalog(status);
+        }
+        return catalog;
+    }
+
+    @Test
+    public void fleetIsSizedFromMeasuredRate () {
+        CategoryJobQueue queue = queue(12_000, 2);
+        FakeLauncher launcher = new FakeLauncher();
+        FleetController controller = new FleetController(() -> Collections.singleton(queue), catalog(2), launcher, 50);
+        // Each worker completes one task per second, so ten workers are needed to finish in twenty minutes.
+        controller.control(NOW);
+        assertEquals(Collections.singletonList(8), launcher.spotRequests);
+        // The workers requested are still starting up, so no more are requested.
+        for (long time = NOW + 1000; time <= NOW + 30_000; time += 1000) {
+            queue.throughput.recordCompletion("WORKER_0", time);
+            queue.throughput.recordCompletion("WORKER_1", time);
+        }
+        controller.control(NOW + 30_000);
+        assertEquals(1, launcher.spotRequests.size());
+    }
+
+    @Test
+    public void fleetSizeIsLimited () {
+        FakeLauncher launcher = new FakeLauncher();
+        FleetController controller = new FleetController(() -> Collections.singleton(queue(1_000_000, 2)),
+                catalog(2), launcher, 1000);
+        controller.control(NOW);
+        assertEquals(Collections.singletonList(FleetController.MAX_WORKERS_PER_CATEGORY - 2), launcher.spotRequests);
+
+        launcher = new FakeLauncher();
+        controller = new FleetController(() -> Collections.singleton(queue(12_000, 2)), catalog(2), launcher, 6);
+        controller.control(NOW);
+        assertEquals(Collections.singletonList(3), launcher.spotRequests);
+    }
+
+    @Test
+    public void noWorkersRequestedWithoutRate () {
+        FakeLauncher launcher = new FakeLauncher();
+        FleetController controller = new FleetController(() -> Collections.singleton(queue(12_000, 0)),
+                catalog(1), launcher, 50);
+        controller.control(NOW);
+        assertEquals(0, launcher.spotRequests.size());
+    }
+
+}
@@ -0,0 +1,106 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.taui.GridResultAssembler;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobStoreTest {
+
+    private static JobStore createStore () throws IOException {
+        File directory = Files.createTempDirectory("job-store").toFile();
+        directory.deleteOnExit();
+        return new JobStore(directory);
+    }
+
+    private static Job job (String jobId, int width, int height) {
+        RegionalTask templateTask = new RegionalTask();
+        templateTask.jobId = jobId;
+        templateTask.graphId = "NETWORK";
+        templateTask.workerVersion = "v0";
+        templateTask.zoom = 9;
+        templateTask.west = 100;
+        templateTask.north = 200;
+        templateTask.width = width;
+        templateTask.height = height;
+        return new Job(templateTask, "group", "user", null, TaskOrdering.Type.Z_ORDER);
+    }
+
+    /** Create a buffer file holding the given number of results, as an assembler would before the restart. */
+    private static void createBufferFile (JobStore store, String jobId, int nResults) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(store.getBufferFile(jobId), "rw")) {
+            file.setLength(GridResultAssembler.HEADER_LENGTH_BYTES + nResults * Integer.BYTES);
+        }
+    }
+
+    @Test
+    public void savedJobsAreResumedWithTheirCompletedTasks () throws IOException {
+        JobStore store = createStore();
+        Job job = job("JOB_A", 7, 5);
+        store.saveMetadata(job);
+        createBufferFile(store, job.jobId, job.nTasksTotal);
+        BitSet completedTasks = new BitSet();
+        completedTasks.set(0);
+        completedTasks.set(3, 9);
+        completedTasks.set(34);
+        store.saveCompletedTasks(job.jobId, completedTasks);
+
+        List<Job> jobs = store.loadJobs("bucket");
+        assertEquals(1, jobs.size());
+        Job resumed = jobs.get(0);
+        assertEquals("JOB_A", resumed.jobId);
+        assertEquals("group", resumed.accessGroup);
+        assertEquals("user", resumed.createdBy);
+        assertEquals(TaskOrdering.Type.Z_ORDER, resumed.orderingType);
+        assertEquals(job.workerCategory, resumed.workerCategory);
+        RegionalTask templateTask = resumed.getTemplateTask();
+        assertEquals(9, templateTask.zoom);
+        assertEquals(100, templateTask.west);
+        assertEquals(200, templateTask.north);
+        assertEquals(35, resumed.nTasksTotal);
+        assertEquals(completedTasks, resumed.copyCompletedTasks());
+        assertEquals(completedTasks.cardinality(), resumed.nTasksCompleted);
+        assertFalse(resumed.isComplete());
+        resumed.resultAssembler.terminate();
+        store.delete(job.jobId);
+    }
+
+    @Test
+    public void jobsWithNoCheckpointAreResumedFromTheStart () throws IOException {
+        JobStore store = createStore();
+        Job job = job("JOB_B", 3, 3);
+        store.saveMetadata(job);
+        createBufferFile(store, job.jobId, job.nTasksTotal);
+        List<Job> jobs = store.loadJobs("bucket");
+        assertEquals(1, jobs.size());
+        assertEquals(0, jobs.get(0).nTasksCompleted);
+        jobs.get(0).resultAssembler.terminate();
+        store.delete(job.jobId);
+    }
+
+    @Test
+    public void jobsWithBufferFilesOfTheWrongSizeAreDiscarded () throws IOException {
+        JobStore store = createStore();
+        Job job = job("JOB_C", 4, 4);
+        store.saveMetadata(job);
+        createBufferFile(store, job.jobId, job.nTasksTotal - 1);
+        BitSet completedTasks = new BitSet();
+        completedTasks.set(2);
+        store.saveCompletedTasks(job.jobId, completedTasks);
+        assertTrue(store.loadJobs("bucket").isEmpty());
+        // All the job's files are deleted, so it is not found again on the next restart.
+        assertFalse(store.getBufferFile(job.jobId).exists());
+        assertTrue(store.loadJobs("bucket").isEmpty());
+    }
+
+}
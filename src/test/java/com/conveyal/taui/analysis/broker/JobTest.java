@@ -0,0 +1,128 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalTask;
+import com.conveyal.taui.GridResultAssembler;
+import com.conveyal.taui.analysis.RegionalAnalysisStatus;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static com.conveyal.taui.analysis.broker.WorkerThroughputTracker.MIN_LEASE_SEC;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class JobTest {
+
+    private static RegionalTask templateTask (int nTasks) {
+        RegionalTask templateTask = new RegionalTask();
+        templateTask.jobId = "JOB";
+        templateTask.graphId = "NETWORK";
+        templateTask.workerVersion = "v0";
+        templateTask.width = nTasks;
+        templateTask.height = 1;
+        return templateTask;
+    }
+
+    private static Job job (int nTasks) {
+        return new Job(templateTask(nTasks), "group", "user", null);
+    }
+
+    private static long seconds (Job job, int seconds) {
+        return job.creationTime + seconds * 1000L;
+    }
+
+    private static int[] deliver (Job job, int maxTasks, String workerId, int seconds) {
+        return job.generateSomeTasksToDeliver(maxTasks, workerId, null, seconds(job, seconds)).taskIds;
+    }
+
+    private static int[] copy (Job job, int maxTasks, String workerId, int seconds) {
+        return job.generateSpeculativeCopies(maxTasks, workerId, seconds(job, seconds)).taskIds;
+    }
+
+    @Test
+    public void onlyStragglersAreCopied () {
+        Job job = job(6);
+        assertArrayEquals(new int[] {0, 1, 2}, deliver(job, 3, "WORKER_A", 0));
+        // Nothing is copied while there are tasks that have never been delivered.
+        assertArrayEquals(new int[0], copy(job, 10, "WORKER_B", Job.SPECULATE_AFTER_SEC));
+        assertArrayEquals(new int[] {3, 4, 5}, deliver(job, 3, "WORKER_B", 10));
+        job.markTaskCompleted(1, "WORKER_A");
+        assertArrayEquals(new int[0], copy(job, 10, "WORKER_C", Job.SPECULATE_AFTER_SEC - 1));
+        // Only the incomplete tasks leased to worker A are old enough to be copied.
+        assertArrayEquals(new int[] {0, 2}, copy(job, 10, "WORKER_C", Job.SPECULATE_AFTER_SEC));
+        assertArrayEquals(new int[] {3, 4, 5}, copy(job, 10, "WORKER_D", Job.SPECULATE_AFTER_SEC + 10));
+    }
+
+    @Test
+    public void tasksAreCopiedAtMostOnce () {
+        Job job = job(4);
+        deliver(job, 4, "WORKER_A", 0);
+        int now = Job.SPECULATE_AFTER_SEC;
+        assertArrayEquals(new int[] {0}, copy(job, 1, "WORKER_B", now));
+        assertArrayEquals(new int[] {1, 2}, copy(job, 2, "WORKER_C", now));
+        assertArrayEquals(new int[] {3}, copy(job, 10, "WORKER_B", now));
+        assertArrayEquals(new int[0], copy(job, 10, "WORKER_D", now));
+        assertArrayEquals(new int[0], copy(job, 10, "WORKER_D", now + 60));
+        // Completing a copied task does not make it available to copy again.
+        job.markTaskCompleted(0, "WORKER_B");
+        assertArrayEquals(new int[0], copy(job, 10, "WORKER_E", now + 60));
+    }
+
+    @Test
+    public void workersAreNotGivenCopiesOfTheirOwnTasks () {
+        Job job = job(4);
+        deliver(job, 2, "WORKER_A", 0);
+        deliver(job, 2, "WORKER_B", 0);
+        int now = Job.SPECULATE_AFTER_SEC;
+        // Worker A's tasks were delivered first, but it only receives copies of worker B's tasks.
+        assertArrayEquals(new int[] {2, 3}, copy(job, 10, "WORKER_A", now));
+        assertArrayEquals(new int[0], copy(job, 10, "WORKER_A", now));
+        // Worker A's own tasks are still available to copy to the other workers.
+        assertArrayEquals(new int[] {0, 1}, copy(job, 10, "WORKER_B", now));
+    }
+
+    @Test
+    public void expiredTasksAreRedeliveredFirst () {
+        Job job = job(6);
+        assertArrayEquals(new int[] {0, 1, 2}, deliver(job, 3, "WORKER_A", 0));
+        job.markTaskCompleted(1, "WORKER_A");
+        // Tasks are leased for the minimum time when the worker's throughput is not known.
+        assertArrayEquals(new int[] {3}, deliver(job, 1, "WORKER_B", MIN_LEASE_SEC - 1));
+        // The lease on the completed task has expired too, but that task is not redelivered.
+        assertArrayEquals(new int[] {0, 2, 4}, deliver(job, 3, "WORKER_B", MIN_LEASE_SEC));
+        assertArrayEquals(new int[] {5}, deliver(job, 3, "WORKER_B", MIN_LEASE_SEC));
+        assertFalse(job.hasTasksToDeliver(seconds(job, MIN_LEASE_SEC)));
+        // The lease granted at MIN_LEASE_SEC - 1 expires first.
+        assertTrue(job.hasTasksToDeliver(seconds(job, 2 * MIN_LEASE_SEC - 1)));
+        assertArrayEquals(new int[] {3}, deliver(job, 3, "WORKER_A", 2 * MIN_LEASE_SEC - 1));
+        assertTrue(job.toString().contains("nTasksRedelivered=3"));
+    }
+
+    @Test
+    public void tasksAreAbandonedAfterTheMaximumDeliveries () throws IOException {
+        RegionalTask templateTask = templateTask(2);
+        GridResultAssembler assembler = new GridResultAssembler(templateTask, "bucket");
+        Job job = new Job(templateTask, "group", "user", assembler);
+        assertArrayEquals(new int[] {0, 1}, deliver(job, 2, "WORKER_A", 0));
+        job.markTaskCompleted(1, "WORKER_A");
+        for (int delivery = 2; delivery <= Job.MAX_DELIVERIES_PER_TASK; delivery++) {
+            assertArrayEquals(new int[] {0}, deliver(job, 2, "WORKER_A", (delivery - 1) * MIN_LEASE_SEC));
+        }
+        assertFalse(job.hasFailed());
+        assertEquals(RegionalAnalysisStatus.Stage.ASSEMBLING, assembler.getStage());
+        // The last lease has not expired yet.
+        int lastExpiry = Job.MAX_DELIVERIES_PER_TASK * MIN_LEASE_SEC;
+        assertFalse(job.hasTasksToDeliver(seconds(job, lastExpiry - 1)));
+        assertFalse(job.hasFailed());
+        // Once it expires the task is abandoned rather than delivered again, and the job fails along with its assembler.
+        assertFalse(job.hasTasksToDeliver(seconds(job, lastExpiry)));
+        assertTrue(job.hasFailed());
+        assertArrayEquals(new int[0], deliver(job, 2, "WORKER_A", lastExpiry));
+        assertEquals(RegionalAnalysisStatus.Stage.FAILED, assembler.getStage());
+        assertTrue(job.toString().contains("nTasksAbandoned=1"));
+        assembler.terminate();
+    }
+
+}
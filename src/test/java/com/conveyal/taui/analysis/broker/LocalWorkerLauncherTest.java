@@ -0,0 +1,108 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.taui.AnalysisServerConfig;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class LocalWorkerLauncherTest {
+
+    private static final int FIRST_PORT = AnalysisServerConfig.workerPort;
+
+    /** A worker process that does nothing, and runs until it is destroyed. */
+    private static class FakeProcess extends Process {
+        boolean alive = true;
+
+        @Override public OutputStream getOutputStream () { return new ByteArrayOutputStream(); }
+        @Override public InputStream getInputStream () { return new ByteArrayInputStream(new byte[0]); }
+        @Override public InputStream getErrorStream () { return new ByteArrayInputStream(new byte[0]); }
+        @Override public int waitFor () { return 0; }
+        @Override public void destroy () { alive = false; }
+
+        @Override
+        public int exitValue () {
+            if (alive) throw new IllegalThreadStateException();
+            return 0;
+        }
+    }
+
+    /** A launcher that starts fake processes, keeping them by port so the tests can stop them and write their IDs. */
+    private static class FakeLauncher extends LocalWorkerLauncher {
+        final Map<Integer, FakeProcess> processForPort = new HashMap<>();
+        final Map<Integer, File> idFileForPort = new HashMap<>();
+
+        FakeLauncher (int maxWorkers, File directory) {
+            super(maxWorkers, directory);
+        }
+
+        @Override
+        Process startWorker (WorkerCategory category, int port, File idFile) {
+            FakeProcess process = new FakeProcess();
+            processForPort.put(port, process);
+            idFileForPort.put(port, idFile);
+            return process;
+        }
+
+        /** Do what the worker process listening on the given port does as it starts. */
+        void writeId (int port, String workerId) throws IOException {
+            Files.write(idFileForPort.get(port).toPath(), workerId.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static File createTempDirectory () throws IOException {
+        File directory = Files.createTempDirectory("local-workers").toFile();
+        directory.deleteOnExit();
+        return directory;
+    }
+
+    @Test
+    public void workersAreFoundOnThePortsTheyWroteTheirIdsFor () throws IOException {
+        FakeLauncher launcher = new FakeLauncher(3, createTempDirectory());
+        launcher.launch(null, null, null, 2, 1);
+        assertEquals(3, launcher.processForPort.size());
+        launcher.writeId(FIRST_PORT + 1, "WORKER_B");
+        launcher.writeId(FIRST_PORT, "WORKER_A");
+        assertEquals(FIRST_PORT, launcher.getWorkerPort("WORKER_A"));
+        assertEquals(FIRST_PORT + 1, launcher.getWorkerPort("WORKER_B"));
+        // The third worker has not written its ID yet, so it can't be found, and unknown workers get the default port.
+        assertEquals(AnalysisServerConfig.workerPort, launcher.getWorkerPort("WORKER_C"));
+        launcher.writeId(FIRST_PORT + 2, "WORKER_C");
+        assertEquals(FIRST_PORT + 2, launcher.getWorkerPort("WORKER_C"));
+        launcher.stopAll();
+    }
+
+    @Test
+    public void replacedWorkersAreForgotten () throws IOException {
+        FakeLauncher launcher = new FakeLauncher(2, createTempDirectory());
+        launcher.launch(null, null, null, 2, 0);
+        launcher.writeId(FIRST_PORT, "WORKER_A");
+        launcher.writeId(FIRST_PORT + 1, "WORKER_B");
+        assertEquals(FIRST_PORT, launcher.getWorkerPort("WORKER_A"));
+        // No more workers are started while both are running.
+        launcher.launch(null, null, null, 1, 0);
+        assertEquals(2, launcher.processForPort.size());
+        // The first worker exits, and its port is reused by the next worker started, which has not written its ID.
+        launcher.processForPort.get(FIRST_PORT).destroy();
+        launcher.launch(null, null, null, 1, 0);
+        assertFalse(launcher.idFileForPort.get(FIRST_PORT).exists());
+        assertEquals(AnalysisServerConfig.workerPort, launcher.getWorkerPort("WORKER_A"));
+        launcher.writeId(FIRST_PORT, "WORKER_D");
+        assertEquals(FIRST_PORT, launcher.getWorkerPort("WORKER_D"));
+        assertEquals(FIRST_PORT + 1, launcher.getWorkerPort("WORKER_B"));
+        launcher.stopAll();
+    }
+
+}
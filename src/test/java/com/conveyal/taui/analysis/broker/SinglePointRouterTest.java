@@ -0,0 +1,109 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SinglePointRouterTest {
+
+    private static final WorkerCategory CATEGORY = new WorkerCategory("NETWORK", "v0");
+
+    private static final long NOW = 10 * 60 * 1000;
+
+    private static final long THRESHOLD_MILLIS = 5000;
+
+    private static WorkerCatalog catalog (int nWorkers) {
+        WorkerCatalog catalog = new WorkerCatalog();
+        for (int w = 0; w < nWorkers; w++) {
+            WorkerStatus status = new WorkerStatus();
+            status.workerId = "WORKER_" + w;
+            status.ipAddress = "10.0.0." + w;
+            status.workerVersion = CATEGORY.workerVersion;
+            status.networks = Collections.singleton(CATEGORY.graphId);
+            catalog.catalog(status);
+        }
+        return catalog;
+    }
+
+    @Test
+    public void noRouteWithoutWorkers () {
+        SinglePointRouter router = new SinglePointRouter(catalog(0), THRESHOLD_MILLIS);
+        assertNull(router.route(CATEGORY, "SCENARIO"));
+    }
+
+    @Test
+    public void anyWorkerCanBeChosenWhateverItsNetwork () {
+        SinglePointRouter router = new SinglePointRouter(catalog(2), THRESHOLD_MILLIS);
+        WorkerCategory otherCategory = new WorkerCategory("OTHER_NETWORK", "v0");
+        assertNull(router.route(otherCategory, "SCENARIO"));
+        SinglePointRouter.Route route = router.routeToAnyWorker(otherCategory, "SCENARIO");
+        assertTrue(route.workerId.startsWith("WORKER_"));
+        assertEquals(1, router.getOutstanding(route.workerId));
+        assertNull(new SinglePointRouter(catalog(0), THRESHOLD_MILLIS).routeToAnyWorker(otherCategory, "SCENARIO"));
+    }
+
+    @Test
+    public void scenariosStickToWorkersAndAreSpread () {
+        SinglePointRouter router = new SinglePointRouter(catalog(4), THRESHOLD_MILLIS);
+        Set<String> workersUsed = new HashSet<>();
+        for (int s = 0; s < 40; s++) {
+            SinglePointRouter.Route first = router.route(CATEGORY, "SCENARIO_" + s, NOW);
+            router.finish(first, NOW);
+            SinglePointRouter.Route second = router.route(CATEGORY, "SCENARIO_" + s, NOW);
+            router.finish(second, NOW);
+            assertEquals(first.workerId, second.workerId);
+            workersUsed.add(first.workerId);
+        }
+        assertEquals(4, workersUsed.size());
+    }
+
+    @Test
+    public void busyWorkersArePassedOver () {
+        SinglePointRouter router = new SinglePointRouter(catalog(2), THRESHOLD_MILLIS);
+        SinglePointRouter.Route first = router.route(CATEGORY, "SCENARIO", NOW);
+        for (int i = 1; i < SinglePointRouter.MAX_OUTSTANDING_PER_WORKER; i++) {
+            assertEquals(first.workerId, router.route(CATEGORY, "SCENARIO", NOW).workerId);
+        }
+        SinglePointRouter.Route overflow = router.route(CATEGORY, "SCENARIO", NOW);
+        assertNotEquals(first.workerId, overflow.workerId);
+        assertEquals(SinglePointRouter.MAX_OUTSTANDING_PER_WORKER, router.getOutstanding(first.workerId));
+        router.finish(first, NOW);
+        assertEquals(SinglePointRouter.MAX_OUTSTANDING_PER_WORKER - 1, router.getOutstanding(first.workerId));
+        assertEquals(first.workerId, router.route(CATEGORY, "SCENARIO", NOW).workerId);
+    }
+
+    @Test
+    public void slowResponsesRequestOneMoreWorker () {
+        SinglePointRouter router = new SinglePointRouter(catalog(1), THRESHOLD_MILLIS);
+        long time = NOW;
+        int nScaleUps = 0;
+        // Fast responses never call for more workers.
+        for (int i = 0; i < SinglePointRouter.LATENCY_WINDOW_SIZE; i++, time += 1000) {
+            if (router.finish(router.route(CATEGORY, "SCENARIO", time), time + 100)) nScaleUps += 1;
+        }
+        assertEquals(0, nScaleUps);
+        // Slow responses call for one more worker, and then no more until the interval has passed.
+        for (int i = 0; i < SinglePointRouter.LATENCY_WINDOW_SIZE; i++, time += 1000) {
+            if (router.finish(router.route(CATEGORY, "SCENARIO", time), time + THRESHOLD_MILLIS * 2)) nScaleUps += 1;
+        }
+        assertEquals(1, nScaleUps);
+        time += SinglePointRouter.SCALE_UP_INTERVAL_MILLIS;
+        boolean scaledUp = false;
+        for (int i = 0; i < SinglePointRouter.MIN_LATENCY_SAMPLES; i++, time += 1000) {
+            scaledUp |= router.finish(router.route(CATEGORY, "SCENARIO", time), time + THRESHOLD_MILLIS * 2);
+        }
+        assertTrue(scaledUp);
+        assertFalse(router.finish(router.route(CATEGORY, "SCENARIO", time), time + THRESHOLD_MILLIS * 2));
+    }
+
+}
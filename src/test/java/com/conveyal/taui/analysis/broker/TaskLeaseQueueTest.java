@@ -0,0 +1,58 @@
+package com.conveyal.taui.analysis.broker;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TaskLeaseQueueTest {
+
+    @Test
+    public void leasesAreRemovedInExpiryOrder () {
+        // More leases than the initial capacity, so the arrays grow.
+        int nLeases = 1000;
+        TaskLeaseQueue leases = new TaskLeaseQueue(16);
+        Random random = new Random(42);
+        for (int taskId = 0; taskId < nLeases; taskId++) {
+            int grantTime = random.nextInt(100);
+            // The task number is recoverable from the other fields, to check they stay together as the heap changes.
+            leases.add(taskId, grantTime, grantTime + random.nextInt(1000), taskId % 7);
+        }
+        assertEquals(nLeases, leases.size());
+        for (int position = 0; position < nLeases; position++) {
+            assertEquals(leases.getTaskId(position) % 7, leases.getWorker(position));
+        }
+        boolean[] removed = new boolean[nLeases];
+        int previousExpiryTime = Integer.MIN_VALUE;
+        while (!leases.isEmpty()) {
+            int expiryTime = leases.peekExpiryTime();
+            assertTrue(expiryTime >= previousExpiryTime);
+            int taskId = leases.peekTaskId();
+            assertEquals(taskId, leases.remove());
+            assertFalse(removed[taskId]);
+            removed[taskId] = true;
+            previousExpiryTime = expiryTime;
+        }
+        assertEquals(0, leases.size());
+    }
+
+    @Test
+    public void leasesCanBeAddedWhileOthersAreRemoved () {
+        TaskLeaseQueue leases = new TaskLeaseQueue(16);
+        leases.add(0, 0, 30, 0);
+        leases.add(1, 0, 10, 0);
+        leases.add(2, 0, 20, 0);
+        assertEquals(1, leases.remove());
+        // A lease granted later may expire before those granted earlier.
+        leases.add(3, 5, 15, 1);
+        assertEquals(15, leases.peekExpiryTime());
+        assertEquals(3, leases.remove());
+        assertEquals(2, leases.remove());
+        assertEquals(0, leases.remove());
+        assertTrue(leases.isEmpty());
+    }
+
+}
@@ -0,0 +1,82 @@
+package com.conveyal.taui.analysis.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TaskOrderingTest {
+
+    /**
+     * Grids including no tasks, a single task, single rows and columns, sizes that are not powers of two and are not
+     * multiples of the Z-order tile size, and grids that are much wider than they are tall or the reverse.
+     */
+    private static final int[][] WIDTHS_AND_HEIGHTS = {
+            {0, 0}, {0, 7}, {7, 0}, {1, 1}, {2, 1}, {1, 2}, {3, 3}, {16, 16}, {17, 16}, {16, 17}, {31, 33},
+            {100, 1}, {1, 100}, {37, 23}, {300, 5}, {5, 300}, {64, 64}, {129, 65}
+    };
+
+    /** Check that every task is visited exactly once, and only positions that are allowed to be empty are empty. */
+    private static void assertVisitsEveryTaskOnce (TaskOrdering ordering, int nTasks, boolean emptyPositionsAllowed) {
+        assertTrue(ordering.size() >= nTasks);
+        boolean[] visited = new boolean[nTasks];
+        int nVisited = 0;
+        for (int position = 0; position < ordering.size(); position++) {
+            int task = ordering.taskAt(position);
+            if (task == -1) {
+                assertTrue(emptyPositionsAllowed);
+                continue;
+            }
+            assertTrue(task >= 0 && task < nTasks);
+            assertFalse(visited[task]);
+            visited[task] = true;
+            nVisited += 1;
+        }
+        assertEquals(nTasks, nVisited);
+    }
+
+    @Test
+    public void rowMajorOrderVisitsEveryTaskOnce () {
+        for (int[] size : WIDTHS_AND_HEIGHTS) {
+            TaskOrdering ordering = TaskOrdering.create(TaskOrdering.Type.ROW_MAJOR, size[0], size[1], 0);
+            assertEquals(size[0] * size[1], ordering.size());
+            assertVisitsEveryTaskOnce(ordering, size[0] * size[1], false);
+        }
+    }
+
+    @Test
+    public void zOrderVisitsEveryTaskOnce () {
+        for (int[] size : WIDTHS_AND_HEIGHTS) {
+            TaskOrdering ordering = TaskOrdering.create(TaskOrdering.Type.Z_ORDER, size[0], size[1], 0);
+            assertVisitsEveryTaskOnce(ordering, size[0] * size[1], true);
+        }
+    }
+
+    @Test
+    public void randomOrderVisitsEveryTaskOnce () {
+        for (long seed : new long[] {0, 1, -1, "JOB".hashCode()}) {
+            for (int[] size : WIDTHS_AND_HEIGHTS) {
+                TaskOrdering ordering = TaskOrdering.create(TaskOrdering.Type.RANDOM, size[0], size[1], seed);
+                // Cycle walking lands every position on a task, so there are no empty positions.
+                assertEquals(size[0] * size[1], ordering.size());
+                assertVisitsEveryTaskOnce(ordering, size[0] * size[1], false);
+            }
+        }
+        // Task counts just above and below the powers of two at which the Feistel network's domain grows.
+        for (int nTasks = 0; nTasks <= 1025; nTasks++) {
+            assertVisitsEveryTaskOnce(new TaskOrdering.RandomOrder(nTasks, 42), nTasks, false);
+        }
+    }
+
+    @Test
+    public void zOrderTilesAreSquareBlocks () {
+        TaskOrdering ordering = TaskOrdering.create(TaskOrdering.Type.Z_ORDER, 40, 40, 0);
+        // The first 16 positions are a 4x4 block in the corner of the grid.
+        for (int position = 0; position < 16; position++) {
+            int task = ordering.taskAt(position);
+            assertTrue(task % 40 < 4 && task / 40 < 4);
+        }
+    }
+
+}
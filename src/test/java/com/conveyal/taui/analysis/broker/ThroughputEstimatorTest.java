@@ -0,0 +1,42 @@
+package com.conveyal.taui.analysis.broker;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ThroughputEstimatorTest {
+
+    @Test
+    public void noRateUntilEnoughTimeHasPassed () {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        assertEquals(0, estimator.getTasksPerSecond(0), 0);
+        estimator.recordCompletion("A", 0);
+        estimator.recordCompletion("A", 1000);
+        assertEquals(0, estimator.getTasksPerSecond(1000), 0);
+    }
+
+    @Test
+    public void steadyRateIsMeasured () {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        // Two workers each completing a task every second.
+        for (long time = 0; time <= 600_000; time += 1000) {
+            estimator.recordCompletion("A", time);
+            estimator.recordCompletion("B", time);
+        }
+        assertEquals(2, estimator.getTasksPerSecond(600_000), 0.05);
+        assertEquals(2, estimator.getActiveWorkers(600_000));
+    }
+
+    @Test
+    public void rateFollowsChanges () {
+        ThroughputEstimator estimator = new ThroughputEstimator();
+        for (long time = 0; time <= 600_000; time += 100) {
+            estimator.recordCompletion("A", time);
+        }
+        assertEquals(10, estimator.getTasksPerSecond(600_000), 0.2);
+        // After the worker stops, the rate decays and the worker is no longer counted as active.
+        assertEquals(10 * Math.exp(-5), estimator.getTasksPerSecond(900_000), 0.01);
+        assertEquals(0, estimator.getActiveWorkers(900_000));
+    }
+
+}
@@ -0,0 +1,55 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.WorkerCategory;
+import com.conveyal.r5.analyst.cluster.WorkerStatus;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class WorkerCatalogTest {
+
+    private static final WorkerCategory CATEGORY = new WorkerCategory("NETWORK", "v0");
+
+    private static WorkerStatus status (String workerId, String graphId, String workerVersion) {
+        WorkerStatus status = new WorkerStatus();
+        status.workerId = workerId;
+        status.ipAddress = workerId + ".example.com";
+        status.workerVersion = workerVersion;
+        status.networks = Collections.singleton(graphId);
+        return status;
+    }
+
+    @Test
+    public void workersAreIndexedByCategoryAndNetwork () {
+        WorkerCatalog catalog = new WorkerCatalog();
+        catalog.catalog(status("A", "NETWORK", "v0"));
+        catalog.catalog(status("B", "NETWORK", "v0"));
+        assertEquals(2, catalog.countWorkersInCategory(CATEGORY));
+        // Worker A moves to another R5 version, leaving only B in its old category.
+        catalog.catalog(status("A", "NETWORK", "v1"));
+        assertEquals(1, catalog.countWorkersInCategory(CATEGORY));
+        assertEquals("B.example.com", catalog.getWorkersInCategory(CATEGORY).get(0).status.ipAddress);
+        assertFalse(catalog.noWorkersAvailable(new WorkerCategory("NETWORK", "v2"), true));
+        assertTrue(catalog.noWorkersAvailable(new WorkerCategory("NETWORK", "v2"), false));
+        assertTrue(catalog.noWorkersAvailable(new WorkerCategory("OTHER", "v0"), true));
+    }
+
+    @Test
+    public void silentWorkersArePurged () {
+        WorkerCatalog catalog = new WorkerCatalog();
+        catalog.catalog(status("A", "NETWORK", "v0"));
+        long now = System.currentTimeMillis();
+        catalog.purgeDeadWorkers(now);
+        assertEquals(1, catalog.totalWorkerCount());
+        catalog.purgeDeadWorkers(now + WorkerCatalog.WORKER_RECORD_DURATION_MSEC + 1000);
+        assertEquals(0, catalog.totalWorkerCount());
+        assertEquals(0, catalog.countWorkersInCategory(CATEGORY));
+        assertTrue(catalog.getWorkersInCategory(CATEGORY).isEmpty());
+        assertTrue(catalog.noWorkersAvailable(CATEGORY, true));
+    }
+
+}
@@ -0,0 +1,92 @@
+package com.conveyal.taui.analysis.broker;
+
+import com.conveyal.r5.analyst.cluster.RegionalWorkResult;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class WorkerThroughputTrackerTest {
+
+    private static List<RegionalWorkResult> results (String jobId, int nResults) {
+        List<RegionalWorkResult> results = new ArrayList<>();
+        for (int i = 0; i < nResults; i++) {
+            RegionalWorkResult result = new RegionalWorkResult();
+            result.jobId = jobId;
+            result.taskId = i;
+            results.add(result);
+        }
+        return results;
+    }
+
+    @Test
+    public void unknownWorkersGetTheDefaultBatchSize () {
+        WorkerThroughputTracker tracker = new WorkerThroughputTracker();
+        assertEquals(WorkerThroughputTracker.DEFAULT_TASKS_PER_POLL, tracker.getTasksPerPoll("A"));
+        // A first poll gives no interval over which to measure throughput.
+        tracker.recordPoll("A", results("JOB", 5), 1000);
+        assertEquals(WorkerThroughputTracker.DEFAULT_TASKS_PER_POLL, tracker.getTasksPerPoll("A"));
+    }
+
+    @Test
+    public void batchSizeFollowsThroughput () {
+        WorkerThroughputTracker tracker = new WorkerThroughputTracker();
+        tracker.recordPoll("FAST", results("JOB", 0), 0);
+        tracker.recordDelivery("FAST", 16);
+        tracker.recordPoll("SLOW", results("JOB", 0), 0);
+        tracker.recordDelivery("SLOW", 16);
+        // 50 tasks per second over two seconds.
+        tracker.recordPoll("FAST", results("JOB", 100), 2000);
+        assertEquals(500, tracker.getTasksPerPoll("FAST"));
+        // A busy worker returning nothing is still working, so the result after the second poll took 40 seconds.
+        tracker.recordPoll("SLOW", results("JOB", 0), 20000);
+        tracker.recordDelivery("SLOW", 0);
+        tracker.recordPoll("SLOW", results("JOB", 1), 40000);
+        assertEquals(WorkerThroughputTracker.MIN_TASKS_PER_POLL, tracker.getTasksPerPoll("SLOW"));
+        // Very fast workers are limited to the maximum batch size.
+        tracker.recordPoll("FAST", results("JOB", 10000), 3000);
+        assertEquals(WorkerThroughputTracker.MAX_TASKS_PER_POLL, tracker.getTasksPerPoll("FAST"));
+    }
+
+    @Test
+    public void leasesFollowThroughput () {
+        WorkerThroughputTracker tracker = new WorkerThroughputTracker();
+        // A worker that has not yet completed any tasks of the job may still be loading its network.
+        assertEquals(WorkerThroughputTracker.FIRST_BATCH_LEASE_SEC, tracker.getLeaseSeconds("A", "JOB", 16));
+        tracker.recordPoll("A", results("JOB", 0), 0);
+        tracker.recordDelivery("A", 16);
+        assertEquals(WorkerThroughputTracker.FIRST_BATCH_LEASE_SEC, tracker.getLeaseSeconds("A", "JOB", 16));
+        // One task per second.
+        tracker.recordPoll("A", results("JOB", 100), 100_000);
+        assertEquals(WorkerThroughputTracker.MIN_LEASE_SEC, tracker.getLeaseSeconds("A", "JOB", 10));
+        assertEquals(400, tracker.getLeaseSeconds("A", "JOB", 100));
+        assertEquals(WorkerThroughputTracker.MAX_LEASE_SEC, tracker.getLeaseSeconds("A", "JOB", 100_000));
+        // The throughput on one job says nothing about how long the first tasks of another will take.
+        assertEquals(WorkerThroughputTracker.FIRST_BATCH_LEASE_SEC, tracker.getLeaseSeconds("A", "OTHER", 10));
+    }
+
+    @Test
+    public void idleWorkersRestartTheInterval () {
+        WorkerThroughputTracker tracker = new WorkerThroughputTracker();
+        tracker.recordPoll("A", results("JOB", 0), 0);
+        tracker.recordDelivery("A", 0);
+        // The worker had nothing to do until it was given tasks on this poll.
+        tracker.recordPoll("A", results("JOB", 0), 60000);
+        tracker.recordDelivery("A", 16);
+        tracker.recordPoll("A", results("JOB", 16), 61000);
+        assertEquals(160, tracker.getTasksPerPoll("A"));
+    }
+
+    @Test
+    public void estimateRestartsOnNewJob () {
+        WorkerThroughputTracker tracker = new WorkerThroughputTracker();
+        tracker.recordPoll("A", results("CHEAP", 0), 0);
+        tracker.recordPoll("A", results("CHEAP", 100), 1000);
+        assertEquals(1000, tracker.getTasksPerPoll("A"));
+        tracker.recordPoll("A", results("EXPENSIVE", 2), 2000);
+        assertEquals(20, tracker.getTasksPerPoll("A"));
+    }
+
+}
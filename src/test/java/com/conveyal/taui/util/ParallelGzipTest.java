@@ -0,0 +1,75 @@
+package com.conveyal.taui.util;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class ParallelGzipTest {
+
+    /** Compress the given bytes through a file, as the results assembler does, and decompress them again. */
+    private static byte[] roundTrip (byte[] data) throws IOException {
+        File file = File.createTempFile("parallel-gzip", ".bin");
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            ParallelGzip.compress(randomAccessFile.getChannel(), compressed, executor);
+        } finally {
+            executor.shutdown();
+            file.delete();
+        }
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))) {
+            byte[] buffer = new byte[64 * 1024];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                decompressed.write(buffer, 0, n);
+            }
+        }
+        return decompressed.toByteArray();
+    }
+
+    /** Bytes that compress somewhat, like access grids, and differ enough between blocks to catch reordering. */
+    private static byte[] testData (int length) {
+        byte[] data = new byte[length];
+        Random random = new Random(42);
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (random.nextInt(16) + i / ParallelGzip.BLOCK_SIZE_BYTES);
+        }
+        return data;
+    }
+
+    @Test
+    public void dataSpanningSeveralBlocksIsRestored () throws IOException {
+        // More blocks than the number in flight at once on small machines, with a partial block at the end.
+        byte[] data = testData(5 * ParallelGzip.BLOCK_SIZE_BYTES + 12345);
+        assertArrayEquals(data, roundTrip(data));
+    }
+
+    @Test
+    public void dataOfExactlyOneBlockIsRestored () throws IOException {
+        byte[] data = testData(ParallelGzip.BLOCK_SIZE_BYTES);
+        assertArrayEquals(data, roundTrip(data));
+        data = testData(ParallelGzip.BLOCK_SIZE_BYTES + 1);
+        assertArrayEquals(data, roundTrip(data));
+    }
+
+    @Test
+    public void emptyInputGivesAValidGzipStream () throws IOException {
+        assertArrayEquals(new byte[0], roundTrip(new byte[0]));
+        assertArrayEquals(new byte[] {7}, roundTrip(new byte[] {7}));
+    }
+
+}
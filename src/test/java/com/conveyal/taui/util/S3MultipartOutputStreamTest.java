@@ -0,0 +1,190 @@
+package com.conveyal.taui.util;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.amazonaws.services.s3.model.UploadPartResult;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.conveyal.taui.util.S3MultipartOutputStream.PART_SIZE_BYTES;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class S3MultipartOutputStreamTest {
+
+    /**
+     * Stands in for S3, implementing only the methods used by multipart uploads. AmazonS3 has far too many methods to
+     * implement by hand, so this is the handler of a dynamic proxy, and any other method fails the test.
+     */
+    private static class FakeS3 {
+        final List<byte[]> parts = new ArrayList<>();
+        List<PartETag> completedPartETags;
+        boolean aborted = false;
+        /** The number of the part whose upload fails, or zero if all uploads succeed. */
+        int failingPart = 0;
+
+        AmazonS3 client () {
+            return (AmazonS3) Proxy.newProxyInstance(AmazonS3.class.getClassLoader(), new Class[] {AmazonS3.class},
+                    (proxy, method, args) -> handle(method, args));
+        }
+
+        private Object handle (Method method, Object[] args) throws IOException {
+            switch (method.getName()) {
+                case "initiateMultipartUpload":
+                    InitiateMultipartUploadResult initiateResult = new InitiateMultipartUploadResult();
+                    initiateResult.setUploadId("UPLOAD");
+                    return initiateResult;
+                case "uploadPart":
+                    UploadPartRequest request = (UploadPartRequest) args[0];
+                    assertEquals("UPLOAD", request.getUploadId());
+                    assertEquals(parts.size() + 1, request.getPartNumber());
+                    if (request.getPartNumber() == failingPart) {
+                        throw new AmazonClientException("Simulated failure uploading part " + failingPart);
+                    }
+                    byte[] part = new byte[(int) request.getPartSize()];
+                    new DataInputStream(request.getInputStream()).readFully(part);
+                    parts.add(part);
+                    UploadPartResult uploadResult = new UploadPartResult();
+                    uploadResult.setPartNumber(request.getPartNumber());
+                    uploadResult.setETag("ETAG_" + request.getPartNumber());
+                    return uploadResult;
+                case "completeMultipartUpload":
+                    completedPartETags = ((CompleteMultipartUploadRequest) args[0]).getPartETags();
+                    return new CompleteMultipartUploadResult();
+                case "abortMultipartUpload":
+                    aborted = true;
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method.getName());
+            }
+        }
+
+        byte[] uploadedBytes () {
+            ByteArrayOutputStream uploaded = new ByteArrayOutputStream();
+            for (byte[] part : parts) {
+                uploaded.write(part, 0, part.length);
+            }
+            return uploaded.toByteArray();
+        }
+    }
+
+    private static byte[] testData (int length) {
+        byte[] data = new byte[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = (byte) (i * 31 + i / PART_SIZE_BYTES);
+        }
+        return data;
+    }
+
+    @Test
+    public void writesAreSplitIntoParts () throws IOException {
+        FakeS3 s3 = new FakeS3();
+        byte[] data = testData(2 * PART_SIZE_BYTES + 100);
+        S3MultipartOutputStream out = new S3MultipartOutputStream(s3.client(), "bucket", "key");
+        // Write in chunks that do not line up with the parts, and one byte at a time across a part boundary.
+        int chunkSize = 1024 * 1024 - 1;
+        int position = 0;
+        while (position < PART_SIZE_BYTES - 2) {
+            int length = Math.min(chunkSize, PART_SIZE_BYTES - 2 - position);
+            out.write(data, position, length);
+            position += length;
+        }
+        for (; position < PART_SIZE_BYTES + 2; position++) {
+            out.write(data[position]);
+        }
+        out.write(data, position, data.length - position);
+        assertEquals(2, s3.parts.size());
+        assertNull(s3.completedPartETags);
+        out.close();
+        assertEquals(3, s3.parts.size());
+        assertEquals(PART_SIZE_BYTES, s3.parts.get(0).length);
+        assertEquals(PART_SIZE_BYTES, s3.parts.get(1).length);
+        assertEquals(100, s3.parts.get(2).length);
+        assertArrayEquals(data, s3.uploadedBytes());
+        assertEquals(data.length, out.getTotalBytes());
+        assertEquals(3, s3.completedPartETags.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, s3.completedPartETags.get(i).getPartNumber());
+            assertEquals("ETAG_" + (i + 1), s3.completedPartETags.get(i).getETag());
+        }
+        assertFalse(s3.aborted);
+    }
+
+    @Test
+    public void dataFillingWholePartsHasNoEmptyLastPart () throws IOException {
+        FakeS3 s3 = new FakeS3();
+        S3MultipartOutputStream out = new S3MultipartOutputStream(s3.client(), "bucket", "key");
+        out.write(testData(PART_SIZE_BYTES));
+        out.close();
+        assertEquals(1, s3.parts.size());
+        assertEquals(1, s3.completedPartETags.size());
+    }
+
+    @Test
+    public void emptyStreamUploadsOneEmptyPart () throws IOException {
+        // S3 requires at least one part to complete an upload.
+        FakeS3 s3 = new FakeS3();
+        new S3MultipartOutputStream(s3.client(), "bucket", "key").close();
+        assertEquals(1, s3.parts.size());
+        assertEquals(0, s3.parts.get(0).length);
+        assertEquals(1, s3.completedPartETags.size());
+    }
+
+    @Test
+    public void failureUploadingTheLastPartAbortsTheUpload () throws IOException {
+        FakeS3 s3 = new FakeS3();
+        s3.failingPart = 2;
+        S3MultipartOutputStream out = new S3MultipartOutputStream(s3.client(), "bucket", "key");
+        out.write(testData(PART_SIZE_BYTES + 10));
+        try {
+            out.close();
+            fail("Closing the stream should report the failed upload.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        assertTrue(s3.aborted);
+        assertNull(s3.completedPartETags);
+    }
+
+    @Test
+    public void failedWritesCanBeAborted () throws IOException {
+        FakeS3 s3 = new FakeS3();
+        s3.failingPart = 1;
+        S3MultipartOutputStream out = new S3MultipartOutputStream(s3.client(), "bucket", "key");
+        try {
+            out.write(testData(PART_SIZE_BYTES));
+            fail("Writing should report the failed upload.");
+        } catch (IOException e) {
+            // The caller aborts the upload, as GridResultAssembler does.
+            out.abort();
+        }
+        assertTrue(s3.aborted);
+        // Once aborted, the stream can't be written or completed.
+        try {
+            out.write(new byte[1]);
+            fail("Writing to an aborted stream should fail.");
+        } catch (IOException e) {
+            // Expected.
+        }
+        out.close();
+        assertNull(s3.completedPartETags);
+        assertEquals(0, s3.parts.size());
+    }
+
+}